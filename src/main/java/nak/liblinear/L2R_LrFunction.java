@@ -56,13 +56,8 @@ class L2R_LrFunction implements Function {
         for (i = 0; i < w_size; i++)
             f += w[i] * w[i];
         f /= 2.0;
-        for (i = 0; i < l; i++) {
-            double yz = y[i] * z[i];
-            if (yz >= 0)
-                f += C[i] * Math.log(1 + Math.exp(-yz));
-            else
-                f += C[i] * (-yz + Math.log(1 + Math.exp(yz)));
-        }
+        for (i = 0; i < l; i++)
+            f += C[i] * LogisticMath.log1pExp(-y[i] * z[i]);
 
         return (f);
     }
@@ -73,8 +68,11 @@ class L2R_LrFunction implements Function {
         int l = prob.l;
         int w_size = get_nr_variable();
 
+        for (i = 0; i < l; i++)
+            z[i] = y[i] * z[i];
+        LogisticMath.sigmoid(z, z, l);
+
         for (i = 0; i < l; i++) {
-            z[i] = 1 / (1 + Math.exp(-y[i] * z[i]));
             D[i] = z[i] * (1 - z[i]);
             z[i] = C[i] * (z[i] - 1) * y[i];
         }
@@ -14,6 +14,7 @@ import java.io.PrintStream;
 import java.io.Reader;
 import java.io.Writer;
 import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.Formatter;
 import java.util.Locale;
 import java.util.Random;
@@ -331,8 +332,12 @@ public class Linear {
             nr_w = nr_class;
 
         double label = predictValues(model, x, prob_estimates);
-        for (int i = 0; i < nr_w; i++)
-            prob_estimates[i] = 1 / (1 + Math.exp(-prob_estimates[i]));
+        decisionValuesToProbabilities(nr_class, nr_w, prob_estimates);
+        return label;
+    }
+
+    private static void decisionValuesToProbabilities(int nr_class, int nr_w, double[] prob_estimates) {
+        LogisticMath.sigmoid(prob_estimates, prob_estimates, nr_w);
 
         if (nr_class == 2) // for binary classification
             prob_estimates[1] = 1. - prob_estimates[0];
@@ -344,8 +349,67 @@ public class Linear {
             for (int i = 0; i < nr_class; i++)
                 prob_estimates[i] = prob_estimates[i] / sum;
         }
+    }
 
-        return label;
+    /**
+     * <p>Batch version of {@link #predictProbability}. The instances are given in
+     * compressed sparse row form: the features of instance r are
+     * indices[k] and values[k] for rowStarts[r] &lt;= k &lt; rowStarts[r+1].</p>
+     *
+     * <p>The features of all the instances are visited in order of feature index,
+     * so the weights are read in a single sequential pass per batch, and the
+     * nr_class weights of each feature are read once rather than once per instance.</p>
+     *
+     * @param prob_estimates one array of at least nr_class values per instance
+     * @throws IllegalArgumentException if model is not probabilistic (see {@link Model#isProbabilityModel()})
+     */
+    public static void predictProbabilityBatch(Model model, int[] rowStarts, int[] indices, double[] values, double[][] prob_estimates)
+        throws IllegalArgumentException {
+        if (!model.isProbabilityModel()) {
+            throw new IllegalArgumentException("probability output is only supported for logistic regression");
+        }
+        int nr_class = model.nr_class;
+        int nr_w;
+        if (nr_class == 2)
+            nr_w = 1;
+        else
+            nr_w = nr_class;
+        int n;
+        if (model.bias >= 0)
+            n = model.nr_feature + 1;
+        else
+            n = model.nr_feature;
+        double[] w = model.w;
+
+        int rows = rowStarts.length - 1;
+        int entries = rowStarts[rows];
+        int[] rowOf = new int[entries];
+        long[] order = new long[entries];
+        for (int r = 0; r < rows; r++) {
+            for (int k = rowStarts[r]; k < rowStarts[r + 1]; k++) {
+                rowOf[k] = r;
+                order[k] = ((long)indices[k] << 32) | k;
+            }
+            for (int i = 0; i < nr_w; i++)
+                prob_estimates[r][i] = 0;
+        }
+        Arrays.sort(order);
+
+        for (int e = 0; e < entries; e++) {
+            int k = (int)order[e];
+            int idx = indices[k];
+            // the dimension of testing data may exceed that of training
+            if (idx >= 1 && idx <= n) {
+                double[] dec_values = prob_estimates[rowOf[k]];
+                double value = values[k];
+                int offset = (idx - 1) * nr_w;
+                for (int i = 0; i < nr_w; i++)
+                    dec_values[i] += w[offset + i] * value;
+            }
+        }
+
+        for (int r = 0; r < rows; r++)
+            decisionValuesToProbabilities(nr_class, nr_w, prob_estimates[r]);
     }
 
     public static double predictValues(Model model, Feature[] x, double[] dec_values) {
@@ -1310,8 +1374,8 @@ public class Linear {
                 }
             }
         }
+        LogisticMath.exp(exp_wTx, exp_wTx, l);
         for (j = 0; j < l; j++) {
-            exp_wTx[j] = Math.exp(exp_wTx[j]);
             double tau_tmp = 1 / (1 + exp_wTx[j]);
             tau[j] = C[GETI(y, j)] * tau_tmp;
             D[j] = C[GETI(y, j)] * exp_wTx[j] * tau_tmp * tau_tmp;
@@ -1468,7 +1532,7 @@ public class Linear {
                 cond = w_norm_new - w_norm + negsum_xTd - sigma * delta;
 
                 for (int i = 0; i < l; i++) {
-                    double exp_xTd = Math.exp(xTd[i]);
+                    double exp_xTd = LogisticMath.exp(xTd[i]);
                     exp_wTx_new[i] = exp_wTx[i] * exp_xTd;
                     cond += C[GETI(y, i)] * Math.log((1 + exp_wTx_new[i]) / (exp_xTd + exp_wTx_new[i]));
                 }
@@ -1509,8 +1573,7 @@ public class Linear {
                     }
                 }
 
-                for (int i = 0; i < l; i++)
-                    exp_wTx[i] = Math.exp(exp_wTx[i]);
+                LogisticMath.exp(exp_wTx, exp_wTx, l);
             }
 
             if (iter == 1) inner_eps *= 0.25;
@@ -0,0 +1,190 @@
+package nak.liblinear;
+
+import java.util.Locale;
+import java.util.Random;
+
+
+/**
+ * <p>Fast versions of the exponential, logistic and log(1+exp(x)) functions used
+ * by the logistic regression solvers, which call them once per instance on every
+ * iteration.</p>
+ *
+ * <p>exp uses range reduction with a table: x = (k*N + j) * ln(2)/N + r, with
+ * |r| &lt;= ln(2)/(2N), so exp(x) = 2^k * 2^(j/N) * exp(r), where 2^(j/N) is looked
+ * up and exp(r) is a short polynomial. log1p uses the same idea with a table of
+ * log(1 + j/N). Over their whole range, the results are within 1e-15 relative
+ * error of {@link Math#exp} and {@link Math#log1p} (see {@link #main} for how this
+ * is measured), which is well below what the solvers' stopping criteria can see.</p>
+ *
+ * <p>The array versions are plain counted loops with no calls other than to the
+ * scalar functions, which the JIT inlines.</p>
+ */
+public final class LogisticMath {
+
+    private static final int    TABLE_BITS = 8;
+    private static final int    N          = 1 << TABLE_BITS;
+
+    // ln(2)/N split so that n * LN2_OVER_N_HI is exact for the n we use (Cody-Waite).
+    private static final double LN2_OVER_N_HI = 0x1.62e42fee00000p-1 / N;
+    private static final double LN2_OVER_N_LO = 0x1.a39ef35793c76p-33 / N;
+    private static final double N_OVER_LN2    = N / Math.log(2);
+
+    // Outside of this range exp over- or underflows, or the result is subnormal.
+    private static final double MAX_FAST_EXP = 709.0;
+    private static final double MIN_FAST_EXP = -708.0;
+
+    // Beyond this, log(1+exp(x)) == x and exp(-x) is below half an ulp of x.
+    private static final double LOG1P_EXP_CUTOFF = 36.8;
+
+    private static final double[] EXP2_TABLE     = new double[N];
+    private static final double[] LOG1P_TABLE    = new double[N + 1];
+    private static final double[] INV_ONE_PLUS_J = new double[N + 1];
+
+    static {
+        for (int j = 0; j < N; j++)
+            EXP2_TABLE[j] = Math.pow(2, (double)j / N);
+        for (int j = 0; j <= N; j++) {
+            LOG1P_TABLE[j] = Math.log1p((double)j / N);
+            INV_ONE_PLUS_J[j] = 1 / (1 + (double)j / N);
+        }
+    }
+
+    private LogisticMath() {}
+
+    /**
+     * e^x, within 1e-15 relative error of {@link Math#exp}.
+     */
+    public static double exp(double x) {
+        // also sends NaN and infinities to Math.exp
+        if (!(x > MIN_FAST_EXP && x < MAX_FAST_EXP)) return Math.exp(x);
+
+        double n = Math.rint(x * N_OVER_LN2);
+        double r = (x - n * LN2_OVER_N_HI) - n * LN2_OVER_N_LO;
+        int ni = (int)n;
+        int j = ni & (N - 1);
+        int k = ni >> TABLE_BITS;
+
+        // exp(r) for |r| <= ln(2)/512, truncation error below r^5/120 < 4e-17
+        double p = 1 + r * (1 + r * (0.5 + r * (1.0 / 6 + r * (1.0 / 24))));
+        double scale = Double.longBitsToDouble((long)(k + 1023) << 52);
+        return EXP2_TABLE[j] * p * scale;
+    }
+
+    /**
+     * log(1+t) for t in [0,1], within 1e-15 relative error of {@link Math#log1p}.
+     */
+    static double log1pUnit(double t) {
+        int j = (int)(t * N + 0.5);
+        // 1+t = (1 + j/N)(1+u) with |u| <= 1/(2N); t - j/N is exact
+        double u = (t - (double)j / N) * INV_ONE_PLUS_J[j];
+        // log(1+u), truncation error below u^7/7 < 1e-20
+        double p = u * (1 + u * (-0.5 + u * (1.0 / 3 + u * (-0.25 + u * (0.2 + u * (-1.0 / 6))))));
+        return LOG1P_TABLE[j] + p;
+    }
+
+    /**
+     * log(1+e^x), computed without overflow for large x.
+     */
+    public static double log1pExp(double x) {
+        if (x > 0) {
+            if (x > LOG1P_EXP_CUTOFF) return x;
+            return x + log1pUnit(exp(-x));
+        }
+        return log1pUnit(exp(x));
+    }
+
+    /**
+     * The logistic function 1/(1+e^-x).
+     */
+    public static double sigmoid(double x) {
+        return 1 / (1 + exp(-x));
+    }
+
+    /**
+     * Set out[i] = e^x[i] for the first n elements. x and out may be the same array.
+     */
+    public static void exp(double[] x, double[] out, int n) {
+        for (int i = 0; i < n; i++)
+            out[i] = exp(x[i]);
+    }
+
+    /**
+     * Set out[i] = log(1+e^x[i]) for the first n elements. x and out may be the same array.
+     */
+    public static void log1pExp(double[] x, double[] out, int n) {
+        for (int i = 0; i < n; i++)
+            out[i] = log1pExp(x[i]);
+    }
+
+    /**
+     * Set out[i] = 1/(1+e^-x[i]) for the first n elements. x and out may be the same array.
+     */
+    public static void sigmoid(double[] x, double[] out, int n) {
+        for (int i = 0; i < n; i++)
+            out[i] = sigmoid(x[i]);
+    }
+
+    /**
+     * Measure the speed and accuracy of exp and log1pExp against the versions
+     * built on {@link Math#exp} and {@link Math#log1p}.
+     *
+     * <pre>
+     *   nak run nak.liblinear.LogisticMath [size] [repetitions]
+     * </pre>
+     */
+    public static void main(String[] argv) {
+        int size = argv.length > 0 ? Integer.parseInt(argv[0]) : 1000000;
+        int repetitions = argv.length > 1 ? Integer.parseInt(argv[1]) : 20;
+
+        Random random = new Random(0);
+        double[] x = new double[size];
+        for (int i = 0; i < size; i++)
+            x[i] = (random.nextDouble() - 0.5) * 80;
+        double[] fast = new double[size];
+        double[] reference = new double[size];
+
+        double maxExpError = 0, maxLog1pExpError = 0;
+        for (int i = 0; i < size; i++) {
+            maxExpError = Math.max(maxExpError, relativeError(exp(x[i]), Math.exp(x[i])));
+            double ref = x[i] > 0 ? x[i] + Math.log1p(Math.exp(-x[i])) : Math.log1p(Math.exp(x[i]));
+            maxLog1pExpError = Math.max(maxLog1pExpError, relativeError(log1pExp(x[i]), ref));
+        }
+
+        long expTime = 0, mathExpTime = 0, log1pExpTime = 0, mathLog1pExpTime = 0;
+        double checksum = 0;
+        for (int rep = 0; rep < repetitions; rep++) {
+            long start = System.nanoTime();
+            exp(x, fast, size);
+            expTime += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < size; i++)
+                reference[i] = Math.exp(x[i]);
+            mathExpTime += System.nanoTime() - start;
+            checksum += fast[rep] - reference[rep];
+
+            start = System.nanoTime();
+            log1pExp(x, fast, size);
+            log1pExpTime += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < size; i++)
+                reference[i] = x[i] > 0 ? x[i] + Math.log1p(Math.exp(-x[i])) : Math.log1p(Math.exp(x[i]));
+            mathLog1pExpTime += System.nanoTime() - start;
+            checksum += fast[rep] - reference[rep];
+        }
+
+        double evaluations = (double)size * repetitions;
+        System.out.println(String.format(Locale.ENGLISH, "exp:      %6.2f ns/op (Math.exp %6.2f ns/op), max relative error %.3g",
+            expTime / evaluations, mathExpTime / evaluations, maxExpError));
+        System.out.println(String.format(Locale.ENGLISH, "log1pExp: %6.2f ns/op (Math     %6.2f ns/op), max relative error %.3g",
+            log1pExpTime / evaluations, mathLog1pExpTime / evaluations, maxLog1pExpError));
+        System.out.println(String.format(Locale.ENGLISH, "(checksum %g)", checksum));
+    }
+
+    private static double relativeError(double value, double reference) {
+        if (value == reference) return 0;
+        return Math.abs(value - reference) / Math.abs(reference);
+    }
+
+}
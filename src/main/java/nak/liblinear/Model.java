@@ -2,11 +2,14 @@ package nak.liblinear;
 
 import static nak.liblinear.Linear.copyOf;
 
+import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.Serializable;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.Arrays;
 
 
@@ -191,4 +194,57 @@ public final class Model implements Serializable {
     public static Model load(Reader inputReader) throws IOException {
         return Linear.loadModel(inputReader);
     }
+
+    /**
+     * <p>Writes the model as a binary block: the solver type's name, nr_class,
+     * the labels (-1 for none), nr_feature, bias, and the weights, all big-endian.
+     * Unlike {@link #save(Writer)}, the weights can be read back in bulk with
+     * {@link #readBinary(ByteBuffer)}.</p>
+     */
+    public void writeBinary(DataOutput out) throws IOException {
+        out.writeUTF(solverType.name());
+        out.writeInt(nr_class);
+        if (label == null)
+            out.writeInt(-1);
+        else {
+            out.writeInt(label.length);
+            for (int l : label)
+                out.writeInt(l);
+        }
+        out.writeInt(nr_feature);
+        out.writeDouble(bias);
+        out.writeInt(w.length);
+
+        ByteBuffer chunk = ByteBuffer.allocate(8 * 4096);
+        for (int start = 0; start < w.length; start += 4096) {
+            int end = Math.min(w.length, start + 4096);
+            chunk.clear();
+            chunk.asDoubleBuffer().put(w, start, end - start);
+            out.write(chunk.array(), 0, 8 * (end - start));
+        }
+    }
+
+    /**
+     * Reads a model written by {@link #writeBinary(DataOutput)}, starting at the
+     * buffer's position and leaving the position after the model.
+     */
+    public static Model readBinary(ByteBuffer in) {
+        Model model = new Model();
+        byte[] solverName = new byte[in.getShort() & 0xffff];
+        in.get(solverName);
+        model.solverType = SolverType.valueOf(new String(solverName, Charset.forName("UTF-8")));
+        model.nr_class = in.getInt();
+        int nr_label = in.getInt();
+        if (nr_label >= 0) {
+            model.label = new int[nr_label];
+            in.asIntBuffer().get(model.label);
+            in.position(in.position() + 4 * nr_label);
+        }
+        model.nr_feature = in.getInt();
+        model.bias = in.getDouble();
+        model.w = new double[in.getInt()];
+        in.asDoubleBuffer().get(model.w);
+        in.position(in.position() + 8 * model.w.length);
+        return model;
+    }
 }
@@ -143,33 +143,63 @@ object NakContext {
 
 
   /**
-   * Save a classifier to disk by using Java serialization.
+   * Save a classifier to disk. Liblinear classifiers are written in the compact
+   * binary ClassifierFormat; other classifiers use Java serialization.
    */
   def saveClassifier(classifier: Classifier, filename: String) {
     import java.io._
-    val stream = new FileOutputStream(filename)
-    new ObjectOutputStream(stream).writeObject(classifier)
-    stream.close
+    classifier match {
+      case c: LiblinearClassifier if ClassifierFormat.supports(c) =>
+        ClassifierFormat.write(c, new File(filename))
+      case _ =>
+        val stream = new FileOutputStream(filename)
+        new ObjectOutputStream(stream).writeObject(classifier)
+        stream.close
+    }
   }
 
   /**
-   * Read a classifier from disk by using Java deserialization.
+   * Read a classifier from disk. Files in ClassifierFormat are memory-mapped;
+   * anything else is read by using Java deserialization.
    */
   def loadClassifier[C<:Classifier](filename: String) = {
     import java.io._
-    val stream = new FileInputStream(filename)
-    val classifier = new ObjectInputStream(stream).readObject.asInstanceOf[C]
-    stream.close
-    classifier
+    val file = new File(filename)
+    if (ClassifierFormat.isClassifierFile(file))
+      ClassifierFormat.read[C](file)
+    else {
+      val stream = new FileInputStream(filename)
+      val classifier = new ObjectInputStream(stream).readObject.asInstanceOf[C]
+      stream.close
+      classifier
+    }
   }
 
   /**
-   * Read a classifier from the classpath using Java deserialization.
+   * Read a classifier from the classpath, in ClassifierFormat or by using Java
+   * deserialization.
    */
   def loadClassifierFromResource[C<:Classifier](resource: String) = {
     import java.io._
-    val stream = new ObjectInputStream(this.getClass.getResourceAsStream(resource))
-    val classifier = stream.readObject.asInstanceOf[C]
+    val stream = new BufferedInputStream(this.getClass.getResourceAsStream(resource))
+    stream.mark(4)
+    val isClassifierFormat =
+      try { new DataInputStream(stream).readInt == ClassifierFormat.Magic }
+      catch { case e: EOFException => false }
+    stream.reset()
+    val classifier =
+      if (isClassifierFormat) {
+        val bytes = new ByteArrayOutputStream
+        val buffer = new Array[Byte](1 << 16)
+        var n = stream.read(buffer)
+        while (n >= 0) {
+          bytes.write(buffer, 0, n)
+          n = stream.read(buffer)
+        }
+        ClassifierFormat.read[C](java.nio.ByteBuffer.wrap(bytes.toByteArray))
+      } else {
+        new ObjectInputStream(stream).readObject.asInstanceOf[C]
+      }
     stream.close
     classifier
   }
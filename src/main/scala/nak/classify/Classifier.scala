@@ -19,11 +19,17 @@ package nak.classify
 
 import nak.data._
 import breeze.linalg._
+import breeze.util.Index
 
 /**
  * Represents a classifier from observations of type T to labels of type L.
  * Implementers should only need to implement score.
  *
+ * Classifiers that score a fixed set of labels can also give indexedLabels
+ * and override scoreInto, so that scores are written into arrays indexed by
+ * those labels instead of Counters. classify and the batch methods then go
+ * through the arrays.
+ *
  * @author dlwh
  */
 trait Classifier[L, -T] extends (T => L) {  outer =>
@@ -31,13 +37,67 @@ trait Classifier[L, -T] extends (T => L) {  outer =>
   def apply(o: T) = classify(o)
 
   /** Return the most likely label */
-  def classify(o: T) = scores(o).argmax
+  def classify(o: T): L = indexedLabels match {
+    case Some(labels) =>
+      val scores = new Array[Double](labels.size)
+      scoreInto(o, labels, scores)
+      labels.get(Classifier.argmax(scores, 0, labels.size))
+    case None =>
+      scores(o).argmax
+  }
 
   /** For the observation, return the score for each label that has a nonzero
     * score.
     */
   def scores(o: T): Counter[L, Double]
 
+  /**
+   * The labels this classifier scores, in the order scoreInto writes them
+   * fastest, or None if it only scores through Counters.
+   */
+  def indexedLabels: Option[Index[L]] = None
+
+  /**
+   * Write the score of the observation for each of labels into scores,
+   * starting at offset. Labels missing from scores(o) get 0. The default
+   * goes through scores(o).
+   */
+  def scoreInto(o: T, labels: Index[L], scores: Array[Double], offset: Int = 0) {
+    val counter = this.scores(o)
+    var i = 0
+    while (i < labels.size) {
+      scores(offset + i) = counter(labels.get(i))
+      i += 1
+    }
+  }
+
+  /**
+   * The scores of each observation for each of labels, with the scores of
+   * observation i starting at i * labels.size. Blocks of observations are
+   * scored in parallel.
+   */
+  def scoreAll(os: IndexedSeq[T], labels: Index[L]): Array[Double] = {
+    val numLabels = labels.size
+    val scores = new Array[Double](os.length * numLabels)
+    Classifier.inBlocks(os.length) { (start, end) =>
+      for (i <- start until end) scoreInto(os(i), labels, scores, i * numLabels)
+    }
+    scores
+  }
+
+  /** The most likely label of each observation, classified in parallel. */
+  def classifyAll(os: IndexedSeq[T]): IndexedSeq[L] = indexedLabels match {
+    case Some(labels) =>
+      val scores = scoreAll(os, labels)
+      os.indices.map(i => labels.get(Classifier.argmax(scores, i * labels.size, labels.size)))
+    case None =>
+      val guesses = new Array[Any](os.length)
+      Classifier.inBlocks(os.length) { (start, end) =>
+        for (i <- start until end) guesses(i) = classify(os(i))
+      }
+      guesses.toIndexedSeq.asInstanceOf[IndexedSeq[L]]
+  }
+
   /**
    * Transforms output labels L=>M. if f(x) is not one-to-one then the max of score
    * from the L's are used.
@@ -59,6 +119,33 @@ trait Classifier[L, -T] extends (T => L) {  outer =>
 
 object Classifier {
 
+  /** The number of observations scored together by the batch methods. */
+  private val BlockSize = 64
+
+  private def inBlocks(n: Int)(f: (Int, Int) => Unit) {
+    val starts = 0 until n by BlockSize
+    if (starts.length < 2) f(0, n)
+    else starts.par.foreach(start => f(start, math.min(n, start + BlockSize)))
+  }
+
+  /** The index of the largest of the length scores starting at offset, the first if tied. */
+  private[classify] def argmax(scores: Array[Double], offset: Int, length: Int): Int = {
+    var best = 0
+    var i = 1
+    while (i < length) {
+      if (scores(offset + i) > scores(offset + best)) best = i
+      i += 1
+    }
+    best
+  }
+
+  /** The scores written by scoreInto for labels, as a Counter. */
+  def toCounter[L](labels: Index[L], scores: Array[Double], offset: Int = 0): Counter[L, Double] = {
+    val counter = Counter[L, Double]()
+    for (i <- 0 until labels.size) counter(labels.get(i)) = scores(offset + i)
+    counter
+  }
+
   trait Trainer[L, T] {
     type MyClassifier <: Classifier[L, T]
 
@@ -33,7 +33,37 @@ class LFMatrix[L,TF:ClassTag](val data: Array[TF],
   def repr = this
   def numLabels = labelIndex.size
 
-  def empty = new LFMatrix[L,TF](emptyTF, labelIndex)
+  // The array that the rows are slices of, for matrices made by LFMatrix.zeros
+  // from a DenseVector.
+  private[this] val backing: Array[Double] = data.headOption match {
+    case Some(first: DenseVector[_]) if first.data.isInstanceOf[Array[Double]] && isSliced(first.data.asInstanceOf[Array[Double]]) =>
+      first.data.asInstanceOf[Array[Double]]
+    case _ => null
+  }
+
+  private[this] def isSliced(flat: Array[Double]) = {
+    val numFeatures = if (data.isEmpty) 0 else data(0).asInstanceOf[DenseVector[Double]].length
+    flat.length == numFeatures * data.length && data.indices.forall { l =>
+      data(l) match {
+        case row: DenseVector[_] => (row.data eq flat) && row.offset == l * numFeatures && row.stride == 1 && row.length == numFeatures
+        case _ => false
+      }
+    }
+  }
+
+  /**
+   * The weights as a numFeatures x numLabels column-major matrix sharing
+   * their storage, so that label l is column l, when the rows are slices of
+   * one array. Rows stay slices when they're replaced with update, so that
+   * holds through the arithmetic below, but not if data is written directly.
+   */
+  def contiguous: Option[DenseMatrix[Double]] =
+    if (backing != null && isSliced(backing)) Some(new DenseMatrix(backing.length / math.max(1, data.length), data.length, backing))
+    else None
+
+  def empty =
+    if (backing != null) LFMatrix.zeros[L,TF](emptyTF, labelIndex)
+    else new LFMatrix[L,TF](emptyTF, labelIndex)
 
   def apply(label: L) = {
     val i = labelIndex(label)
@@ -44,12 +74,40 @@ class LFMatrix[L,TF:ClassTag](val data: Array[TF],
     data(label)
   }
 
-  def update(label: L, tf: TF) = {
-    data(labelIndex(label)) = tf
+  def update(label: L, tf: TF): Unit = {
+    update(labelIndex(label), tf)
   }
 
-  def update(label: Int, tf: TF) = {
-    data(label) = tf
+  def update(label: Int, tf: TF): Unit = {
+    (data(label), tf) match {
+      case (row: DenseVector[Double @unchecked], from: DenseVector[Double @unchecked])
+        if backing != null && (row.data eq backing) && (row ne from) && row.length == from.length =>
+        var j = 0
+        while (j < row.length) {
+          row(j) = from(j)
+          j += 1
+        }
+      case _ => data(label) = tf
+    }
+  }
+
+  /**
+   * The score of each datum for each label, with one column per datum. When
+   * the weights are contiguous and the data are DenseVectors this is one
+   * matrix-matrix product.
+   */
+  def scoresAll(features: IndexedSeq[TF])(implicit mul: OpMulMatrix.Impl2[LFMatrix[L,TF],TF,DenseVector[Double]]): DenseMatrix[Double] = {
+    val weights = contiguous
+    if (weights.isDefined && features.nonEmpty && features.forall(_.isInstanceOf[DenseVector[_]])) {
+      val w = weights.get
+      val x = DenseMatrix.zeros[Double](w.rows, features.length)
+      for (i <- features.indices) x(::, i) := features(i).asInstanceOf[DenseVector[Double]]
+      w.t * x
+    } else {
+      val r = DenseMatrix.zeros[Double](numLabels, features.length)
+      for (i <- features.indices) r(::, i) := mul(this, features(i))
+      r
+    }
   }
 
 //  def size: Int = numLabels
@@ -84,16 +142,35 @@ object LFMatrix {
   : OpMulMatrix.Impl2[LFMatrix[L,TF],TF,DenseVector[Double]]  = {
     new OpMulMatrix.Impl2[LFMatrix[L,TF],TF,DenseVector[Double]] {
 
-      def apply(v1: LFMatrix[L, TF], v2: TF) = {
-        val r = DenseVector.zeros[Double](v1.numLabels)
-        for( i <- 0 until r.length) {
-          r(i) = v1.data(i) dot v2
-        }
-        r
+      def apply(v1: LFMatrix[L, TF], v2: TF) = (v1.contiguous, v2) match {
+        case (Some(weights), x: DenseVector[Double @unchecked]) =>
+          // One BLAS matrix-vector product over all the labels.
+          weights.t * x
+        case _ =>
+          val r = DenseVector.zeros[Double](v1.numLabels)
+          for( i <- 0 until r.length) {
+            r(i) = v1.data(i) dot v2
+          }
+          r
       }
     }
   }
 
+  /**
+   * An LFMatrix of zeros like zero for each label. When zero is a
+   * DenseVector[Double] the rows are slices of one row-major array, which
+   * lets scoring use BLAS and keeps the weights together in memory.
+   */
+  def zeros[L,TF:ClassTag](zero: => TF, labelIndex: Index[L]): LFMatrix[L,TF] = zero match {
+    case z: DenseVector[_] if z.data.isInstanceOf[Array[Double]] =>
+      val numFeatures = z.length
+      val flat = new Array[Double](numFeatures * labelIndex.size)
+      val rows = Array.tabulate[DenseVector[Double]](labelIndex.size)(l => new DenseVector(flat, l * numFeatures, 1, numFeatures))
+      new LFMatrix[L,DenseVector[Double]](rows, DenseVector.zeros[Double](numFeatures), labelIndex).asInstanceOf[LFMatrix[L,TF]]
+    case _ =>
+      new LFMatrix[L,TF](zero, labelIndex)
+  }
+
   implicit def lfBinaryOp[L,TF,Op<:OpType]
   (implicit op: UFunc.UImpl2[Op, TF,Double,TF], numeric: TF=>NumericOps[TF])
   : UFunc.UImpl2[Op, LFMatrix[L,TF],Double,LFMatrix[L,TF]]  = {
@@ -302,7 +379,8 @@ object LFMatrix {
          val index = DataSerialization.read[Index[L]](source)
          val map = DataSerialization.read[Array[TF]](source)(DataSerialization.arrayReadWritable[TF])
          def default = zeros(map.head)
-         val ret = new LFMatrix[L,TF](map, default, index)
+         val ret = LFMatrix.zeros[L,TF](default, index)
+         for (l <- 0 until map.length) ret(l) = map(l)
          ret
        }
      }
@@ -330,13 +408,18 @@ class UnindexedLFMatrix[L,TF](val indexed: LFMatrix[L, TF])  extends NumericOps[
 object UnindexedLFMatrix {
   implicit def ulfMatrixTimesTF[L,TF]
   (implicit inner: OpMulMatrix.Impl2[ LFMatrix[L, TF], TF, DenseVector[Double]], numeric: TF=>NumericOps[TF])
-  : OpMulMatrix.Impl2[UnindexedLFMatrix[L,TF],TF,Counter[L, Double]]  = {
-    new OpMulMatrix.Impl2[UnindexedLFMatrix[L,TF],TF,Counter[L, Double]] {
-
-      def apply(v1: UnindexedLFMatrix[L, TF], v2: TF) = {
-        val dv = v1.indexed * v2
-        Encoder.fromIndex(v1.labelIndex).decode(dv)
-      }
+  : OpMulMatrix.Impl2[UnindexedLFMatrix[L,TF],TF,Counter[L, Double]]  = new TimesTF(inner)
+
+  /**
+   * Multiplies through the indexed matrix, which LinearClassifier uses
+   * directly to write scores indexed by label.
+   */
+  class TimesTF[L,TF](val inner: OpMulMatrix.Impl2[LFMatrix[L, TF], TF, DenseVector[Double]])
+    extends OpMulMatrix.Impl2[UnindexedLFMatrix[L,TF],TF,Counter[L, Double]] {
+
+    def apply(v1: UnindexedLFMatrix[L, TF], v2: TF) = {
+      val dv = inner(v1.indexed, v2)
+      Encoder.fromIndex(v1.labelIndex).decode(dv)
     }
   }
 }
@@ -22,6 +22,7 @@ import nak.serialization.DataSerialization
 import breeze.linalg._
 import breeze.linalg.operators._
 import breeze.math.{MutableTensorField, VectorField}
+import breeze.util.Index
 
 /**
  * A LinearClassifier is a multi-class classifier with decision
@@ -47,6 +48,29 @@ class LinearClassifier[L,TW, TL, TF]
     }
     ctr
   }
+
+  override def indexedLabels: Option[Index[L]] = indexedWeights.map(_._1.labelIndex)
+
+  /** Scores with UnindexedLFMatrix weights are written without going through a Counter. */
+  override def scoreInto(o: TF, labels: Index[L], scores: Array[Double], offset: Int = 0) {
+    indexedWeights match {
+      case Some((weights, times)) if weights.labelIndex eq labels =>
+        val r = times(weights, o)
+        var i = 0
+        while (i < r.length) {
+          scores(offset + i) = r(i) + intercepts(labels.get(i))
+          i += 1
+        }
+      case _ => super.scoreInto(o, labels, scores, offset)
+    }
+  }
+
+  private def indexedWeights: Option[(LFMatrix[L,TF], OpMulMatrix.Impl2[LFMatrix[L,TF],TF,DenseVector[Double]])] =
+    (featureWeights, mulTensors) match {
+      case (weights: UnindexedLFMatrix[L @unchecked, TF @unchecked], times: UnindexedLFMatrix.TimesTF[L @unchecked, TF @unchecked]) =>
+        Some((weights.indexed, times.inner))
+      case _ => None
+    }
 }
 
 object LinearClassifier {
@@ -49,9 +49,17 @@ object LogisticClassifier {
   /**
    * @tparam L: the label type
    * @tparam TF feature vectors, which are the input vectors to the classifer
+   * @param probabilityThreshold labels whose probability for a datum is below
+   *    this are left out of its gradient, which makes it approximate but
+   *    saves a pass over the features for each of them; the default leaves
+   *    out nothing
+   * @param debugChecks whether to check the weights and log likelihood for
+   *    NaNs on every evaluation of the objective
    * @return a LinearClassifier based on the fitted model
    */
-  class Trainer[L,TF](opt: OptParams = OptParams())(implicit arith: MutableVectorField[TF, Double],
+  class Trainer[L,TF](opt: OptParams = OptParams(),
+                      probabilityThreshold: Double = 0.0,
+                      debugChecks: Boolean = false)(implicit arith: MutableVectorField[TF, Double],
                                                     man: ClassTag[TF]) extends Classifier.Trainer[L,TF] {
     import arith._
 
@@ -62,7 +70,7 @@ object LogisticClassifier {
       val labelIndex = Index[L]()
       data foreach { ex => labelIndex.index(ex.label) }
 
-      val guess = new LFMatrix[L,TF](zeroLike(data.head.features), labelIndex)
+      val guess = LFMatrix.zeros[L,TF](zeroLike(data.head.features), labelIndex)
 
       val obj = new CachedBatchDiffFunction(objective(data.toIndexedSeq, labelIndex))(LFMatrix.canCopy(copy))
 
@@ -78,7 +86,18 @@ object LogisticClassifier {
 
     protected def objective(data: IndexedSeq[Example[L,TF]], labelIndex: Index[L]) = new ObjectiveFunction(data, labelIndex)
 
-    // preliminaries: an objective function
+    /**
+     * The negative log likelihood of the data. The data are split into
+     * shards that are evaluated in parallel, each accumulating its own
+     * gradient, and the gradients are summed at the end. When the features
+     * are SparseVectors or HashVectors and the weight matrix is small enough,
+     * each evaluation copies the weights into one dense array, so a score
+     * costs a pass over the datum's active features, and each shard
+     * accumulates its gradient in a dense array too. When the features are
+     * DenseVectors and the weights are contiguous (see LFMatrix.zeros), each
+     * block of data is scored with one BLAS matrix-matrix product, and its
+     * gradient is accumulated with another.
+     */
     protected class ObjectiveFunction(data: IndexedSeq[Example[L,TF]], labelIndex: Index[L]) extends BatchDiffFunction[LFMatrix[L,TF]] {
 
       // Computes the dot product for each label
@@ -88,30 +107,200 @@ object LogisticClassifier {
 
       val fullRange = (0 until data.size)
 
+      private val numLabels = labelIndex.size
+      private val goldLabels = data.map(ex => labelIndex(ex.label)).toArray
+      private val sparseDimension = data.head.features match {
+        case v: SparseVector[_] => v.length
+        case v: HashVector[_] => v.length
+        case _ => -1
+      }
+      private val denseFeatures = data.forall(_.features.isInstanceOf[DenseVector[_]])
+
       override def calculate(weights: LFMatrix[L,TF], range: IndexedSeq[Int]) = {
-        var ll = 0.0
-        val grad = weights.empty
-        assert(!breeze.linalg.norm.apply[LFMatrix[L,TF],Double,Double](weights,2.0).isNaN, weights)
-
-        for( datum <- range.view map data) {
-          val logScores: DenseVector[Double] = this.logScores(weights,datum.features)
-          val logNormalizer = softmax(logScores)
-          val goldLabel = labelIndex(datum.label)
-          ll -= (logScores(goldLabel) - logNormalizer)
-          assert(!ll.isNaN, logNormalizer + " " + logScores + " " + weights + " " + datum + " " + (weights * datum.features))
-
-          // d ll/d weight_kj = \sum_i x_ij ( I(group_i = k) - p_k(x_i;Beta))
-          for ( label <- 0 until labelIndex.size ) {
-            val prob_k = math.exp(logScores(label) - logNormalizer)
-            assert(prob_k >= 0 && prob_k <= 1,prob_k)
-            axpy(-(I(label == goldLabel) - prob_k), datum.features, grad(label))
+        if (debugChecks)
+          assert(!breeze.linalg.norm.apply[LFMatrix[L,TF],Double,Double](weights,2.0).isNaN, weights)
+
+        val numShards = math.max(1, math.min(Runtime.getRuntime.availableProcessors, range.size / ObjectiveFunction.MinShardSize))
+        val dense =
+          sparseDimension > 0 &&
+            numLabels.toLong * sparseDimension * (numShards + 1) <= ObjectiveFunction.MaxDenseSize &&
+            weights.data.forall(w => w.isInstanceOf[SparseVector[_]] || w.isInstanceOf[HashVector[_]])
+        val denseWeights = if (dense) ObjectiveFunction.flatten(weights.data.asInstanceOf[Array[Vector[Double]]], sparseDimension) else null
+        val contiguous = if (denseFeatures) weights.contiguous else None
+
+        val shardSize = (range.size + numShards - 1) / numShards
+        val shards = (0 until numShards).map(shard => range.slice(shard * shardSize, (shard + 1) * shardSize))
+        val results = (if (numShards > 1) shards.par else shards).map { shard =>
+          val grad = if (dense) null else weights.empty
+          val denseGrad = if (dense) new Array[Double](numLabels * sparseDimension) else null
+          val scores = new Array[Double](numLabels)
+          var ll = 0.0
+          if (contiguous.isDefined)
+            ll = blockedShard(contiguous.get, shard, grad.contiguous.get)
+          else for (i <- shard) {
+            val features = data(i).features
+            var label = 0
+            while (label < numLabels) {
+              scores(label) =
+                if (dense) ObjectiveFunction.dot(denseWeights, label * sparseDimension, features)
+                else dotVV(weights.data(label), features)
+              label += 1
+            }
+            val logNormalizer = softmax(scores)
+            val goldLabel = goldLabels(i)
+            ll -= (scores(goldLabel) - logNormalizer)
+            if (debugChecks)
+              assert(!ll.isNaN, logNormalizer + " " + scores.mkString(",") + " " + weights + " " + data(i))
+
+            // d ll/d weight_kj = \sum_i x_ij ( I(group_i = k) - p_k(x_i;Beta))
+            label = 0
+            while (label < numLabels) {
+              val prob_k = math.exp(scores(label) - logNormalizer)
+              if (debugChecks) assert(prob_k >= 0 && prob_k <= 1, prob_k)
+              if (label == goldLabel || prob_k >= probabilityThreshold) {
+                val scale = -(I(label == goldLabel) - prob_k)
+                if (dense) ObjectiveFunction.axpy(scale, features, denseGrad, label * sparseDimension)
+                else axpy(scale, features, grad(label))
+              }
+              label += 1
+            }
           }
-        }
-        assert(!breeze.linalg.norm.apply[LFMatrix[L,TF],Double,Double](weights,2.0).isNaN, grad)
+          (ll, grad, denseGrad)
+        }.seq
+
+        var ll = results.map(_._1).sum
+        val grad =
+          if (dense) {
+            val summed = results.head._3
+            for (other <- results.tail; j <- 0 until summed.length) summed(j) += other._3(j)
+            val r = weights.empty
+            for (label <- 0 until numLabels)
+              r(label) = ObjectiveFunction.sparseRow(summed, label * sparseDimension, sparseDimension, weights.data(label)).asInstanceOf[TF]
+            r
+          } else {
+            val summed = results.head._2
+            for (other <- results.tail) summed += other._2
+            summed
+          }
+        if (debugChecks)
+          assert(!breeze.linalg.norm.apply[LFMatrix[L,TF],Double,Double](grad,2.0).isNaN, grad)
         grad *= (data.size * 1.0 / range.size)
         ll *= (data.size * 1.0 / range.size)
         (ll,grad)
       }
+
+      // The negative log likelihood of the data in shard, adding its gradient
+      // to grad. Both matrices are numFeatures x numLabels.
+      private def blockedShard(weights: DenseMatrix[Double], shard: IndexedSeq[Int], grad: DenseMatrix[Double]): Double = {
+        val blas = com.github.fommil.netlib.BLAS.getInstance
+        val numFeatures = weights.rows
+        val blockSize = ObjectiveFunction.BlockSize
+        val x = new Array[Double](numFeatures * blockSize)
+        val scores = new Array[Double](numLabels * blockSize)
+        val labelScores = new Array[Double](numLabels)
+        var ll = 0.0
+        for (block <- shard.grouped(blockSize)) {
+          val m = block.length
+          for (b <- 0 until m) {
+            val features = data(block(b)).features.asInstanceOf[DenseVector[Double]]
+            var j = 0
+            while (j < numFeatures) {
+              x(b * numFeatures + j) = features(j)
+              j += 1
+            }
+          }
+          // scores = weights^T x, one column per datum
+          blas.dgemm("T", "N", numLabels, m, numFeatures, 1.0, weights.data, numFeatures, x, numFeatures, 0.0, scores, numLabels)
+          for (b <- 0 until m) {
+            System.arraycopy(scores, b * numLabels, labelScores, 0, numLabels)
+            val logNormalizer = softmax(labelScores)
+            val goldLabel = goldLabels(block(b))
+            ll -= (labelScores(goldLabel) - logNormalizer)
+            if (debugChecks)
+              assert(!ll.isNaN, logNormalizer + " " + labelScores.mkString(",") + " " + data(block(b)))
+            var label = 0
+            while (label < numLabels) {
+              val prob_k = math.exp(labelScores(label) - logNormalizer)
+              scores(b * numLabels + label) =
+                if (label == goldLabel || prob_k >= probabilityThreshold) -(I(label == goldLabel) - prob_k)
+                else 0.0
+              label += 1
+            }
+          }
+          // grad += x scores^T
+          blas.dgemm("N", "T", numFeatures, numLabels, m, 1.0, x, numFeatures, scores, numLabels, 1.0, grad.data, numFeatures)
+        }
+        ll
+      }
+    }
+
+    private object ObjectiveFunction {
+
+      /** The smallest number of data worth a shard of their own. */
+      val MinShardSize = 512
+
+      /** The largest number of doubles in all the dense copies of the weights. */
+      val MaxDenseSize = 1L << 24
+
+      /** The number of dense data scored by each matrix-matrix product. */
+      val BlockSize = 64
+
+      def flatten(rows: Array[Vector[Double]], dimension: Int): Array[Double] = {
+        val flat = new Array[Double](rows.length * dimension)
+        for (label <- 0 until rows.length; (j, v) <- rows(label).activeIterator) flat(label * dimension + j) = v
+        flat
+      }
+
+      def dot(flat: Array[Double], offset: Int, features: TF): Double = features match {
+        case v: SparseVector[Double @unchecked] =>
+          var sum = 0.0
+          var j = 0
+          while (j < v.activeSize) {
+            sum += v.valueAt(j) * flat(offset + v.indexAt(j))
+            j += 1
+          }
+          sum
+        case v: HashVector[Double @unchecked] =>
+          var sum = 0.0
+          for ((j, value) <- v.activeIterator) sum += value * flat(offset + j)
+          sum
+      }
+
+      def axpy(scale: Double, features: TF, flat: Array[Double], offset: Int) {
+        features match {
+          case v: SparseVector[Double @unchecked] =>
+            var j = 0
+            while (j < v.activeSize) {
+              flat(offset + v.indexAt(j)) += scale * v.valueAt(j)
+              j += 1
+            }
+          case v: HashVector[Double @unchecked] =>
+            for ((j, value) <- v.activeIterator) flat(offset + j) += scale * value
+        }
+      }
+
+      // A vector of the same kind as like holding the non-zeros of the row.
+      def sparseRow(flat: Array[Double], offset: Int, dimension: Int, like: TF): Vector[Double] = {
+        var nonZeros = 0
+        for (j <- 0 until dimension) if (flat(offset + j) != 0.0) nonZeros += 1
+        like match {
+          case _: SparseVector[_] =>
+            val index = new Array[Int](nonZeros)
+            val values = new Array[Double](nonZeros)
+            var n = 0
+            for (j <- 0 until dimension; if flat(offset + j) != 0.0) {
+              index(n) = j
+              values(n) = flat(offset + j)
+              n += 1
+            }
+            new SparseVector(index, values, dimension)
+          case _ =>
+            val row = HashVector.zeros[Double](dimension)
+            for (j <- 0 until dimension; if flat(offset + j) != 0.0) row(j) = flat(offset + j)
+            row
+        }
+      }
+
     }
   }
 
@@ -1,17 +1,18 @@
 
 package nak.classify
 
-import breeze.collection.mutable.Beam
 import breeze.linalg.operators.OpMulMatrix
 import breeze.linalg.support.{CanTranspose, CanTraverseValues}
 import breeze.linalg._
 import breeze.math.{MutableRestrictedDomainTensorField, MutableVectorField, MutableInnerProductModule, MutableVectorSpace}
 import breeze.optimize.FirstOrderMinimizer.OptParams
 import breeze.optimize._
+import breeze.util.Index
 import com.typesafe.scalalogging.slf4j.LazyLogging
 import nak.classify.Initializers._
 import nak.data.Example
-import nak.space.DMImplicits
+import nak.cluster.DensePointMatrix
+import nak.space.{DMImplicits, MetricIndex, NeighborIndex, Neighbors, VectorIndex}
 import DMImplicits.decomposedMahalanobis
 import nak.space.nca.NCAObjectives._
 import nak.space.nca.NCAObjectives.{Iso_CSC_SV, Iso_DM_DV}
@@ -25,51 +26,126 @@ import scala.reflect.ClassTag
  *
  *
  */
-class NCA[L, T, M](examples: Iterable[Example[L, T]], k: Int, A: M)(implicit vspace: MutableInnerProductModule[T, Double],
-                                                                    opMulMT: OpMulMatrix.Impl2[M, T, T]) extends Classifier[L, T] {
-
-  import vspace._
+class NCA[L, T, M](examples: Iterable[Example[L, T]],
+                   k: Int,
+                   A: M,
+                   index: NeighborIndex.Builder = NeighborIndex.exact)
+                  (implicit vspace: MutableInnerProductModule[T, Double],
+                   opMulMT: OpMulMatrix.Impl2[M, T, T]) extends Classifier[L, T] with Serializable {
 
   // Iterable of (example, distance) tuples
   type DistanceResult = Iterable[(Example[L, T], Double)]
 
   val projection = A
 
+  private[this] val indexedExamples = examples.toIndexedSeq
+  private[this] val labelIndex = Index(indexedExamples.map(_.label))
+  private[this] val labels = indexedExamples.map(e => labelIndex(e.label)).toArray
+
+  // A by columns, so that projecting a vector is one pass over its active
+  // entries, when A is a matrix and the examples are vectors.
+  private[this] val projectionColumns: Option[(Array[Double], Int)] = A match {
+    case matrix: Matrix[_] if indexedExamples.forall(_.features.isInstanceOf[Vector[_]]) =>
+      val m = matrix.asInstanceOf[Matrix[Double]]
+      val columns = new Array[Double](m.rows * m.cols)
+      m.activeIterator.foreach { case ((r, c), value) => columns(c * m.rows + r) = value }
+      Some((columns, m.rows))
+    case _ => None
+  }
+
+  /**
+   * The training examples projected by A, one per row, so that a query costs
+   * one projection and a Euclidean search in the projected space rather than
+   * a projection of every example. None when A is not a matrix or the
+   * examples are not vectors, in which case the Mahalanobis distance to each
+   * example is computed instead and the classifier can't be serialized.
+   */
+  val projectedExamples: Option[DensePointMatrix] = projectionColumns.map(_ => project(indexedExamples.map(_.features)))
+
+  private[this] val vectorIndex: Option[VectorIndex] = projectedExamples.map(index)
+
+  private[this] val metricIndex: Option[MetricIndex[T]] =
+    if (projectedExamples.isDefined) None
+    else {
+      import vspace._
+      val distance = implicitly[decomposedMahalanobis.Impl3[T, T, M, Double]]
+      Some(new MetricIndex[T](indexedExamples.map(_.features), distance(_, _, A)))
+    }
+
+  /** Project the vectors by A, in parallel. */
+  private[this] def project(vectors: IndexedSeq[T]): DensePointMatrix = {
+    val (columns, rows) = projectionColumns.get
+    val projected = new Array[Double](vectors.length * rows)
+    val work = if (vectors.length > 1) vectors.indices.par else vectors.indices
+    work.foreach { i =>
+      val offset = i * rows
+      def add(c: Int, value: Double) {
+        var r = 0
+        while (r < rows) {
+          projected(offset + r) += value * columns(c * rows + r)
+          r += 1
+        }
+      }
+      vectors(i) match {
+        case v: DenseVector[Double @unchecked] =>
+          var c = 0
+          while (c < v.length) { add(c, v(c)); c += 1 }
+        case v: SparseVector[Double @unchecked] =>
+          var j = 0
+          while (j < v.activeSize) { add(v.indexAt(j), v.valueAt(j)); j += 1 }
+        case v =>
+          v.asInstanceOf[Vector[Double]].activeIterator.foreach { case (c, value) => add(c, value) }
+      }
+    }
+    new DensePointMatrix(projected, vectors.length, rows)
+  }
+
+  private[this] def search(queries: IndexedSeq[T]): Neighbors = vectorIndex match {
+    case Some(vectors) => vectors.search(project(queries), k)
+    case None => metricIndex.get.search(queries, k)
+  }
+
   def testLOO(): Double = {
-    val indexedExamples = examples.zipWithIndex
-    indexedExamples.map({
-      case (ex, i) =>
-        val beam = Beam[(L, Double)](k)(Ordering.by(-(_: (_, Double))._2))
-        beam ++= indexedExamples.
-          withFilter(_._2 != i).
-          map({ case (e, j) => (e.label, decomposedMahalanobis(e.features, ex.features, A))})
-        beam.groupBy(_._1).maxBy(_._2.size)._1 == ex.label
-    }).count(identity _).toDouble / examples.size
+    val neighbors = vectorIndex match {
+      case Some(vectors) => vectors.leaveOneOut(k)
+      case None => metricIndex.get.leaveOneOut(k)
+    }
+    indexedExamples.indices.count(i =>
+      kNearestNeighbor.vote(labels, labelIndex.size, neighbors, i) == labels(i)).toDouble / indexedExamples.size
   }
 
   /*
    * Additional method to extract distances of k nearest neighbors
    */
   def distances(o: T): DistanceResult = {
-    val beam = Beam[(Example[L, T], Double)](k)(Ordering.by(-(_: (_, Double))._2))
-    beam ++= examples.map(e => (e, decomposedMahalanobis(e.features, o, A)))
+    val neighbors = search(IndexedSeq(o))
+    (0 until neighbors.count(0)).map(rank => (indexedExamples(neighbors(0, rank)), neighbors.distance(0, rank)))
   }
 
   /** For the observation, return the max voting label with prob = 1.0
     */
   override def scores(o: T): Counter[L, Double] = {
-    // Beam reverses ordering from min heap to max heap, but we want min heap
-    // since we are tracking distances, not scores.
-    val beam = Beam[(L, Double)](k)(Ordering.by(-(_: (_, Double))._2))
+    val predicted = kNearestNeighbor.vote(labels, labelIndex.size, search(IndexedSeq(o)), 0)
 
-    // Add all examples to beam, tracking label and distance from testing point
-    beam ++= examples.map(e => (e.label, decomposedMahalanobis(e.features, o, A)))
+    // Degenerate discrete distribution with prob = 1.0 at predicted label
+    Counter((labelIndex.get(predicted), 1.0))
+  }
 
-    // Max voting classification rule
-    val predicted = beam.groupBy(_._1).maxBy(_._2.size)._1
+  override def indexedLabels = Some(labelIndex)
 
-    // Degenerate discrete distribution with prob = 1.0 at predicted label
-    Counter((predicted, 1.0))
+  override def scoreInto(o: T, labels: Index[L], scores: Array[Double], offset: Int = 0) {
+    if (labels eq labelIndex) {
+      java.util.Arrays.fill(scores, offset, offset + labelIndex.size, 0.0)
+      scores(offset + kNearestNeighbor.vote(this.labels, labelIndex.size, search(IndexedSeq(o)), 0)) = 1.0
+    } else {
+      super.scoreInto(o, labels, scores, offset)
+    }
+  }
+
+  /** The max voting label for each observation, searched for in parallel. */
+  override def classifyAll(observations: IndexedSeq[T]): IndexedSeq[L] = {
+    val neighbors = search(observations)
+    observations.indices.map(q => labelIndex.get(kNearestNeighbor.vote(labels, labelIndex.size, neighbors, q)))
   }
 
 }
@@ -169,6 +245,41 @@ object NCA {
     }
   }
 
+  /**
+   * Trains A by stochastic gradient descent on NCAStochasticObjective, which
+   * samples batchSize examples per step and compares each only with its
+   * numCandidates nearest neighbours under the current A, for datasets too
+   * large for the O(n^2) batch objectives.
+   */
+  class StochasticTrainer[L](maxIter: Int = 1000,
+                             stepSize: Double = 1.0,
+                             batchSize: Int = 100,
+                             numCandidates: Int = 50,
+                             K: Int = 1,
+                             index: NeighborIndex.Builder = NeighborIndex.exact)
+                            (implicit vspace: MutableInnerProductModule[DenseVector[Double], Double],
+                             canTraverse: CanTraverseValues[DenseVector[Double], Double],
+                             man: ClassTag[DenseVector[Double]]) extends Classifier.Trainer[L, DenseVector[Double]] with LazyLogging {
+    self: DenseInitializer[L, DenseMatrix[Double]] =>
+
+    override type MyClassifier = NCA[L, DenseVector[Double], DenseMatrix[Double]]
+
+    override def train(data: Iterable[Example[L, DenseVector[Double]]]): MyClassifier = {
+      logger.debug(s"Training stochastic NCA-kNN classifier with ${data.size} examples.")
+      val initial: DenseMatrix[Double] = init(data)
+
+      val df = new DenseObjectives.NCAStochasticObjective[L](data, batchSize, numCandidates, index = index)
+
+      implicit val mvIso = new Iso_DM_DV(initial.rows, initial.cols)
+
+      logger.debug(s"Optimizing NCA Matrix.")
+      val sgd = StochasticGradientDescent[DenseVector[Double]](stepSize, maxIter)
+      val A: DenseMatrix[Double] = mvIso.backward(sgd.minimize(df.throughLens[DenseVector[Double]], mvIso.forward(initial)))
+
+      new NCA[L, DenseVector[Double], DenseMatrix[Double]](data, K, A, index)
+    }
+  }
+
   class SparseTrainer[L](opt: OptParams = OptParams(), K: Int = 1)
                         (implicit vspace: MutableInnerProductModule[SparseVector[Double], Double],
                          canTraverse: CanTraverseValues[SparseVector[Double], Double],
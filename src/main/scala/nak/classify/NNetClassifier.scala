@@ -13,7 +13,7 @@ import breeze.optimize.FirstOrderMinimizer.OptParams
  * @author dlwh
  */
 class NNetClassifier[L, T](nnet: NeuralNetwork,
-                           inputEncoder: T=>DenseVector[Double],
+                           inputEncoder: T=>Vector[Double],
                            labelIndex: Index[L]) extends Classifier[L, T] {
   /**For the observation, return the score for each label that has a nonzero
    * score.
@@ -21,6 +21,21 @@ class NNetClassifier[L, T](nnet: NeuralNetwork,
   def scores(o: T): Counter[L, Double] = {
     Encoder.fromIndex(labelIndex).decode(nnet(inputEncoder(o)))
   }
+
+  override def indexedLabels = Some(labelIndex)
+
+  override def scoreInto(o: T, labels: Index[L], scores: Array[Double], offset: Int = 0) {
+    if (labels eq labelIndex) {
+      val r = nnet(inputEncoder(o))
+      var i = 0
+      while (i < r.length) {
+        scores(offset + i) = r(i)
+        i += 1
+      }
+    } else {
+      super.scoreInto(o, labels, scores, offset)
+    }
+  }
 }
 
 object NNetClassifier {
@@ -33,8 +48,9 @@ object NNetClassifier {
       val featureIndex = Index[T]()
       for(d <- data; f <- d.features.keysIterator) featureIndex.index(f)
       val fEncoder = Encoder.fromIndex(featureIndex)
+      // Inputs stay sparse, so the first layer only touches their active features.
       val processedData = data.toArray.par.map { d =>
-        fEncoder.encodeDense(d.features) -> labels(d.label)
+        (fEncoder.encodeSparse(d.features): Vector[Double]) -> labels(d.label)
       }
       // log loss error function log(  input(gold)/(sum of all outputs))
       def errorFun(input: DenseVector[Double], label: Int) = {
@@ -48,7 +64,7 @@ object NNetClassifier {
       val obj = new NNObjective(processedData.toIndexedSeq, errorFun, layers)
       val guess = obj.initialWeightVector
       val weights = opt.minimize(obj,guess)
-      new NNetClassifier(obj.extract(weights), {fEncoder.encodeDense(_:Counter[T, Double], true)}, labels)
+      new NNetClassifier(obj.extract(weights), {fEncoder.encodeSparse(_:Counter[T, Double], true)}, labels)
     }
   }
 }
@@ -19,55 +19,140 @@ package nak.classify
 import math._
 import nak.data._
 import breeze.linalg._
+import breeze.util.{HashIndex, Index, MutableIndex}
 
 
 /** Implements a Naive-Bayes Classifer over bags of words.
  * It automatically trains itself given the collection c of
  * learning examples.
  *
+ * The counts are compiled into a sparse table: for each word, the labels it
+ * has been seen with and log((count + wordSmoothing) / wordSmoothing) for
+ * each. Every other pair scores log(wordSmoothing), which is added for the
+ * whole document length at once, so the table grows with the number of
+ * distinct word and label pairs seen rather than the vocabulary size times
+ * the number of labels. Scoring a document is a pass over its words that
+ * reads each one's entries once, without allocating. Documents can be added
+ * with add, which updates the counts and the entries of their words.
+ *
  * @author dlwh
  * @param c: a collection of example documents
  * @param wordSmoothing: how much smoothing for each word
  * @param classSmoothing: how much smoothing for the class.
  */
-@SerialVersionUID(1L)
-class NaiveBayes[L,W](c: Iterable[Example[L,Counter[W,Double]]],
-    val wordSmoothing:Double=0.05,
-    val classSmoothing:Double=0.01)  extends Classifier[L,Counter[W,Double]] with Serializable {
-
-
-  private val (wordCounts:Counter2[L,W,Double],classCounts: Counter[L,Double], vocabSize: Int) =  {
-    // numYes(c)
-    val classCounts = Counter[L,Double]()
-    // numYes(w|c)
-    val wordCounts = Counter2[L,W,Double]()
-    val myC = c
-    val allWords = scala.collection.mutable.Set[W]()
-    for(e <- myC) {
-       classCounts(e.label) += 1
-       for( k <- e.features.keysIterator)
-	       wordCounts(e.label,k) += e.features(k)
-       allWords ++= e.features.data.keys
-    }
-    val vocabSize = allWords.size
-    classCounts :+= classSmoothing
-    (wordCounts,classCounts,vocabSize)
-  }
+@SerialVersionUID(2L)
+class NaiveBayes[L,W] private (counts: NaiveBayes.Counts[L,W],
+    val wordSmoothing:Double,
+    val classSmoothing:Double)  extends Classifier[L,Counter[W,Double]] with Serializable {
+
+  def this(c: Iterable[Example[L,Counter[W,Double]]], wordSmoothing:Double=0.05, classSmoothing:Double=0.01) =
+    this(NaiveBayes.count(c), wordSmoothing, classSmoothing)
+
+  private val logUnseen = log(wordSmoothing)
+
+  // For each feature f, log(count + wordSmoothing) - logUnseen for the labels
+  // in counts.labelsSeenWith(f), in the same order.
+  private var logRatios: Array[Array[Double]] = null
+  private var logPriors: Array[Double] = null
+  private var logDenoms: Array[Double] = null
+  compile()
+
+  def labelIndex: Index[L] = counts.labelIndex
+  def featureIndex: Index[W] = counts.featureIndex
 
-  val wordTotals = { for(k <- classCounts.keysIterator) yield k -> wordCounts(k,::).sum} toMap
+  def vocabSize = counts.featureIndex.size
+
+  def wordTotals: Map[L,Double] = labelIndex.pairs.map { case (l, i) => l -> counts.wordTotal(i) }.toMap
 
   /** Returns the unnormalized log probability of each class for the given document. */
   def scores(o : Counter[W,Double]) = {
-    val res = Counter[L,Double]()
-    for( l <- classCounts.keysIterator) {
-      val prior = classCounts(l)
-      res(l) += log(prior + classSmoothing)
-      val probWC = wordCounts(l,::)
-      val logDenom = log(wordTotals(l) + vocabSize * wordSmoothing)
-      val logWordProbabilities = o.iterator.map { case (k,v) =>  v * (log(probWC(k) + wordSmoothing) - logDenom)}
-      res(l) += logWordProbabilities.sum
+    val res = new Array[Double](labelIndex.size)
+    scoreInto(o, labelIndex, res)
+    Classifier.toCounter(labelIndex, res)
+  }
+
+  override def indexedLabels = Some(labelIndex)
+
+  override def scoreInto(o: Counter[W,Double], labels: Index[L], scores: Array[Double], offset: Int = 0) {
+    if (labels eq labelIndex) {
+      System.arraycopy(logPriors, 0, scores, offset, labelIndex.size)
+      var length = 0.0
+      for ((k,v) <- o.activeIterator) {
+        addWord(featureIndex(k), v, scores, offset)
+        length += v
+      }
+      addLength(length, scores, offset)
+    } else {
+      super.scoreInto(o, labels, scores, offset)
+    }
+  }
+
+  /**
+   * Write the score of a document given as the feature indices of its words
+   * and their counts, the first length of each, without allocating. Indices
+   * of -1 are unseen words.
+   */
+  def scoreInto(features: Array[Int], values: Array[Double], length: Int, scores: Array[Double], offset: Int) {
+    System.arraycopy(logPriors, 0, scores, offset, labelIndex.size)
+    var total = 0.0
+    var i = 0
+    while (i < length) {
+      addWord(features(i), values(i), scores, offset)
+      total += values(i)
+      i += 1
     }
-    res
+    addLength(total, scores, offset)
+  }
+
+  private def addWord(f: Int, v: Double, scores: Array[Double], offset: Int) {
+    if (f >= 0) {
+      val labels = counts.labelsSeenWith(f)
+      val ratios = logRatios(f)
+      var j = 0
+      while (j < ratios.length) {
+        scores(offset + labels(j)) += v * ratios(j)
+        j += 1
+      }
+    }
+  }
+
+  private def addLength(length: Double, scores: Array[Double], offset: Int) {
+    var l = 0
+    while (l < logDenoms.length) {
+      scores(offset + l) += length * (logUnseen - logDenoms(l))
+      l += 1
+    }
+  }
+
+  /**
+   * Add a document to the counts. Only the table entries of its words, the
+   * priors and the denominators are recomputed. This must not run while
+   * documents are being scored.
+   */
+  def add(example: Example[L,Counter[W,Double]]): this.type = synchronized {
+    counts.add(example.label, example.features)
+    if (logRatios.length < featureIndex.size)
+      logRatios = java.util.Arrays.copyOf(logRatios, math.max(2 * logRatios.length, featureIndex.size))
+    for (k <- example.features.keysIterator)
+      compileWord(featureIndex(k))
+    updatePriorsAndDenoms()
+    this
+  }
+
+  private def compile() {
+    logRatios = new Array[Array[Double]](featureIndex.size)
+    for (f <- 0 until featureIndex.size) compileWord(f)
+    updatePriorsAndDenoms()
+  }
+
+  private def compileWord(f: Int) {
+    logRatios(f) = Array.tabulate(counts.numLabelsSeenWith(f))(j => log(counts.countSeen(f, j) + wordSmoothing) - logUnseen)
+  }
+
+  private def updatePriorsAndDenoms() {
+    // The class counts are smoothed once when counted and again when scored.
+    logPriors = Array.tabulate(labelIndex.size)(l => log(counts.classCount(l) + 2 * classSmoothing))
+    logDenoms = Array.tabulate(labelIndex.size)(l => log(counts.wordTotal(l) + vocabSize * wordSmoothing))
   }
 }
 
@@ -79,4 +164,135 @@ object NaiveBayes {
       new NaiveBayes(data,wordSmoothing,classSmoothing)
     }
   }
+
+  /** Compile a model from counts, which it then owns. */
+  def apply[L,W](counts: Counts[L,W], wordSmoothing: Double = 0.05, classSmoothing: Double = 0.01) =
+    new NaiveBayes(counts, wordSmoothing, classSmoothing)
+
+  /** The number of documents counted by each task when counting in parallel. */
+  private val ShardSize = 4096
+
+  /** Count the documents, counting shards of them in parallel and merging the counts. */
+  def count[L,W](data: Iterable[Example[L,Counter[W,Double]]]): Counts[L,W] = {
+    val shards = data.toIndexedSeq.grouped(ShardSize).toIndexedSeq
+    if (shards.length < 2) {
+      val counts = new Counts[L,W]
+      data.foreach(ex => counts.add(ex.label, ex.features))
+      counts
+    } else {
+      shards.par.map { shard =>
+        val counts = new Counts[L,W]
+        shard.foreach(ex => counts.add(ex.label, ex.features))
+        counts
+      }.reduce(_ merge _)
+    }
+  }
+
+  /**
+   * The number of documents with each label and the total count of each word
+   * in them, indexed by labelIndex and featureIndex. Word counts are kept
+   * only for the labels each word has been seen with. Counts of separate
+   * documents can be merged.
+   */
+  @SerialVersionUID(2L)
+  class Counts[L,W] extends Serializable {
+    val labelIndex: MutableIndex[L] = new HashIndex[L]
+    val featureIndex: MutableIndex[W] = new HashIndex[W]
+
+    private var classCounts = new Array[Double](4)
+    private var wordTotals = new Array[Double](4)
+    // For each feature, the labels it has been seen with and its counts with
+    // them, in the first numSeen(f) entries.
+    private var seenLabels = new Array[Array[Int]](16)
+    private var seenCounts = new Array[Array[Double]](16)
+    private var numSeen = new Array[Int](16)
+
+    def classCount(label: Int) = classCounts(label)
+    def wordTotal(label: Int) = wordTotals(label)
+
+    def wordCount(label: Int, feature: Int) = {
+      val j = find(feature, label)
+      if (j < 0) 0.0 else seenCounts(feature)(j)
+    }
+
+    /** The number of labels the feature has been seen with. */
+    def numLabelsSeenWith(feature: Int) = numSeen(feature)
+
+    /** The count of the feature with the j'th label it has been seen with. */
+    def countSeen(feature: Int, j: Int) = seenCounts(feature)(j)
+
+    /** The labels the feature has been seen with, in the first numLabelsSeenWith entries. */
+    private[classify] def labelsSeenWith(feature: Int): Array[Int] = seenLabels(feature)
+
+    /** Count a document, returning the index of its label. */
+    def add(label: L, features: Counter[W,Double], weight: Double = 1.0): Int = {
+      val l = indexLabel(label)
+      classCounts(l) += weight
+      for ((k,v) <- features.activeIterator) {
+        addCount(l, indexFeature(k), weight * v)
+        wordTotals(l) += weight * v
+      }
+      l
+    }
+
+    /** Add all the counts of other to these. */
+    def merge(other: Counts[L,W]): this.type = {
+      val labels = Array.tabulate(other.labelIndex.size)(ol => indexLabel(other.labelIndex.get(ol)))
+      for (ol <- 0 until labels.length) {
+        classCounts(labels(ol)) += other.classCounts(ol)
+        wordTotals(labels(ol)) += other.wordTotals(ol)
+      }
+      for (of <- 0 until other.featureIndex.size) {
+        val f = indexFeature(other.featureIndex.get(of))
+        for (j <- 0 until other.numSeen(of))
+          addCount(labels(other.seenLabels(of)(j)), f, other.seenCounts(of)(j))
+      }
+      this
+    }
+
+    private def addCount(label: Int, feature: Int, count: Double) {
+      var j = find(feature, label)
+      if (j < 0) {
+        j = numSeen(feature)
+        if (seenLabels(feature) == null) {
+          seenLabels(feature) = new Array[Int](2)
+          seenCounts(feature) = new Array[Double](2)
+        } else if (j == seenLabels(feature).length) {
+          seenLabels(feature) = java.util.Arrays.copyOf(seenLabels(feature), 2 * j)
+          seenCounts(feature) = java.util.Arrays.copyOf(seenCounts(feature), 2 * j)
+        }
+        seenLabels(feature)(j) = label
+        numSeen(feature) += 1
+      }
+      seenCounts(feature)(j) += count
+    }
+
+    private def find(feature: Int, label: Int): Int = {
+      var j = 0
+      while (j < numSeen(feature)) {
+        if (seenLabels(feature)(j) == label) return j
+        j += 1
+      }
+      -1
+    }
+
+    private def indexLabel(label: L): Int = {
+      val l = labelIndex.index(label)
+      if (l == classCounts.length) {
+        classCounts = java.util.Arrays.copyOf(classCounts, 2 * l)
+        wordTotals = java.util.Arrays.copyOf(wordTotals, 2 * l)
+      }
+      l
+    }
+
+    private def indexFeature(word: W): Int = {
+      val f = featureIndex.index(word)
+      if (f == numSeen.length) {
+        seenLabels = java.util.Arrays.copyOf(seenLabels, 2 * f)
+        seenCounts = java.util.Arrays.copyOf(seenCounts, 2 * f)
+        numSeen = java.util.Arrays.copyOf(numSeen, 2 * f)
+      }
+      f
+    }
+  }
 }
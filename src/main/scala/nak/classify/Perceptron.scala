@@ -18,7 +18,7 @@ object Perceptron {
 
     def train(data: Iterable[Example[L, T]]) = {
       val labelIndex = Index(data.map(_.label))
-      val weights = new LFMatrix[L, T](zeroLike(data.head.features), labelIndex)
+      val weights = LFMatrix.zeros[L, T](zeroLike(data.head.features), labelIndex)
       weights(data.head.label); // seed with one label
       val result: MyClassifier = new LinearClassifier[L, UnindexedLFMatrix[L, T], Counter[L, Double], T](
         weights.unindexed, Counter[L, Double]())
@@ -47,8 +47,8 @@ object Perceptron {
 
     def train(data: Iterable[Example[L, T]]) = {
       val labelIndex = Index(data.map(_.label))
-      val weights = new LFMatrix[L, T](zeroLike(data.head.features), labelIndex)
-      val avgWeights = new LFMatrix[L, T](zeroLike(data.head.features), labelIndex)
+      val weights = LFMatrix.zeros[L, T](zeroLike(data.head.features), labelIndex)
+      val avgWeights = LFMatrix.zeros[L, T](zeroLike(data.head.features), labelIndex)
       weights(data.head.label); // seed with one label
       avgWeights(data.head.label); // seed with one label
       import LFMatrix._
@@ -156,7 +156,7 @@ object SVM {
     def train(data: Iterable[Example[L, T]]) = {
       val alphas = data.map { d => Counter[L,Double](d.label -> C)}.toArray
       val labelIndex = Index[L](data.map(_.label))
-      val weights = new LFMatrix[L,T](zeroLike(data.head.features), labelIndex)
+      val weights = LFMatrix.zeros[L,T](zeroLike(data.head.features), labelIndex)
       val allLabels = data.iterator.map(_.label).toSet
       weights(data.head.label); // seed with one label
       var largestChange = 10000.0
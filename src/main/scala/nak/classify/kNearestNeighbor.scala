@@ -2,68 +2,116 @@ package nak.classify
 
 import nak.data.Example
 import breeze.generic.UFunc.UImpl2
-import scala.collection.mutable
-import breeze.storage.Zero
 import breeze.linalg._
-import breeze.collection.mutable.Beam
+import breeze.util.Index
+import nak.cluster.PointMatrix
+import nak.space.{MetricIndex, NeighborIndex, Neighbors, VectorIndex}
+import nak.space.DMImplicits.euclidean
 
 /**
  * kNearestNeighbor
  * 6/8/14
  * @author Gabriel Schubiner <gabeos@cs.washington.edu>
  *
- *
+ * Euclidean distance between vectors is searched with a NeighborIndex built
+ * by index over a contiguous copy of the examples; any other distance is
+ * computed between the query and every example.
  */
 class kNearestNeighbor[L, T, D](c: Iterable[Example[L, T]],
-                                k: Int = 1)(implicit dm: UImpl2[D, T, T, Double]) extends Classifier[L, T] {
+                                k: Int = 1,
+                                index: NeighborIndex.Builder = NeighborIndex.exact)
+                               (implicit dm: UImpl2[D, T, T, Double]) extends Classifier[L, T] {
 
 
   // Iterable of (example, distance) tuples
   type DistanceResult = Iterable[(Example[L,T],Double)]
 
+  private[this] val examples = c.toIndexedSeq
+  private[this] val labelIndex = Index(examples.map(_.label))
+  private[this] val labels = examples.map(e => labelIndex(e.label)).toArray
+
+  private[this] val neighborIndex: NeighborIndex[T] =
+    if (dm.isInstanceOf[euclidean.EuclideanImpl[_, _]] && examples.nonEmpty &&
+      examples.forall(_.features.isInstanceOf[Vector[_]])) {
+      val features = examples.map(_.features.asInstanceOf[Vector[Double]])
+      index(PointMatrix(features, features.head.length)).asInstanceOf[NeighborIndex[T]]
+    } else {
+      new MetricIndex[T](examples.map(_.features), dm(_, _))
+    }
+
+  // Vector indices give squared Euclidean distances.
+  private[this] val squared = neighborIndex.isInstanceOf[VectorIndex]
+
+  /** The fraction of examples classified correctly by their other examples. */
   def testLOO(): Double = {
-    val indexedExamples = c.zipWithIndex
-    indexedExamples.map({case (ex,i) =>
-      val beam = Beam[(L, Double)](k)(Ordering.by(-(_: (_, Double))._2))
-      beam ++= indexedExamples.
-               withFilter(_._2 != i).
-               map({ case (e,j) => (e.label, dm(e.features, ex.features))})
-      beam.groupBy(_._1).maxBy(_._2.size)._1 == ex.label
-    }).count(identity).toDouble / c.size
+    val neighbors = neighborIndex.leaveOneOut(k)
+    examples.indices.count(i => kNearestNeighbor.vote(labels, labelIndex.size, neighbors, i) == labels(i)).toDouble / examples.size
   }
 
   /*
    * Additional method to extract distances of k nearest neighbors
    */
   def distances(o: T): DistanceResult = {
-    val beam = Beam[(Example[L,T], Double)](k)(Ordering.by(-(_: (_, Double))._2))
-    beam ++= c.map(e => (e, dm(e.features, o)))
+    val neighbors = neighborIndex.search(IndexedSeq(o), k)
+    (0 until neighbors.count(0)).map { rank =>
+      val distance = neighbors.distance(0, rank)
+      (examples(neighbors(0, rank)), if (squared) math.sqrt(distance) else distance)
+    }
   }
 
   /** For the observation, return the max voting label with prob = 1.0
     */
   override def scores(o: T): Counter[L, Double] = {
-    // Beam reverses ordering from min heap to max heap, but we want min heap
-    // since we are tracking distances, not scores.
-    val beam = Beam[(L, Double)](k)(Ordering.by(-(_: (_, Double))._2))
+    val predicted = kNearestNeighbor.vote(labels, labelIndex.size, neighborIndex.search(IndexedSeq(o), k), 0)
+
+    // Degenerate discrete distribution with prob = 1.0 at predicted label
+    Counter((labelIndex.get(predicted), 1.0))
+  }
 
-    // Add all examples to beam, tracking label and distance from testing point
-    beam ++= c.map(e => (e.label, dm(e.features, o)))
+  override def indexedLabels = Some(labelIndex)
 
-    // Max voting classification rule
-    val predicted = beam.groupBy(_._1).maxBy(_._2.size)._1
+  override def scoreInto(o: T, labels: Index[L], scores: Array[Double], offset: Int = 0) {
+    if (labels eq labelIndex) {
+      java.util.Arrays.fill(scores, offset, offset + labelIndex.size, 0.0)
+      scores(offset + kNearestNeighbor.vote(this.labels, labelIndex.size, neighborIndex.search(IndexedSeq(o), k), 0)) = 1.0
+    } else {
+      super.scoreInto(o, labels, scores, offset)
+    }
+  }
 
-    // Degenerate discrete distribution with prob = 1.0 at predicted label
-    Counter((predicted, 1.0))
+  /** The max voting label for each observation, searched for in parallel. */
+  override def classifyAll(observations: IndexedSeq[T]): IndexedSeq[L] = {
+    val neighbors = neighborIndex.search(observations, k)
+    observations.indices.map(q => labelIndex.get(kNearestNeighbor.vote(labels, labelIndex.size, neighbors, q)))
   }
 }
 
 object kNearestNeighbor {
 
-  class Trainer[L, T, D](k: Int = 1)(implicit dm: UImpl2[D, T, T, Double]) extends Classifier.Trainer[L, T] {
+  class Trainer[L, T, D](k: Int = 1, index: NeighborIndex.Builder = NeighborIndex.exact)
+                        (implicit dm: UImpl2[D, T, T, Double]) extends Classifier.Trainer[L, T] {
     type MyClassifier = kNearestNeighbor[L, T, D]
 
-    override def train(data: Iterable[Example[L, T]]): MyClassifier = new kNearestNeighbor[L, T, D](data, k)
+    override def train(data: Iterable[Example[L, T]]): MyClassifier = new kNearestNeighbor[L, T, D](data, k, index)
+  }
+
+  /**
+   * The label index with the most votes among the neighbours of query q,
+   * given the label index of each example. Ties go to the label that reached
+   * the count first, so to the one with the nearer neighbours.
+   */
+  private[classify] def vote(labels: Array[Int], numLabels: Int, neighbors: Neighbors, q: Int): Int = {
+    val votes = new Array[Int](numLabels)
+    var best = -1
+    var rank = 0
+    val count = neighbors.count(q)
+    while (rank < count) {
+      val label = labels(neighbors(q, rank))
+      votes(label) += 1
+      if (best < 0 || votes(label) > votes(best)) best = label
+      rank += 1
+    }
+    best
   }
 
 }
@@ -0,0 +1,430 @@
+/*
+ Copyright 2013 ScalaNLP
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package nak.cluster
+
+import breeze.linalg.DenseVector
+import com.typesafe.scalalogging.slf4j.LazyLogging
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicLong
+import scala.util.Random
+
+/**
+  * Lloyd's algorithm for Euclidean distance over points stored in a
+  * PointMatrix. This is what Kmeans uses for DenseVector and SparseVector
+  * points with the default Euclidean distance.
+  *
+  * The centroids of a run live in one row-major array that is updated in
+  * place, and distances are computed as ||x||^2 - 2 x.c + ||c||^2 with the
+  * squared norms of the points computed once and those of the centroids once
+  * per iteration, so an iteration allocates nothing per point. Restarts run
+  * in parallel, and so does the assignment of points to centroids when there
+  * are many points.
+  *
+  * With HamerlyAcceleration or ElkanAcceleration, bounds on the distances
+  * from each point to the centroids are kept across iterations, so that after
+  * the first few iterations most distances needn't be computed at all;
+  * prunedFraction tells how many were skipped.
+  *
+  * @param points the points to be clustered
+  * @param minChangeInDispersion stop when the dispersion changes by less than this
+  * @param maxIterations the maximum number of iterations of each run
+  * @param seeding how to choose the initial centroids of each run
+  * @param acceleration how to skip distance computations
+  */
+class EuclideanKmeans(
+  points: PointMatrix,
+  minChangeInDispersion: Double = 0.0001,
+  maxIterations: Int = 100,
+  fixedSeedForRandom: Boolean = false,
+  seeding: Seeding = RandomSeeding,
+  acceleration: Acceleration = NoAcceleration
+) extends LazyLogging {
+
+  private[this] val random =
+    if (fixedSeedForRandom) new Random(13)
+    else new Random(compat.Platform.currentTime)
+
+  private[this] val n = points.numPoints
+  private[this] val d = points.dimension
+  private[this] val totalSquaredNorm = points.squaredNorms.sum
+
+  private[this] val evaluated = new AtomicLong
+  private[this] val possible = new AtomicLong
+
+  // Elkan's lower bounds take n * k doubles for each restart running at
+  // once. Finished restarts leave theirs here for the next one, and run
+  // releases them when it returns.
+  private[this] val spareLowerBounds = new ConcurrentLinkedQueue[Array[Double]]
+
+  /**
+    * The fraction of point-to-centroid distances that the last call to run
+    * didn't have to compute, out of the n * k per iteration of plain Lloyd's.
+    */
+  def prunedFraction: Double =
+    if (possible.get == 0) 0.0 else 1.0 - evaluated.get.toDouble / possible.get
+
+  /**
+    * Run k-means from the given number of starting points, in parallel.
+    *
+    * @return A pair, the first element of which is the dispersion for the best
+    *     set of centroids found, and the second element of which is that set of
+    *     centroids, as views of one array.
+    */
+  def run(k: Int, restarts: Int = 25): (Double, IndexedSeq[DenseVector[Double]]) = {
+    require(k > 0 && k <= n, "k must be between 1 and the number of points.")
+    evaluated.set(0)
+    possible.set(0)
+    val seeds = Array.fill(restarts)(random.nextLong)
+    val (bestDispersion, bestCentroids) =
+      seeds.toIndexedSeq.par.map(seed => moveCentroids(chooseCentroids(k, new Random(seed)), k)).minBy(_._1)
+    spareLowerBounds.clear()
+    logger.debug("Dispersion: " + bestDispersion + ", pruned fraction: " + prunedFraction)
+    (bestDispersion, asVectors(bestCentroids, k))
+  }
+
+  /**
+    * Run k-means from the given initial centroids, stored row-major, which are
+    * updated in place.
+    *
+    * @return the dispersion of the points around the centroids before the last update
+    */
+  def moveCentroids(centroids: Array[Double], k: Int): (Double, Array[Double]) = acceleration match {
+    case NoAcceleration => lloyd(centroids, k)
+    case HamerlyAcceleration => bounded(centroids, k, elkan = false)
+    case ElkanAcceleration => bounded(centroids, k, elkan = true)
+  }
+
+  private[this] def lloyd(centroids: Array[Double], k: Int) = {
+    val centroidNorms = new Array[Double](k)
+    val memberships = new Array[Int](n)
+    val counts = new Array[Int](k)
+    var iteration = 0
+    var lastDispersion = Double.PositiveInfinity
+    var dispersionChange = Double.PositiveInfinity
+    while (iteration < maxIterations && dispersionChange > minChangeInDispersion) {
+      computeSquaredNorms(centroids, k, centroidNorms)
+      val dispersion = assign(centroids, centroidNorms, k, memberships)
+      evaluated.addAndGet(n.toLong * k)
+      possible.addAndGet(n.toLong * k)
+      updateCentroids(memberships, centroids, counts, k)
+      dispersionChange = math.abs(lastDispersion - dispersion)
+      lastDispersion = dispersion
+      logger.debug(s"Iteration  $iteration $lastDispersion $dispersionChange")
+      iteration += 1
+    }
+    (lastDispersion, centroids)
+  }
+
+  /**
+    * Lloyd's algorithm with Hamerly's bounds, or Elkan's. Both keep upper(i),
+    * an upper bound on the distance from point i to its centroid, and lower
+    * bounds on its distance to other centroids: one for all of them (Hamerly)
+    * or one for each (Elkan). When a centroid moves by m, the bounds of the
+    * points grow or shrink by m. A point whose upper bound is below its lower
+    * bounds, or below half the distance from its centroid to the nearest other
+    * centroid, can't change centroid.
+    */
+  private[this] def bounded(centroids: Array[Double], k: Int, elkan: Boolean) = {
+    if (elkan)
+      require(n.toLong * k <= Int.MaxValue, "Too many points and centroids for Elkan's bounds; use Hamerly's.")
+    val centroidNorms = new Array[Double](k)
+    val memberships = new Array[Int](n)
+    val counts = new Array[Int](k)
+    val upper = new Array[Double](n)
+    // Every bound is set by the first scan, so spare bounds need no clearing.
+    val lower =
+      if (!elkan) new Array[Double](n)
+      else Option(spareLowerBounds.poll()).filter(_.length == n * k).getOrElse(new Array[Double](n * k))
+    val previous = new Array[Double](k * d)
+    val moved = new Array[Double](k)
+    val halfDistances = new Array[Double](if (elkan) k * k else 0)
+    val halfGaps = new Array[Double](k)
+
+    def distance(i: Int, c: Int) =
+      math.sqrt(points.squaredDistance(i, centroids, c * d, centroidNorms(c)))
+
+    // Compute the distance from point i to every centroid and reset its bounds.
+    def scan(i: Int) {
+      var best = 0
+      var bestDistance = Double.PositiveInfinity
+      var second = Double.PositiveInfinity
+      var c = 0
+      while (c < k) {
+        val distanceToC = distance(i, c)
+        if (elkan) lower(i * k + c) = distanceToC
+        if (distanceToC < bestDistance) {
+          second = bestDistance
+          bestDistance = distanceToC
+          best = c
+        } else if (distanceToC < second) {
+          second = distanceToC
+        }
+        c += 1
+      }
+      memberships(i) = best
+      upper(i) = bestDistance
+      if (!elkan) lower(i) = second
+    }
+
+    def hamerlyRange(start: Int, end: Int) = {
+      var evaluations = 0L
+      var i = start
+      while (i < end) {
+        val a = memberships(i)
+        val bound = math.max(halfGaps(a), lower(i))
+        if (upper(i) > bound) {
+          upper(i) = distance(i, a)
+          evaluations += 1
+          if (upper(i) > bound) {
+            scan(i)
+            evaluations += k
+          }
+        }
+        i += 1
+      }
+      evaluations.toDouble
+    }
+
+    def elkanRange(start: Int, end: Int) = {
+      var evaluations = 0L
+      var i = start
+      while (i < end) {
+        var a = memberships(i)
+        var u = upper(i)
+        if (u > halfGaps(a)) {
+          var tight = false
+          var c = 0
+          while (c < k) {
+            if (c != a && u > lower(i * k + c) && u > halfDistances(a * k + c)) {
+              if (!tight) {
+                u = distance(i, a)
+                lower(i * k + a) = u
+                tight = true
+                evaluations += 1
+              }
+              if (u > lower(i * k + c) && u > halfDistances(a * k + c)) {
+                val distanceToC = distance(i, c)
+                lower(i * k + c) = distanceToC
+                evaluations += 1
+                if (distanceToC < u) { a = c; u = distanceToC }
+              }
+            }
+            c += 1
+          }
+          memberships(i) = a
+          upper(i) = u
+        }
+        i += 1
+      }
+      evaluations.toDouble
+    }
+
+    var iteration = 0
+    var lastDispersion = Double.PositiveInfinity
+    var dispersionChange = Double.PositiveInfinity
+    while (iteration < maxIterations && dispersionChange > minChangeInDispersion) {
+      computeSquaredNorms(centroids, k, centroidNorms)
+      val evaluations =
+        if (iteration == 0)
+          Blocks.sum(n) { (start, end) => (start until end).foreach(scan); (end - start).toDouble * k }
+        else {
+          computeHalfDistances(centroids, k, halfDistances, halfGaps, elkan)
+          Blocks.sum(n)(if (elkan) elkanRange else hamerlyRange)
+        }
+      evaluated.addAndGet(evaluations.toLong)
+      possible.addAndGet(n.toLong * k)
+
+      System.arraycopy(centroids, 0, previous, 0, k * d)
+      updateCentroids(memberships, centroids, counts, k)
+      val dispersion = dispersionAround(previous, centroidNorms, centroids, counts, k)
+
+      // Move the bounds by how far the centroids moved.
+      var farthest = -1
+      var c = 0
+      while (c < k) {
+        var sum = 0.0
+        var j = c * d
+        while (j < (c + 1) * d) {
+          val difference = centroids(j) - previous(j)
+          sum += difference * difference
+          j += 1
+        }
+        moved(c) = math.sqrt(sum)
+        if (farthest < 0 || moved(c) > moved(farthest)) farthest = c
+        c += 1
+      }
+      val secondFarthest =
+        if (k == 1) 0.0 else (0 until k).filter(_ != farthest).map(moved).max
+      Blocks.sum(n) { (start, end) =>
+        var i = start
+        while (i < end) {
+          val a = memberships(i)
+          upper(i) += moved(a)
+          if (elkan) {
+            var c = 0
+            while (c < k) {
+              lower(i * k + c) = math.max(0.0, lower(i * k + c) - moved(c))
+              c += 1
+            }
+          } else {
+            lower(i) -= (if (a == farthest) secondFarthest else moved(farthest))
+          }
+          i += 1
+        }
+        0.0
+      }
+
+      dispersionChange = math.abs(lastDispersion - dispersion)
+      lastDispersion = dispersion
+      logger.debug(s"Iteration  $iteration $lastDispersion $dispersionChange")
+      iteration += 1
+    }
+    if (elkan) spareLowerBounds.offer(lower)
+    (lastDispersion, centroids)
+  }
+
+  /**
+    * Assign each point to its nearest centroid.
+    *
+    * @return the dispersion of the points around their centroids
+    */
+  def assign(centroids: Array[Double], centroidNorms: Array[Double], k: Int, memberships: Array[Int]) =
+    Blocks.sum(n) { (start, end) =>
+      var dispersion = 0.0
+      var i = start
+      while (i < end) {
+        var best = 0
+        var bestDistance = Double.PositiveInfinity
+        var c = 0
+        while (c < k) {
+          val distance = points.squaredDistance(i, centroids, c * d, centroidNorms(c))
+          if (distance < bestDistance) { bestDistance = distance; best = c }
+          c += 1
+        }
+        memberships(i) = best
+        dispersion += bestDistance
+        i += 1
+      }
+      dispersion
+    }
+  /**
+    * Move each centroid to the mean of its points, in place. Centroids without
+    * any points stay where they are.
+    */
+  def updateCentroids(memberships: Array[Int], centroids: Array[Double], counts: Array[Int], k: Int) {
+    java.util.Arrays.fill(counts, 0)
+    for (i <- 0 until n) counts(memberships(i)) += 1
+    for (c <- 0 until k; if counts(c) > 0)
+      java.util.Arrays.fill(centroids, c * d, (c + 1) * d, 0.0)
+    var i = 0
+    while (i < n) {
+      val c = memberships(i)
+      points.addTo(i, centroids, c * d)
+      i += 1
+    }
+    for (c <- 0 until k; if counts(c) > 0) {
+      var j = c * d
+      while (j < (c + 1) * d) { centroids(j) /= counts(c); j += 1 }
+    }
+  }
+
+  /**
+    * Store the squared norms of the centroids in norms.
+    */
+  def computeSquaredNorms(centroids: Array[Double], k: Int, norms: Array[Double]) {
+    var c = 0
+    while (c < k) {
+      var sum = 0.0
+      var j = c * d
+      val end = j + d
+      while (j < end) { sum += centroids(j) * centroids(j); j += 1 }
+      norms(c) = sum
+      c += 1
+    }
+  }
+
+  /**
+    * The dispersion of the points around the previous centroids, given the
+    * centroids that are the means of the same memberships. For the points x
+    * with mean m and count n of a centroid p, the sum of ||x - p||^2 is
+    * sum ||x||^2 - 2n p.m + n ||p||^2, so this needs no pass over the points.
+    */
+  private[this] def dispersionAround(
+    previous: Array[Double],
+    previousNorms: Array[Double],
+    means: Array[Double],
+    counts: Array[Int],
+    k: Int
+  ) = {
+    var dispersion = totalSquaredNorm
+    var c = 0
+    while (c < k) {
+      if (counts(c) > 0) {
+        var dot = 0.0
+        var j = c * d
+        while (j < (c + 1) * d) { dot += previous(j) * means(j); j += 1 }
+        dispersion += counts(c) * (previousNorms(c) - 2 * dot)
+      }
+      c += 1
+    }
+    math.max(0.0, dispersion)
+  }
+
+  /**
+    * Store half the distance between each pair of centroids, if all of them
+    * are wanted, and half the distance from each centroid to the nearest other.
+    */
+  private[this] def computeHalfDistances(
+    centroids: Array[Double],
+    k: Int,
+    halfDistances: Array[Double],
+    halfGaps: Array[Double],
+    all: Boolean
+  ) {
+    java.util.Arrays.fill(halfGaps, Double.PositiveInfinity)
+    for (a <- 0 until k; b <- a + 1 until k) {
+      var sum = 0.0
+      var j = 0
+      while (j < d) {
+        val difference = centroids(a * d + j) - centroids(b * d + j)
+        sum += difference * difference
+        j += 1
+      }
+      val half = 0.5 * math.sqrt(sum)
+      if (all) {
+        halfDistances(a * k + b) = half
+        halfDistances(b * k + a) = half
+      }
+      halfGaps(a) = math.min(halfGaps(a), half)
+      halfGaps(b) = math.min(halfGaps(b), half)
+    }
+  }
+
+  /**
+    * Copy the points chosen by the seeding into a new centroid array.
+    */
+  private[this] def chooseCentroids(k: Int, random: Random) = {
+    val centroids = new Array[Double](k * d)
+    val chosen = seeding.choose(k, n, points.squaredDistanceBetween, random)
+    for (c <- 0 until k)
+      points.addTo(chosen(c), centroids, c * d)
+    centroids
+  }
+
+  private[this] def asVectors(centroids: Array[Double], k: Int) =
+    (0 until k).map(c => new DenseVector(centroids, c * d, 1, d))
+
+}
@@ -4,8 +4,9 @@ import breeze.numerics._
 import breeze.linalg._
 import breeze.util._
 import breeze.util.Implicits._
-import scala.collection.mutable.{ Set => MutableSet, ListBuffer }
+import scala.collection.mutable.{ ListBuffer, Queue }
 import GDBSCAN._
+import nak.util.GrowableIntArray
 
 /**
  * A clustering algorithm for density based clustering.
@@ -15,6 +16,7 @@ import GDBSCAN._
  * @param isCorePoint - determine if this point is a core point based on its neighbourhood
  * @see http://en.wikipedia.org/wiki/DBSCAN
  * @see http://citeseerx.ist.psu.edu/viewdoc/summary?doi=10.1.1.71.1980
+ * @see [[nak.cluster.DBSCAN.cluster]] for DBSCAN with Euclidean distance over a spatial index
  */
 class GDBSCAN[T](
   getNeighbours: (Point[T], Seq[Point[T]]) => Seq[Point[T]],
@@ -27,49 +29,56 @@ class GDBSCAN[T](
    * @return clusters - a list of clusters with
    */
   def cluster(data: DenseMatrix[T]): Seq[Cluster[T]] = {
-    // Visited - using row indices
-    val visited = MutableSet[Point[T]]()
-    val clustered = MutableSet[Point[T]]()
+    // Visited and clustered - using row indices
+    val visited = new java.util.BitSet(data.rows)
+    val clustered = new java.util.BitSet(data.rows)
 
     // Init points
     val points = for (row <- 0 until data.rows) yield Point(row)(data(row, ::).inner)
 
     // Start clustering
     points.collect {
-      case point @ Point(row) if !(visited contains point) =>
+      case point @ Point(row) if !visited.get(row) =>
+        visited set row
         val neighbours = getNeighbours(point, points.filterNot(_.row == point.row))
         if (isCorePoint(point, neighbours)) {
-          visited add point
           val cluster = Cluster[T](row)
           expand(point, neighbours, cluster)(points, visited, clustered)
           Some(cluster)
         } else {
-          None // noise
+          None // noise, unless a cluster reaches it later
         }
     }.flatten // remove noise
   }
 
-  private def expand(point: Point[T], neighbours: Seq[Point[T]], cluster: Cluster[T])(implicit points: Seq[Point[T]], visited: MutableSet[Point[T]], clustered: MutableSet[Point[T]]) {
-    cluster add point
-    clustered add point
-    neighbours.foldLeft(neighbours) {
-      case (neighbourhood, neighbour @ Point(row)) =>
-        // if not visited yet, create a new neighbourhood
-        val newNeighbours = if (!(visited contains neighbour)) {
-          visited add neighbour
-          getNeighbours(neighbour, points.filterNot(_.row == neighbour.row))
-        } else {
-          Seq.empty
-        }
-        // Add to cluster if neighbour point isn't assigned to a  cluster yet
-        if (!(clustered contains neighbour)) {
-          cluster add neighbour
-          clustered add neighbour
-        }
-        // if the neighbour point is a cluster, join the neighbourhood
-        if (isCorePoint(neighbour, neighbourhood)) neighbourhood ++ newNeighbours else neighbourhood
+  /**
+   * Grow the cluster from a core point breadth-first: every point reachable
+   * through a chain of core points joins, unless an earlier cluster already
+   * has it, and the neighbourhoods of the core points among them are added to
+   * the queue.
+   */
+  private def expand(point: Point[T], neighbours: Seq[Point[T]], cluster: Cluster[T])(implicit points: Seq[Point[T]], visited: java.util.BitSet, clustered: java.util.BitSet) {
+    val queue = Queue[Point[T]]()
+    def join(neighbourhood: Seq[Point[T]]) {
+      for (neighbour <- neighbourhood if !clustered.get(neighbour.row)) {
+        cluster add neighbour
+        clustered set neighbour.row
+        queue enqueue neighbour
+      }
     }
 
+    cluster add point
+    clustered set point.row
+    join(neighbours)
+    while (queue.nonEmpty) {
+      val neighbour = queue.dequeue()
+      // if not visited yet, and a core point, join its neighbourhood
+      if (!visited.get(neighbour.row)) {
+        visited set neighbour.row
+        val newNeighbours = getNeighbours(neighbour, points.filterNot(_.row == neighbour.row))
+        if (isCorePoint(neighbour, newNeighbours)) join(newNeighbours)
+      }
+    }
   }
 }
 
@@ -122,4 +131,164 @@ object DBSCAN {
   def isCorePoint(minPoints: Double)(point: Point[Double], neighbours: Seq[Point[Double]]): Boolean = {
     neighbours.size >= minPoints
   }
+
+  /**
+   * DBSCAN with Euclidean distance, finding neighbours with a spatial index
+   * built once over the data, and keeping track of the points with bitsets.
+   * Gives the same clusters as GDBSCAN with getNeighbours(epsilon,
+   * Kmeans.euclideanDistance) and isCorePoint(minPoints), when the index is
+   * exact.
+   *
+   * @param epsilon - minimum distance
+   * @param minPoints - minimal number of neighbours of a core point
+   * @param index - builds the index; see [[nak.cluster.SpatialIndex]]
+   */
+  def cluster(data: DenseMatrix[Double], epsilon: Double, minPoints: Int, index: SpatialIndex.Builder = SpatialIndex.auto): Seq[Cluster[Double]] = {
+    val spatialIndex = index(PointMatrix.rows(data), epsilon)
+    val n = data.rows
+    val visited = new java.util.BitSet(n)
+    val clustered = new java.util.BitSet(n)
+    val neighbours = new GrowableIntArray
+    val queue = new GrowableIntArray
+    val clusters = ListBuffer[Cluster[Double]]()
+
+    for (row <- 0 until n if !visited.get(row)) {
+      visited set row
+      neighbours.clear()
+      spatialIndex.neighbours(row, neighbours)
+      if (neighbours.length >= minPoints) {
+        val cluster = Cluster[Double](row)
+        def join(i: Int) {
+          if (!clustered.get(i)) {
+            cluster add Point(i)(data(i, ::).inner)
+            clustered set i
+            queue += i
+          }
+        }
+        queue.clear()
+        join(row)
+        var head = 1
+        for (k <- 0 until neighbours.length) join(neighbours(k))
+        while (head < queue.length) {
+          val i = queue(head)
+          head += 1
+          if (!visited.get(i)) {
+            visited set i
+            neighbours.clear()
+            spatialIndex.neighbours(i, neighbours)
+            if (neighbours.length >= minPoints)
+              for (k <- 0 until neighbours.length) join(neighbours(k))
+          }
+        }
+        clusters += cluster
+      }
+    }
+    clusters
+  }
+
+  /**
+   * DBSCAN.cluster on all cores. Whether each point is a core point is found
+   * in parallel, and then, also in parallel, neighbouring core points are
+   * joined with a lock-free union-find that always makes the smallest row of a
+   * set its root, so each set of core points is a cluster whose id is its
+   * smallest row, just as in the sequential version. Last, each border point
+   * joins the neighbouring cluster with the smallest id, which is the cluster
+   * the sequential version reaches it from first. The clusters are the same
+   * as those of DBSCAN.cluster, but the points of each are in row order.
+   *
+   * Each point's neighbours are found twice, rather than stored, so memory
+   * stays linear in the number of points.
+   */
+  def clusterParallel(data: DenseMatrix[Double], epsilon: Double, minPoints: Int, index: SpatialIndex.Builder = SpatialIndex.auto): Seq[Cluster[Double]] = {
+    val spatialIndex = index(PointMatrix.rows(data), epsilon)
+    val n = data.rows
+    val isCore = new Array[Boolean](n)
+    Blocks.foreach(n) { (start, end) =>
+      val neighbours = new GrowableIntArray
+      for (i <- start until end) {
+        neighbours.clear()
+        spatialIndex.neighbours(i, neighbours)
+        isCore(i) = neighbours.length >= minPoints
+      }
+    }
+
+    val sets = new ConcurrentUnionFind(n)
+    Blocks.foreach(n) { (start, end) =>
+      val neighbours = new GrowableIntArray
+      for (i <- start until end if isCore(i)) {
+        neighbours.clear()
+        spatialIndex.neighbours(i, neighbours)
+        for (k <- 0 until neighbours.length) {
+          val j = neighbours(k)
+          if (j > i && isCore(j)) sets.union(i, j)
+        }
+      }
+    }
+
+    // The cluster of each point, by the smallest row of its core points.
+    val clusterOf = Array.fill(n)(-1)
+    Blocks.foreach(n) { (start, end) =>
+      val neighbours = new GrowableIntArray
+      for (i <- start until end) {
+        if (isCore(i)) clusterOf(i) = sets.find(i)
+        else {
+          neighbours.clear()
+          spatialIndex.neighbours(i, neighbours)
+          for (k <- 0 until neighbours.length if isCore(neighbours(k))) {
+            val id = sets.find(neighbours(k))
+            if (clusterOf(i) < 0 || id < clusterOf(i)) clusterOf(i) = id
+          }
+        }
+      }
+    }
+
+    val clusters = scala.collection.mutable.LinkedHashMap[Int, Cluster[Double]]()
+    for (i <- 0 until n if isCore(i) && clusterOf(i) == i)
+      clusters(i) = Cluster[Double](i)
+    for (i <- 0 until n if clusterOf(i) >= 0)
+      clusters(clusterOf(i)) add Point(i)(data(i, ::).inner)
+    clusters.values.toList
+  }
+}
+
+/**
+ * A union-find over 0 until size that many threads can use at once. Unions
+ * link the larger root under the smaller with a compare-and-set that fails if
+ * the larger one stopped being a root, and finds halve their paths, so the
+ * root of each set is always its smallest element.
+ *
+ * For more details, see:
+ *   Anderson and Woll (1991), Wait-free Parallel Algorithms for the Union-Find Problem.
+ */
+class ConcurrentUnionFind(size: Int) extends Serializable {
+
+  private[this] val parents = new java.util.concurrent.atomic.AtomicIntegerArray(size)
+  for (i <- 0 until size) parents.set(i, i)
+
+  def find(element: Int): Int = {
+    var x = element
+    var parent = parents.get(x)
+    while (parent != x) {
+      val grandparent = parents.get(parent)
+      parents.compareAndSet(x, parent, grandparent)
+      x = grandparent
+      parent = parents.get(x)
+    }
+    x
+  }
+
+  def union(a: Int, b: Int) {
+    var done = false
+    while (!done) {
+      val rootA = find(a)
+      val rootB = find(b)
+      if (rootA == rootB) done = true
+      else {
+        val low = math.min(rootA, rootB)
+        val high = math.max(rootA, rootB)
+        done = parents.compareAndSet(high, high, low)
+      }
+    }
+  }
+
 }
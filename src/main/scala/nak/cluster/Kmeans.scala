@@ -31,12 +31,22 @@ import nak.util.CollectionUtil._
   * A class for computing clusters for a set of points using k-means (specifically,
   *  Lloyd's algorithm).
   *
+  * When the points are DenseVectors or SparseVectors and the distance is the
+  * default Euclidean distance, run hands the work to EuclideanKmeans, which
+  * stores the points contiguously and runs the restarts in parallel. Other
+  * points and distances use the generic implementation here.
+  *
   * @param points	the set of points to be clustered
   * @param minChangeInDispersion each iteration of the algorithm produces a dispersion
   *    value, which is the squared sum distance from each centroid to the points it is
   *    responsible for. The minChangeInDispersion is a value that tells the algorithm to
   *    stop when change from one iteration to the next is less than this value.
   * @param maxIterations the maximum number of iterations to run k-means for
+  * @param seeding how to choose the initial centroids: RandomSeeding, PlusPlusSeeding
+  *    (k-means++) or ParallelSeeding (k-means||)
+  * @param acceleration how EuclideanKmeans skips distance computations, with
+  *    HamerlyAcceleration or ElkanAcceleration; the generic implementation
+  *    always computes every distance
   *
  */
 class Kmeans[T](
@@ -44,7 +54,9 @@ class Kmeans[T](
   distanceFun: (T,T)=>Double = Kmeans.euclideanDistance,
   minChangeInDispersion: Double = 0.0001,
   maxIterations: Int = 100,
-  fixedSeedForRandom: Boolean = false
+  fixedSeedForRandom: Boolean = false,
+  seeding: Seeding = RandomSeeding,
+  acceleration: Acceleration = NoAcceleration
 )(implicit space: MutableInnerProductVectorSpace[T, Double]) extends LazyLogging {
   import space._
 
@@ -64,8 +76,16 @@ class Kmeans[T](
     *     set of centroids found, and the second element of which is that set of
     *     centroids.
     */
-  def run(k: Int, restarts: Int = 25): (Double, IndexedSeq[T]) = {
-    val runResults = (1 to restarts).map(_ => moveCentroids(chooseRandomCentroids(k)))
+  def run(k: Int, restarts: Int = 25): (Double, IndexedSeq[T]) = euclideanEngine match {
+    case Some((engine, toPoint)) =>
+      val (dispersion, centroids) = engine.run(k, restarts)
+      (dispersion, centroids.map(toPoint))
+    case None =>
+      runGeneric(k, restarts)
+  }
+
+  private[this] def runGeneric(k: Int, restarts: Int) = {
+    val runResults = (1 to restarts).map(_ => moveCentroids(chooseCentroids(k)))
     val (bestDispersion, bestCentroids) = runResults.minBy(_._1)
     logger.debug("Dispersion: " + bestDispersion)
     (bestDispersion, bestCentroids)
@@ -136,10 +156,40 @@ class Kmeans[T](
   }
 
   /**
-    * Randomly choose k of the points as initial centroids.
+    * The specialized engine for Euclidean distance over dense or sparse
+    * vectors, if it applies, with a function to turn its centroids into points.
+    */
+  private[this] lazy val euclideanEngine: Option[(EuclideanKmeans, DenseVector[Double] => T)] = {
+    def engine(matrix: PointMatrix) =
+      new EuclideanKmeans(matrix, minChangeInDispersion, maxIterations, fixedSeedForRandom, seeding, acceleration)
+    if (points.isEmpty || !(distanceFun eq Kmeans.euclideanDistance))
+      None
+    else if (points.forall(_.isInstanceOf[DenseVector[_]]))
+      Some((engine(PointMatrix.dense(points.asInstanceOf[IndexedSeq[DenseVector[Double]]])),
+        (centroid: DenseVector[Double]) => centroid.copy.asInstanceOf[T]))
+    else if (points.forall(_.isInstanceOf[SparseVector[_]]))
+      Some((engine(PointMatrix.sparse(points.asInstanceOf[IndexedSeq[SparseVector[Double]]])),
+        (centroid: DenseVector[Double]) => Kmeans.toSparse(centroid).asInstanceOf[T]))
+    else
+      None
+  }
+
+  /**
+    * The fraction of distance computations skipped by the last run, which is
+    * zero unless it used EuclideanKmeans with an acceleration.
+    */
+  def prunedFraction: Double = euclideanEngine.map(_._1.prunedFraction).getOrElse(0.0)
+
+  /**
+    * Choose k of the points as initial centroids with the seeding.
     */
-  private[this] def chooseRandomCentroids(k: Int) =
-    random.shuffle(points).take(k)
+  private[this] def chooseCentroids(k: Int) = {
+    val squaredDistance = (i: Int, j: Int) => {
+      val distance = distanceFun(points(i), points(j))
+      distance * distance
+    }
+    seeding.choose(k, points.length, squaredDistance, random).toIndexedSeq.map(points)
+  }
 
 }
 
@@ -171,4 +221,12 @@ object Kmeans {
     norm(a-b, 2)
   }
 
+  /**
+    * Keep the non-zero entries of a centroid.
+    */
+  private[cluster] def toSparse(centroid: DenseVector[Double]) = {
+    val active = (0 until centroid.length).filter(centroid(_) != 0.0).toArray
+    new SparseVector(active, active.map(centroid(_)), centroid.length)(breeze.storage.Zero(0.0))
+  }
+
 }
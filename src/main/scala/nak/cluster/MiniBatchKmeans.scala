@@ -0,0 +1,278 @@
+/*
+ Copyright 2013 ScalaNLP
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package nak.cluster
+
+import breeze.linalg.{DenseVector, Vector}
+import com.typesafe.scalalogging.slf4j.LazyLogging
+import java.io._
+import scala.util.Random
+
+/**
+  * Mini-batch k-means for Euclidean distance, for points that come from an
+  * Iterator and needn't fit in memory. Each batch of points is assigned to the
+  * current centroids, and each centroid then takes a step towards the points
+  * assigned to it with a learning rate of one over the number of points it has
+  * been given so far, so that it is the mean of all of them. The centroids are
+  * seeded from the first batch.
+  *
+  * run consumes a finite Iterator, and stream keeps updating the centroids
+  * from an unbounded one, checkpointing them to a file every so often. Both
+  * give the (dispersion, centroids) pair that Kmeans gives, and memberships
+  * gives cluster indices for ClusterConfusionMatrix and ClusterReport.
+  *
+  * For more details, see:
+  *   Sculley (2010), Web-Scale K-Means Clustering.
+  *
+  * @param k the number of clusters
+  * @param dimension the length of the points
+  * @param batchSize the number of points in each batch, at least k
+  * @param maxCount the number of points after which a centroid's learning rate
+  *    stops falling, so that a stream can keep moving the centroids; by default
+  *    it falls forever
+  * @param seeding how to choose the initial centroids from the first batch
+  */
+class MiniBatchKmeans(
+  k: Int,
+  dimension: Int,
+  batchSize: Int = 1000,
+  maxCount: Long = Long.MaxValue,
+  seeding: Seeding = PlusPlusSeeding,
+  fixedSeedForRandom: Boolean = false
+) extends LazyLogging {
+  require(batchSize >= k, "The batch size must be at least k.")
+
+  private[this] val random =
+    if (fixedSeedForRandom) new Random(13)
+    else new Random(compat.Platform.currentTime)
+
+  private[this] val d = dimension
+  private[this] val centroidArray = new Array[Double](k * d)
+  private[this] val centroidNorms = new Array[Double](k)
+  private[this] val counts = new Array[Long](k)
+  private[this] var seeded = false
+  private[this] var batches = 0L
+  @volatile private[this] var stopped = false
+
+  /** The number of batches the centroids have been updated with. */
+  def numBatches: Long = synchronized(batches)
+
+  /** A copy of the current centroids. */
+  def centroids: IndexedSeq[DenseVector[Double]] = synchronized {
+    (0 until k).map(c => DenseVector(java.util.Arrays.copyOfRange(centroidArray, c * d, (c + 1) * d)))
+  }
+
+  /**
+    * Update the centroids with one batch of points.
+    *
+    * @return the dispersion of the batch around the centroids before the update
+    */
+  def update(batch: IndexedSeq[Vector[Double]]): Double = synchronized {
+    val points = PointMatrix(batch, d)
+    if (!seeded) {
+      require(batch.length >= k, "The first batch must have at least k points.")
+      val chosen = seeding.choose(k, points.numPoints, points.squaredDistanceBetween, random)
+      for (c <- 0 until k) points.addTo(chosen(c), centroidArray, c * d)
+      seeded = true
+    }
+
+    for (c <- 0 until k) {
+      var sum = 0.0
+      var j = c * d
+      while (j < (c + 1) * d) { sum += centroidArray(j) * centroidArray(j); j += 1 }
+      centroidNorms(c) = sum
+    }
+    val memberships = new Array[Int](points.numPoints)
+    val dispersion = Blocks.sum(points.numPoints) { (start, end) =>
+      var dispersion = 0.0
+      var i = start
+      while (i < end) {
+        var best = 0
+        var bestDistance = Double.PositiveInfinity
+        var c = 0
+        while (c < k) {
+          val distance = points.squaredDistance(i, centroidArray, c * d, centroidNorms(c))
+          if (distance < bestDistance) { bestDistance = distance; best = c }
+          c += 1
+        }
+        memberships(i) = best
+        dispersion += bestDistance
+        i += 1
+      }
+      dispersion
+    }
+
+    // Stepping towards each point in turn with rate 1/count is the same as
+    // moving to the weighted mean of the old centroid and the batch's points.
+    val batchCounts = new Array[Int](k)
+    for (c <- memberships) batchCounts(c) += 1
+    for (c <- 0 until k; if batchCounts(c) > 0) {
+      val oldWeight = math.min(counts(c), maxCount).toDouble
+      val scale = oldWeight / (oldWeight + batchCounts(c))
+      var j = c * d
+      while (j < (c + 1) * d) { centroidArray(j) *= scale; j += 1 }
+      counts(c) += batchCounts(c)
+    }
+    for (i <- 0 until points.numPoints) {
+      val c = memberships(i)
+      val oldWeight = math.min(counts(c) - batchCounts(c), maxCount).toDouble
+      points.addTo(i, centroidArray, c * d, 1.0 / (oldWeight + batchCounts(c)))
+    }
+    batches += 1
+    dispersion
+  }
+
+  /**
+    * Update the centroids with batches from the points until they run out or
+    * maxBatches batches have been used.
+    *
+    * @return A pair, the first element of which is the dispersion of the points
+    *     used, each measured against the centroids when its batch was used, and
+    *     the second element of which is the centroids.
+    */
+  def run(points: Iterator[Vector[Double]], maxBatches: Long = Long.MaxValue): (Double, IndexedSeq[DenseVector[Double]]) = {
+    var dispersion = 0.0
+    var used = 0L
+    val grouped = points.grouped(batchSize)
+    while (used < maxBatches && grouped.hasNext) {
+      dispersion += update(grouped.next.toIndexedSeq)
+      used += 1
+    }
+    logger.debug("Dispersion: " + dispersion)
+    (dispersion, centroids)
+  }
+
+  /**
+    * Keep updating the centroids from a stream of points until it ends or stop
+    * is called, writing a checkpoint every checkpointEvery batches and at the
+    * end. A new MiniBatchKmeans can carry on from the checkpoint with restore.
+    *
+    * @return the same as run
+    */
+  def stream(
+    points: Iterator[Vector[Double]],
+    checkpointFile: File,
+    checkpointEvery: Int = 100
+  ): (Double, IndexedSeq[DenseVector[Double]]) = {
+    stopped = false
+    var dispersion = 0.0
+    val grouped = points.grouped(batchSize)
+    while (!stopped && grouped.hasNext) {
+      dispersion += update(grouped.next.toIndexedSeq)
+      if (numBatches % checkpointEvery == 0) checkpoint(checkpointFile)
+    }
+    checkpoint(checkpointFile)
+    (dispersion, centroids)
+  }
+
+  /**
+    * Make stream return after the batch it is on.
+    */
+  def stop() {
+    stopped = true
+  }
+
+  /**
+    * The index of the centroid nearest to the point.
+    */
+  def nearest(point: Vector[Double]): Int = memberships(Iterator(point)).next
+
+  /**
+    * The index of the nearest centroid for each point, computed in batches.
+    */
+  def memberships(points: Iterator[Vector[Double]]): Iterator[Int] = {
+    val (current, norms) = snapshot
+    points.grouped(batchSize).flatMap(batch => nearestCentroids(batch.toIndexedSeq, current, norms)._1)
+  }
+
+  /**
+    * The dispersion of the points around the current centroids.
+    */
+  def dispersion(points: Iterator[Vector[Double]]): Double = {
+    val (current, norms) = snapshot
+    points.grouped(batchSize).map(batch => nearestCentroids(batch.toIndexedSeq, current, norms)._2.sum).sum
+  }
+
+  private[this] def snapshot = synchronized {
+    val current = centroidArray.clone
+    val norms = Array.tabulate(k) { c =>
+      (c * d until (c + 1) * d).foldLeft(0.0)((sum, j) => sum + current(j) * current(j))
+    }
+    (current, norms)
+  }
+
+  private[this] def nearestCentroids(batch: IndexedSeq[Vector[Double]], current: Array[Double], norms: Array[Double]) = {
+    val matrix = PointMatrix(batch, d)
+    val nearest = new Array[Int](matrix.numPoints)
+    val distances = new Array[Double](matrix.numPoints)
+    for (i <- 0 until matrix.numPoints) {
+      distances(i) = Double.PositiveInfinity
+      for (c <- 0 until k) {
+        val distance = matrix.squaredDistance(i, current, c * d, norms(c))
+        if (distance < distances(i)) { distances(i) = distance; nearest(i) = c }
+      }
+    }
+    (nearest, distances)
+  }
+
+  /**
+    * Write the centroids and their counts to a file, replacing it only once
+    * the new checkpoint is complete.
+    */
+  def checkpoint(file: File) {
+    val temporary = new File(file.getPath + ".tmp")
+    val out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))
+    try {
+      synchronized {
+        out.writeInt(k)
+        out.writeInt(d)
+        out.writeBoolean(seeded)
+        out.writeLong(batches)
+        counts.foreach(out.writeLong)
+        centroidArray.foreach(out.writeDouble)
+      }
+    } finally {
+      out.close()
+    }
+    if (!temporary.renameTo(file)) {
+      file.delete()
+      if (!temporary.renameTo(file))
+        throw new IOException("Couldn't replace the checkpoint " + file)
+    }
+    logger.debug("Checkpointed " + numBatches + " batches to " + file)
+  }
+
+  /**
+    * Carry on from a checkpoint written by a MiniBatchKmeans with the same k
+    * and dimension.
+    */
+  def restore(file: File): this.type = {
+    val in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))
+    try {
+      synchronized {
+        if (in.readInt != k || in.readInt != d)
+          throw new IOException("The checkpoint has a different k or dimension.")
+        seeded = in.readBoolean
+        batches = in.readLong
+        for (c <- 0 until k) counts(c) = in.readLong
+        for (j <- 0 until k * d) centroidArray(j) = in.readDouble
+      }
+    } finally {
+      in.close()
+    }
+    this
+  }
+
+}
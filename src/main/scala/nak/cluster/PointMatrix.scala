@@ -0,0 +1,228 @@
+/*
+ Copyright 2013 ScalaNLP
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package nak.cluster
+
+import breeze.linalg.{DenseMatrix, DenseVector, SparseVector, Vector}
+
+/**
+  * A set of points stored contiguously, so that the k-means engine can compare
+  * them with centroids held in one flat array without allocating. Centroids are
+  * stored row-major, the centroid c taking up the dimension values starting at
+  * c * dimension.
+  */
+sealed trait PointMatrix extends Serializable {
+
+  def numPoints: Int
+
+  def dimension: Int
+
+  /** The squared Euclidean norm of each point. */
+  def squaredNorms: Array[Double]
+
+  /** The dot product of point i with the centroid starting at offset. */
+  def dot(i: Int, centroids: Array[Double], offset: Int): Double
+
+  /** Add scale times point i to the centroid starting at offset. */
+  def addTo(i: Int, centroids: Array[Double], offset: Int, scale: Double = 1.0)
+
+  /** The squared Euclidean distance between points i and j. */
+  def squaredDistanceBetween(i: Int, j: Int): Double
+
+  /** The squared Euclidean distance between point i and the given centroid. */
+  def squaredDistance(i: Int, centroids: Array[Double], offset: Int, centroidSquaredNorm: Double) =
+    math.max(0.0, squaredNorms(i) - 2 * dot(i, centroids, offset) + centroidSquaredNorm)
+
+}
+
+/**
+  * Dense points stored row-major in one array.
+  */
+class DensePointMatrix(val data: Array[Double], val numPoints: Int, val dimension: Int)
+    extends PointMatrix {
+
+  val squaredNorms = Array.tabulate(numPoints) { i =>
+    var sum = 0.0
+    var j = i * dimension
+    val end = j + dimension
+    while (j < end) { sum += data(j) * data(j); j += 1 }
+    sum
+  }
+
+  def dot(i: Int, centroids: Array[Double], offset: Int) = {
+    var sum = 0.0
+    val start = i * dimension
+    var j = 0
+    while (j < dimension) {
+      sum += data(start + j) * centroids(offset + j)
+      j += 1
+    }
+    sum
+  }
+
+  def squaredDistanceBetween(i: Int, j: Int) = {
+    var sum = 0.0
+    var a = i * dimension
+    var b = j * dimension
+    val end = a + dimension
+    while (a < end) {
+      val difference = data(a) - data(b)
+      sum += difference * difference
+      a += 1
+      b += 1
+    }
+    sum
+  }
+
+  def addTo(i: Int, centroids: Array[Double], offset: Int, scale: Double = 1.0) {
+    val start = i * dimension
+    var j = 0
+    while (j < dimension) {
+      centroids(offset + j) += scale * data(start + j)
+      j += 1
+    }
+  }
+
+}
+
+/**
+  * Sparse points stored in compressed sparse row form: the non-zero values of
+  * point i are values(rowStarts(i) until rowStarts(i+1)), at the positions
+  * given by the same range of indices.
+  */
+class SparsePointMatrix(
+  val rowStarts: Array[Int],
+  val indices: Array[Int],
+  val values: Array[Double],
+  val dimension: Int
+) extends PointMatrix {
+
+  val numPoints = rowStarts.length - 1
+
+  val squaredNorms = Array.tabulate(numPoints) { i =>
+    var sum = 0.0
+    var j = rowStarts(i)
+    while (j < rowStarts(i + 1)) { sum += values(j) * values(j); j += 1 }
+    sum
+  }
+
+  def dot(i: Int, centroids: Array[Double], offset: Int) = {
+    var sum = 0.0
+    var j = rowStarts(i)
+    val end = rowStarts(i + 1)
+    while (j < end) {
+      sum += values(j) * centroids(offset + indices(j))
+      j += 1
+    }
+    sum
+  }
+
+  // Merges the sorted indices of the two points.
+  def squaredDistanceBetween(i: Int, j: Int) = {
+    var dot = 0.0
+    var a = rowStarts(i)
+    var b = rowStarts(j)
+    while (a < rowStarts(i + 1) && b < rowStarts(j + 1)) {
+      if (indices(a) < indices(b)) a += 1
+      else if (indices(a) > indices(b)) b += 1
+      else {
+        dot += values(a) * values(b)
+        a += 1
+        b += 1
+      }
+    }
+    math.max(0.0, squaredNorms(i) - 2 * dot + squaredNorms(j))
+  }
+
+  def addTo(i: Int, centroids: Array[Double], offset: Int, scale: Double = 1.0) {
+    var j = rowStarts(i)
+    val end = rowStarts(i + 1)
+    while (j < end) {
+      centroids(offset + indices(j)) += scale * values(j)
+      j += 1
+    }
+  }
+
+}
+
+object PointMatrix {
+
+  /**
+    * Copy dense vectors, which must all have the same length, into a matrix.
+    */
+  def dense(points: IndexedSeq[DenseVector[Double]]): DensePointMatrix = {
+    val dimension = if (points.isEmpty) 0 else points.head.length
+    val data = new Array[Double](points.length * dimension)
+    for (i <- points.indices) {
+      val point = points(i)
+      require(point.length == dimension, "All points must have the same dimension.")
+      var j = 0
+      while (j < dimension) {
+        data(i * dimension + j) = point(j)
+        j += 1
+      }
+    }
+    new DensePointMatrix(data, points.length, dimension)
+  }
+
+  /**
+    * Copy the rows of a matrix, each of which is a point.
+    */
+  def rows(matrix: DenseMatrix[Double]): DensePointMatrix = {
+    val data = new Array[Double](matrix.rows * matrix.cols)
+    for (i <- 0 until matrix.rows; j <- 0 until matrix.cols)
+      data(i * matrix.cols + j) = matrix(i, j)
+    new DensePointMatrix(data, matrix.rows, matrix.cols)
+  }
+
+  /**
+    * Copy the active entries of sparse vectors, which must all have the same
+    * length, into a matrix.
+    */
+  def sparse(points: IndexedSeq[SparseVector[Double]]): SparsePointMatrix = {
+    val dimension = if (points.isEmpty) 0 else points.head.length
+    val rowStarts = points.scanLeft(0)(_ + _.activeSize).toArray
+    val indices = new Array[Int](rowStarts.last)
+    val values = new Array[Double](rowStarts.last)
+    for (i <- points.indices) {
+      val point = points(i)
+      require(point.length == dimension, "All points must have the same dimension.")
+      System.arraycopy(point.index, 0, indices, rowStarts(i), point.activeSize)
+      System.arraycopy(point.data, 0, values, rowStarts(i), point.activeSize)
+    }
+    new SparsePointMatrix(rowStarts, indices, values, dimension)
+  }
+
+  /**
+    * Copy vectors of any kind, which must all have the same length, into a
+    * dense matrix if they are all dense and a sparse one otherwise.
+    */
+  def apply(points: IndexedSeq[Vector[Double]], dimension: Int): PointMatrix = {
+    for (point <- points)
+      require(point.length == dimension,
+        "All points must have dimension " + dimension + ", not " + point.length + ".")
+    if (points.forall(_.isInstanceOf[DenseVector[_]]))
+      dense(points.asInstanceOf[IndexedSeq[DenseVector[Double]]])
+    else if (points.forall(_.isInstanceOf[SparseVector[_]]))
+      sparse(points.asInstanceOf[IndexedSeq[SparseVector[Double]]])
+    else {
+      val rows = points.map(_.activeIterator.filter(_._2 != 0.0).toArray.sortBy(_._1))
+      val rowStarts = rows.scanLeft(0)(_ + _.length).toArray
+      val entries = rows.flatten
+      new SparsePointMatrix(rowStarts, entries.map(_._1).toArray, entries.map(_._2).toArray, dimension)
+    }
+  }
+
+}
@@ -0,0 +1,291 @@
+/*
+ Copyright 2013 ScalaNLP
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package nak.cluster
+
+import scala.collection.mutable.{ArrayBuffer, HashSet}
+import scala.util.Random
+
+/**
+  * A way of choosing the initial centroids of k-means from the points. Seedings
+  * work on point indices and a squared distance between two points, so the same
+  * seedings serve the generic Kmeans and EuclideanKmeans.
+  */
+sealed trait Seeding extends Serializable {
+
+  /**
+    * Choose the indices of k distinct points to start from.
+    *
+    * @param squaredDistance the squared distance between the points with the given indices
+    */
+  def choose(k: Int, numPoints: Int, squaredDistance: (Int, Int) => Double, random: Random): Array[Int]
+
+}
+
+/**
+  * Choose k points uniformly at random.
+  */
+case object RandomSeeding extends Seeding {
+
+  def choose(k: Int, numPoints: Int, squaredDistance: (Int, Int) => Double, random: Random) =
+    Seeding.uniform(k, numPoints, random)
+
+}
+
+/**
+  * k-means++: choose the first point uniformly, and each following point with
+  * probability proportional to its squared distance from the nearest point
+  * already chosen. This takes k passes over the points, and the expected
+  * dispersion is within O(log k) of the optimum before any iterations.
+  *
+  * For more details, see:
+  *   Arthur and Vassilvitskii (2007), k-means++: The Advantages of Careful Seeding.
+  */
+case object PlusPlusSeeding extends Seeding {
+
+  def choose(k: Int, numPoints: Int, squaredDistance: (Int, Int) => Double, random: Random) = {
+    val chosen = new ArrayBuffer[Int](k)
+    chosen += random.nextInt(numPoints)
+    val minDistances = Array.fill(numPoints)(Double.PositiveInfinity)
+    val nearest = new Array[Int](numPoints)
+    Seeding.updateNearest(chosen, 0, squaredDistance, minDistances, nearest)
+    Seeding.sampleUntil(k, chosen, squaredDistance, minDistances, nearest, random)
+    chosen.toArray
+  }
+
+}
+
+/**
+  * k-means||: starting from one uniformly chosen point, take a few passes that
+  * each sample every point independently with probability proportional to its
+  * squared distance from the nearest point already sampled, oversampling by
+  * about oversampling * k points per pass. The candidates are weighted by the
+  * number of points nearest to them and reduced to k with weighted k-means++.
+  * Each pass is parallel over the points, so this needs far fewer sequential
+  * passes than k-means++ when k is large.
+  *
+  * For more details, see:
+  *   Bahmani, Moseley, Vattani, Kumar and Vassilvitskii (2012), Scalable K-Means++.
+  *
+  * @param rounds the number of sampling passes
+  * @param oversampling the expected number of points sampled per pass, as a multiple of k
+  */
+case class ParallelSeeding(rounds: Int = 5, oversampling: Double = 2.0) extends Seeding {
+
+  def choose(k: Int, numPoints: Int, squaredDistance: (Int, Int) => Double, random: Random) = {
+    val candidates = new ArrayBuffer[Int]
+    candidates += random.nextInt(numPoints)
+    val minDistances = Array.fill(numPoints)(Double.PositiveInfinity)
+    val nearest = new Array[Int](numPoints)
+    Seeding.updateNearest(candidates, 0, squaredDistance, minDistances, nearest)
+
+    var round = 0
+    var cost = minDistances.sum
+    while (round < rounds && cost > 0) {
+      val scale = oversampling * k / cost
+      val seed = random.nextLong
+      val sampled = Blocks.collect(numPoints) { (start, end) =>
+        val blockRandom = new Random(seed + start)
+        (start until end).filter(i => blockRandom.nextDouble < scale * minDistances(i))
+      }
+      val firstNew = candidates.length
+      candidates ++= sampled
+      Seeding.updateNearest(candidates, firstNew, squaredDistance, minDistances, nearest)
+      cost = minDistances.sum
+      round += 1
+    }
+
+    if (candidates.length <= k) {
+      Seeding.sampleUntil(k, candidates, squaredDistance, minDistances, nearest, random)
+      candidates.toArray
+    } else {
+      val weights = new Array[Double](candidates.length)
+      for (i <- 0 until numPoints) weights(nearest(i)) += 1
+      val reduced = Seeding.weightedPlusPlus(k, candidates.length, weights,
+        (a: Int, b: Int) => squaredDistance(candidates(a), candidates(b)), random)
+      reduced.map(candidates)
+    }
+  }
+
+}
+
+object Seeding {
+
+  /**
+    * Choose k distinct indices uniformly, without shuffling all of them
+    * unless k is a large fraction of them.
+    */
+  private[cluster] def uniform(k: Int, numPoints: Int, random: Random): Array[Int] =
+    if (2 * k > numPoints)
+      random.shuffle((0 until numPoints).toIndexedSeq).take(k).toArray
+    else {
+      val seen = new HashSet[Int]
+      val chosen = new ArrayBuffer[Int](k)
+      while (chosen.length < k) {
+        val i = random.nextInt(numPoints)
+        if (seen.add(i)) chosen += i
+      }
+      chosen.toArray
+    }
+
+  /**
+    * Lower the distance from each point to its nearest chosen point using the
+    * chosen points from index firstNew on, in parallel over the points.
+    */
+  private[cluster] def updateNearest(
+    chosen: IndexedSeq[Int],
+    firstNew: Int,
+    squaredDistance: (Int, Int) => Double,
+    minDistances: Array[Double],
+    nearest: Array[Int]
+  ) {
+    Blocks.sum(minDistances.length) { (start, end) =>
+      var i = start
+      while (i < end) {
+        var c = firstNew
+        while (c < chosen.length) {
+          val distance = squaredDistance(i, chosen(c))
+          if (distance < minDistances(i)) { minDistances(i) = distance; nearest(i) = c }
+          c += 1
+        }
+        i += 1
+      }
+      0.0
+    }
+  }
+
+  /**
+    * Add points to chosen by D^2 sampling until it holds k of them. If all
+    * points coincide with chosen ones, the rest are chosen uniformly.
+    */
+  private[cluster] def sampleUntil(
+    k: Int,
+    chosen: ArrayBuffer[Int],
+    squaredDistance: (Int, Int) => Double,
+    minDistances: Array[Double],
+    nearest: Array[Int],
+    random: Random
+  ) {
+    while (chosen.length < k) {
+      val total = minDistances.sum
+      val next =
+        if (total > 0) sampleProportionally(minDistances, total, random)
+        else {
+          val unchosen = (0 until minDistances.length).filterNot(chosen.toSet)
+          unchosen(random.nextInt(unchosen.length))
+        }
+      chosen += next
+      updateNearest(chosen, chosen.length - 1, squaredDistance, minDistances, nearest)
+    }
+  }
+
+  /**
+    * k-means++ where each point also has a weight that multiplies its chance
+    * of being chosen.
+    */
+  private[cluster] def weightedPlusPlus(
+    k: Int,
+    numPoints: Int,
+    weights: Array[Double],
+    squaredDistance: (Int, Int) => Double,
+    random: Random
+  ): Array[Int] = {
+    val chosen = new ArrayBuffer[Int](k)
+    chosen += sampleProportionally(weights, weights.sum, random)
+    val minDistances = Array.fill(numPoints)(Double.PositiveInfinity)
+    val scores = new Array[Double](numPoints)
+    while (chosen.length < k) {
+      val last = chosen.last
+      for (i <- 0 until numPoints) {
+        minDistances(i) = math.min(minDistances(i), squaredDistance(i, last))
+        scores(i) = weights(i) * minDistances(i)
+      }
+      val total = scores.sum
+      chosen += (
+        if (total > 0) sampleProportionally(scores, total, random)
+        else (0 until numPoints).filterNot(chosen.toSet).head)
+    }
+    chosen.toArray
+  }
+
+  private[this] def sampleProportionally(scores: Array[Double], total: Double, random: Random) = {
+    val target = random.nextDouble * total
+    var sum = 0.0
+    var i = 0
+    while (i < scores.length - 1 && sum + scores(i) <= target) {
+      sum += scores(i)
+      i += 1
+    }
+    // Rounding can leave target just past the last positive score.
+    while (scores(i) == 0 && i > 0) i -= 1
+    i
+  }
+
+}
+
+/**
+  * How EuclideanKmeans avoids computing distances that can't change the
+  * assignment of a point, using the triangle inequality.
+  */
+sealed trait Acceleration extends Serializable
+
+/**
+  * Compute the distance from every point to every centroid in every iteration.
+  */
+case object NoAcceleration extends Acceleration
+
+/**
+  * Keep an upper bound on the distance from each point to its centroid and one
+  * lower bound on its distance to every other centroid, so a point is skipped
+  * when its centroid is closer than half the distance to any other centroid or
+  * than the lower bound. Needs two doubles per point, and suits any k.
+  *
+  * For more details, see:
+  *   Hamerly (2010), Making k-means even faster.
+  */
+case object HamerlyAcceleration extends Acceleration
+
+/**
+  * Keep an upper bound on the distance from each point to its centroid and a
+  * lower bound on its distance to each centroid, so that distances to
+  * individual centroids can be skipped. Prunes more than Hamerly for large k,
+  * but needs k doubles per point for each concurrent restart.
+  *
+  * For more details, see:
+  *   Elkan (2003), Using the Triangle Inequality to Accelerate k-Means.
+  */
+case object ElkanAcceleration extends Acceleration
+
+/**
+  * Splits work over point indices into blocks that run in parallel.
+  */
+private[cluster] object Blocks {
+
+  val Size = 4096
+
+  def sum(n: Int)(f: (Int, Int) => Double): Double =
+    if (n < 2 * Size) f(0, n)
+    else (0 until n by Size).par.map(start => f(start, math.min(n, start + Size))).sum
+
+  def foreach(n: Int)(f: (Int, Int) => Unit) {
+    if (n < 2 * Size) f(0, n)
+    else (0 until n by Size).par.foreach(start => f(start, math.min(n, start + Size)))
+  }
+
+  def collect(n: Int)(f: (Int, Int) => IndexedSeq[Int]): IndexedSeq[Int] =
+    if (n < 2 * Size) f(0, n)
+    else (0 until n by Size).par.map(start => f(start, math.min(n, start + Size))).seq.toIndexedSeq.flatten
+
+}
@@ -0,0 +1,393 @@
+/*
+ Copyright 2013 ScalaNLP
+
+ Licensed under the Apache License, Version 2.0 (the "License")
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package nak.cluster
+
+import nak.util.GrowableIntArray
+import scala.util.Random
+
+/**
+  * An index over a fixed set of points that finds the points closer than
+  * epsilon to any of them in Euclidean distance, for DBSCAN. Indices are built
+  * once per dataset, and queries can run concurrently. Each thread's queries
+  * reuse its own buffers, so they allocate nothing after its first.
+  */
+trait SpatialIndex extends Serializable {
+
+  /** The points indexed. */
+  def points: DensePointMatrix
+
+  /** The neighbourhood radius the index was built for. */
+  def epsilon: Double
+
+  /**
+    * Add the indices of the points closer than epsilon to point i, other than
+    * i itself, to neighbours.
+    */
+  def neighbours(i: Int, neighbours: GrowableIntArray)
+
+  protected[this] lazy val squaredEpsilon = epsilon * epsilon
+
+  protected[this] def isNeighbour(i: Int, j: Int) =
+    i != j && points.squaredDistanceBetween(i, j) < squaredEpsilon
+
+}
+
+/**
+  * Compares each point with all the others; for small datasets, or as a
+  * reference for the other indices.
+  */
+class BruteForceIndex(val points: DensePointMatrix, val epsilon: Double) extends SpatialIndex {
+
+  def neighbours(i: Int, neighbours: GrowableIntArray) {
+    var j = 0
+    while (j < points.numPoints) {
+      if (isNeighbour(i, j)) neighbours += j
+      j += 1
+    }
+  }
+
+}
+
+/**
+  * Puts the points in a grid of cubes with sides of epsilon, so that the
+  * neighbours of a point are in its own cube or the 3^d around it. Queries
+  * take time proportional to 3^d, so this is for two or three dimensions.
+  */
+class GridIndex(val points: DensePointMatrix, val epsilon: Double) extends SpatialIndex {
+
+  private[this] val d = points.dimension
+
+  private[this] val cells = {
+    val keys = new Array[Long](points.numPoints)
+    val coordinates = new Array[Long](d)
+    for (i <- 0 until points.numPoints) {
+      for (j <- 0 until d) coordinates(j) = cellOf(i, j)
+      keys(i) = SpatialIndex.hash(coordinates, d)
+    }
+    new LongBuckets(keys)
+  }
+
+  private[this] def cellOf(i: Int, j: Int) =
+    math.floor(points.data(i * d + j) / epsilon).toLong
+
+  private[this] class Scratch {
+    val center = new Array[Long](d)
+    val coordinates = new Array[Long](d)
+    val offsets = new Array[Int](d)
+    val seen = new GrowableIntArray(32)
+  }
+
+  @transient private[this] lazy val scratch = SpatialIndex.perThread(new Scratch)
+
+  def neighbours(i: Int, neighbours: GrowableIntArray) {
+    val buffers = scratch.get
+    import buffers._
+    var j = 0
+    while (j < d) {
+      center(j) = cellOf(i, j)
+      offsets(j) = -1
+      j += 1
+    }
+    seen.clear()
+    var more = true
+    while (more) {
+      j = 0
+      while (j < d) { coordinates(j) = center(j) + offsets(j); j += 1 }
+      val bucket = cells.bucket(SpatialIndex.hash(coordinates, d))
+      if (bucket >= 0) seen += bucket
+      // Step offsets through {-1, 0, 1}^d like an odometer.
+      j = 0
+      while (j < d && offsets(j) == 1) { offsets(j) = -1; j += 1 }
+      if (j < d) offsets(j) += 1 else more = false
+    }
+    // Different cells can share a bucket, so only scan each bucket once.
+    seen.sortDistinct()
+    var b = 0
+    while (b < seen.length) {
+      var k = cells.starts(seen(b))
+      while (k < cells.starts(seen(b) + 1)) {
+        val candidate = cells.order(k)
+        if (isNeighbour(i, candidate)) neighbours += candidate
+        k += 1
+      }
+      b += 1
+    }
+  }
+
+}
+
+/**
+  * A k-d tree, which splits the points at the median of the dimension with the
+  * largest spread until at most leafSize remain, and skips the subtrees that
+  * are farther than epsilon from the query point. Suits up to a few tens of
+  * dimensions.
+  */
+class KdTreeIndex(val points: DensePointMatrix, val epsilon: Double, leafSize: Int = 16)
+    extends SpatialIndex {
+
+  private[this] val d = points.dimension
+  private[this] val order = Array.range(0, points.numPoints)
+
+  // The nodes, in arrays. Leaves have splitDimension -1 and hold the points
+  // order(start(node) until end(node)); the children of an inner node are
+  // children(2 * node) and children(2 * node + 1).
+  private[this] def countNodes(size: Int): Int =
+    if (size <= leafSize || d == 0) 1 else 1 + countNodes(size / 2) + countNodes(size - size / 2)
+  private[this] val numNodes = countNodes(points.numPoints)
+  private[this] val splitDimension = new Array[Int](numNodes)
+  private[this] val splitValue = new Array[Double](numNodes)
+  private[this] val children = new Array[Int](2 * numNodes)
+  private[this] val start = new Array[Int](numNodes)
+  private[this] val end = new Array[Int](numNodes)
+  private[this] var nodesBuilt = 0
+  private[this] var depth = 0
+
+  build(0, points.numPoints, 1)
+
+  private[this] def value(i: Int, j: Int) = points.data(i * d + j)
+
+  private[this] def build(from: Int, until: Int, level: Int): Int = {
+    depth = math.max(depth, level)
+    val node = nodesBuilt
+    nodesBuilt += 1
+    start(node) = from
+    end(node) = until
+    if (until - from <= leafSize || d == 0) {
+      splitDimension(node) = -1
+    } else {
+      var widest = 0
+      var widestSpread = -1.0
+      for (j <- 0 until d) {
+        var low = Double.PositiveInfinity
+        var high = Double.NegativeInfinity
+        for (k <- from until until) {
+          low = math.min(low, value(order(k), j))
+          high = math.max(high, value(order(k), j))
+        }
+        if (high - low > widestSpread) { widestSpread = high - low; widest = j }
+      }
+      val middle = from + (until - from) / 2
+      select(from, until, middle, widest)
+      splitDimension(node) = widest
+      splitValue(node) = value(order(middle), widest)
+      children(2 * node) = build(from, middle, level + 1)
+      children(2 * node + 1) = build(middle, until, level + 1)
+    }
+    node
+  }
+
+  // Quickselect, so that order(k) has the value it would have if order(from
+  // until until) were sorted by dimension j, with smaller values before it and
+  // larger ones after.
+  private[this] def select(from: Int, until: Int, k: Int, j: Int) {
+    var low = from
+    var high = until - 1
+    while (low < high) {
+      val pivot = value(order((low + high) >>> 1), j)
+      var a = low
+      var b = high
+      while (a <= b) {
+        while (value(order(a), j) < pivot) a += 1
+        while (value(order(b), j) > pivot) b -= 1
+        if (a <= b) {
+          val swap = order(a); order(a) = order(b); order(b) = swap
+          a += 1
+          b -= 1
+        }
+      }
+      if (k <= b) high = b
+      else if (k >= a) low = a
+      else return
+    }
+  }
+
+  @transient private[this] lazy val stacks = SpatialIndex.perThread(new Array[Int](2 * depth + 2))
+
+  def neighbours(i: Int, neighbours: GrowableIntArray) {
+    val stack = stacks.get
+    var top = 0
+    stack(top) = 0
+    top += 1
+    while (top > 0) {
+      top -= 1
+      val node = stack(top)
+      val dimension = splitDimension(node)
+      if (dimension < 0) {
+        var k = start(node)
+        while (k < end(node)) {
+          val j = order(k)
+          if (isNeighbour(i, j)) neighbours += j
+          k += 1
+        }
+      } else {
+        val difference = value(i, dimension) - splitValue(node)
+        if (difference < epsilon) { stack(top) = children(2 * node); top += 1 }
+        if (difference > -epsilon) { stack(top) = children(2 * node + 1); top += 1 }
+      }
+    }
+  }
+
+}
+
+/**
+  * Locality sensitive hashing for Euclidean distance: each of numTables tables
+  * hashes a point by the buckets of width bucketWidth * epsilon that it falls
+  * in along numProjections random Gaussian directions, and the candidates for
+  * a point's neighbours are the points that share a bucket with it in some
+  * table. This is approximate: a neighbour is missed if it shares no bucket,
+  * which more tables or wider buckets make less likely. It suits high
+  * dimensions, where the grid and k-d tree degrade to comparing everything.
+  *
+  * For more details, see:
+  *   Datar, Immorlica, Indyk and Mirrokni (2004), Locality-Sensitive Hashing
+  *   Scheme Based on p-Stable Distributions.
+  */
+class LshIndex(
+  val points: DensePointMatrix,
+  val epsilon: Double,
+  numTables: Int = 10,
+  numProjections: Int = 4,
+  bucketWidth: Double = 4.0,
+  seed: Long = 13
+) extends SpatialIndex {
+
+  private[this] val d = points.dimension
+
+  private[this] val tables = {
+    val random = new Random(seed)
+    val width = bucketWidth * epsilon
+    Array.fill(numTables) {
+      val directions = Array.fill(numProjections * d)(random.nextGaussian)
+      val offsets = Array.fill(numProjections)(random.nextDouble * width)
+      val coordinates = new Array[Long](numProjections)
+      val keys = Array.tabulate(points.numPoints) { i =>
+        for (p <- 0 until numProjections)
+          coordinates(p) = math.floor((points.dot(i, directions, p * d) + offsets(p)) / width).toLong
+        SpatialIndex.hash(coordinates, numProjections)
+      }
+      (keys, new LongBuckets(keys))
+    }
+  }
+
+  @transient private[this] lazy val scratch = SpatialIndex.perThread(new GrowableIntArray(64))
+
+  def neighbours(i: Int, neighbours: GrowableIntArray) {
+    val candidates = scratch.get
+    candidates.clear()
+    var t = 0
+    while (t < tables.length) {
+      val (keys, buckets) = tables(t)
+      val bucket = buckets.bucket(keys(i))
+      var k = buckets.starts(bucket)
+      while (k < buckets.starts(bucket + 1)) {
+        candidates += buckets.order(k)
+        k += 1
+      }
+      t += 1
+    }
+    candidates.sortDistinct()
+    var c = 0
+    while (c < candidates.length) {
+      if (isNeighbour(i, candidates(c))) neighbours += candidates(c)
+      c += 1
+    }
+  }
+
+}
+
+object SpatialIndex {
+
+  /** Builds an index over some points for a given epsilon. */
+  type Builder = (DensePointMatrix, Double) => SpatialIndex
+
+  val bruteForce: Builder = new BruteForceIndex(_, _)
+
+  val grid: Builder = new GridIndex(_, _)
+
+  def kdTree(leafSize: Int = 16): Builder = new KdTreeIndex(_, _, leafSize)
+
+  def lsh(numTables: Int = 10, numProjections: Int = 4, bucketWidth: Double = 4.0, seed: Long = 13): Builder =
+    new LshIndex(_, _, numTables, numProjections, bucketWidth, seed)
+
+  /**
+    * An exact index suited to the dimension: a grid for up to three
+    * dimensions, and a k-d tree otherwise.
+    */
+  val auto: Builder = (points, epsilon) =>
+    if (points.dimension <= 3) grid(points, epsilon)
+    else kdTree()(points, epsilon)
+
+  // A ThreadLocal whose value for each thread is made on its first use.
+  private[cluster] def perThread[T](make: => T): ThreadLocal[T] =
+    new ThreadLocal[T] { override def initialValue = make }
+
+  // Hash a vector of Longs, such as grid cell coordinates, to a Long.
+  private[cluster] def hash(values: Array[Long], length: Int): Long = {
+    var h = 0x9E3779B97F4A7C15L
+    var i = 0
+    while (i < length) {
+      h = (h ^ values(i)) * 0xff51afd7ed558ccdL
+      h ^= h >>> 32
+      i += 1
+    }
+    h
+  }
+
+}
+
+/**
+  * Groups indices by Long keys: the indices with the key of bucket b are
+  * order(starts(b) until starts(b+1)), and bucket finds the bucket of a key
+  * in an open-addressing table.
+  */
+private[cluster] class LongBuckets(keys: Array[Long]) extends Serializable {
+
+  val order: Array[Int] = Array.range(0, keys.length).sortBy(keys(_))
+
+  val starts: Array[Int] = {
+    val result = new GrowableIntArray
+    for (k <- order.indices)
+      if (k == 0 || keys(order(k)) != keys(order(k - 1))) result += k
+    result += keys.length
+    result.toArray
+  }
+
+  private[this] val numBuckets = starts.length - 1
+  private[this] val capacity = Integer.highestOneBit(math.max(2, 2 * numBuckets)) << 1
+  private[this] val tableKeys = new Array[Long](capacity)
+  private[this] val tableBuckets = Array.fill(capacity)(-1)
+
+  for (b <- 0 until numBuckets) {
+    val key = keys(order(starts(b)))
+    var slot = slotOf(key)
+    while (tableBuckets(slot) >= 0) slot = (slot + 1) & (capacity - 1)
+    tableKeys(slot) = key
+    tableBuckets(slot) = b
+  }
+
+  private[this] def slotOf(key: Long) = (((key ^ (key >>> 29)) * 0x9E3779B97F4A7C15L) >>> 32).toInt & (capacity - 1)
+
+  /** The bucket with the key, or -1 if there is none. */
+  def bucket(key: Long): Int = {
+    var slot = slotOf(key)
+    while (tableBuckets(slot) >= 0) {
+      if (tableKeys(slot) == key) return tableBuckets(slot)
+      slot = (slot + 1) & (capacity - 1)
+    }
+    -1
+  }
+
+}
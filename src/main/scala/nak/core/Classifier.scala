@@ -34,6 +34,13 @@ trait Classifier extends (Array[(Int,Double)] => Array[Double]) with Serializabl
   def evalIndexed(observations: Seq[FeatureObservation[Int]]): Array[Double] =
     apply(observations.map(_.tuple).toArray)
 
+  /**
+   * Apply the classifier to a batch of contexts. Implementations can override
+   * this to score the whole batch at once.
+   */
+  def applyBatch(contexts: IndexedSeq[Array[(Int,Double)]]): IndexedSeq[Array[Double]] =
+    contexts.map(apply)
+
 }
 
 /**
@@ -47,7 +54,20 @@ trait IndexedClassifier[L] extends Classifier with LabelMap[L] with FeatureMap {
    * index the observations and then pass them on to evalIndexed of Classifier.
    */ 
   def evalUnindexed(observations: Seq[FeatureObservation[String]]): Array[Double] =
-    evalIndexed(observations.flatMap(_.mapOption(indexOfFeature)))
+    apply(indexContext(observations))
+
+  /**
+   * Index the feature observations so they can be passed to apply. Features
+   * that aren't in the feature map are dropped.
+   */
+  def indexContext(observations: Seq[FeatureObservation[String]]): Array[(Int,Double)] = {
+    val context = new scala.collection.mutable.ArrayBuffer[(Int,Double)](observations.length)
+    for (observation <- observations) {
+      val index = indexOfFeatureOrElse(observation.feature, -1)
+      if (index >= 0) context += ((index, observation.magnitude))
+    }
+    context.toArray
+  }
 
 }
 
@@ -72,6 +92,19 @@ trait FeaturizedClassifier[L,I] extends IndexedClassifier[L] {
   def predict(content: I) = 
     labelOfIndex(evalRaw(content).zipWithIndex.maxBy(_._1)._2)
 
+  /**
+   * Evaluate a batch of raw observations. They are featurized and indexed in
+   * parallel and then scored together with applyBatch.
+   */
+  def evalRawBatch(contents: IndexedSeq[I]): IndexedSeq[Array[Double]] =
+    applyBatch(contents.par.map(content => indexContext(featurizer(content))).seq.toIndexedSeq)
+
+  /**
+   * Predict the labels of a batch of raw observations.
+   */
+  def predictBatch(contents: IndexedSeq[I]): IndexedSeq[L] =
+    evalRawBatch(contents).map(scores => labelOfIndex(scores.zipWithIndex.maxBy(_._1)._2))
+
 }
 
 
@@ -100,6 +133,9 @@ trait LiblinearClassifier extends IndexedClassifier[String] {
   /** Get the index of a feature. */ 
   def indexOfFeature(feature: String) = fmap.indexOfFeature(feature)
 
+  override def indexOfFeatureOrElse(feature: String, default: Int) =
+    fmap.indexOfFeatureOrElse(feature, default)
+
   /**
    * Implement the apply method of Classifier by transforming the tuples into
    * Liblinear Features and then calling Linear.predictProbability.
@@ -114,6 +150,23 @@ trait LiblinearClassifier extends IndexedClassifier[String] {
     labelScores
   }
 
+  /**
+   * Score a batch of contexts with Linear.predictProbabilityBatch, which reads
+   * the model's weights once for the whole batch.
+   */
+  override def applyBatch(contexts: IndexedSeq[Array[(Int,Double)]]): IndexedSeq[Array[Double]] = {
+    val rowStarts = contexts.scanLeft(0)(_ + _.length).toArray
+    val indices = new Array[Int](rowStarts.last)
+    val values = new Array[Double](rowStarts.last)
+    for (r <- contexts.indices; k <- contexts(r).indices) {
+      indices(rowStarts(r) + k) = contexts(r)(k)._1
+      values(rowStarts(r) + k) = contexts(r)(k)._2
+    }
+    val labelScores = Array.fill(contexts.length, numLabels)(0.0)
+    Linear.predictProbabilityBatch(model, rowStarts, indices, values, labelScores)
+    labelScores
+  }
+
 }
 
 /**
@@ -160,14 +213,25 @@ object Classifier {
       val featurizer = _featurizer
     }
 
+  /**
+   * Create an IndexedClassifier given a model, a map giving the indices of the
+   * labels, and any FeatureMap.
+   */ 
+  def apply(_model: LiblinearModel, _lmap: Map[String,Int], _fmap: FeatureMap) =
+    new LiblinearClassifier {
+      val model = _model
+      val lmap = _lmap
+      val fmap = _fmap
+    }
+
   /**
    * Create an classifier that is indexed and contains a featurizer, given a model,
-   * a featurizer, and maps giving the indices of the labels and features (where the
-   * index of feature in the array is the index of the parameter in the model).
+   * a featurizer, a map giving the indices of the labels, and any FeatureMap, such
+   * as a HashedFeatureMap.
    */ 
   def apply[I](_model: LiblinearModel, 
                _lmap: Map[String,Int],
-               _fmap: HashedFeatureMap,
+               _fmap: FeatureMap,
                _featurizer: Featurizer[I,String]) =
     new LiblinearClassifier with FeaturizedClassifier[String,I] {
       val model = _model
@@ -175,4 +239,34 @@ object Classifier {
       val fmap = _fmap
       val featurizer = _featurizer
     }
+
+  /**
+   * Replace the feature map of a liblinear classifier with a
+   * PerfectHashFeatureMap, which needs a fraction of the memory of an
+   * ExactFeatureMap and can be shared between processes by memory-mapping a
+   * saved classifier. The featurizer, if any, is kept. Other classifiers, and
+   * classifiers whose features are hashed, are returned as they are.
+   */
+  def freezeFeatures[C <: Classifier](classifier: C): C = classifier match {
+    case c: LiblinearClassifier =>
+      val features: Option[Iterable[(String,Int)]] = c.fmap match {
+        case m: ExactFeatureMap => Some(m.fmap)
+        case m: SortedStringFeatureMap => Some(m.iterator.toIndexedSeq)
+        case _ => None
+      }
+      features match {
+        case None => classifier
+        case Some(f) =>
+          val frozen = PerfectHashFeatureMap(f)
+          val result = c match {
+            case fc: FeaturizedClassifier[_,_] =>
+              apply(c.model, c.lmap, frozen, fc.featurizer.asInstanceOf[Featurizer[Any,String]])
+            case _ =>
+              apply(c.model, c.lmap, frozen)
+          }
+          result.asInstanceOf[C]
+      }
+    case _ => classifier
+  }
+
 }
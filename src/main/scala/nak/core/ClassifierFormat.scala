@@ -0,0 +1,239 @@
+package nak.core
+
+/**
+ Copyright 2013 ScalaNLP
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+
+import nak.data._
+import nak.liblinear.{Model => LiblinearModel}
+
+import java.io._
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * A compact binary container for LiblinearClassifiers, which loads much faster
+ * and with much less transient memory than Java serialization of the classifier.
+ *
+ * A file starts with the magic number "NAKC" and the format version, followed by
+ * a count of sections and then the sections, each of which is a tag Int, a
+ * length Long, and that many bytes. The sections are:
+ *
+ *   labels      the label strings, in order of their indices
+ *   features    a SortedStringFeatureMap or PerfectHashFeatureMap table, or the
+ *               size of a HashedFeatureMap
+ *   model       the liblinear Model, as written by Model.writeBinary
+ *   featurizer  the Java serialization of the featurizer, if there is one
+ *
+ * Readers skip sections with tags they don't know, so new kinds of sections can
+ * be added without changing the version; the version only changes when existing
+ * sections change, and readers refuse versions newer than their own.
+ *
+ * Files are read in one pass over a memory-mapped buffer. The feature table is
+ * used in place, so the feature strings are never decoded, and the weights are
+ * copied into the model with one bulk read. A file must be smaller than 2GB.
+ *
+ * The featurizer can be any code, so it is still stored with Java
+ * serialization and deserialized on every read; only the labels, feature
+ * table and model have a binary layout.
+ */
+object ClassifierFormat {
+
+  val Magic = 0x4E414B43 // "NAKC"
+  val Version = 1
+
+  private val LabelsTag = 1
+  private val SortedFeaturesTag = 2
+  private val HashedFeaturesTag = 3
+  private val ModelTag = 4
+  private val FeaturizerTag = 5
+  private val PerfectHashFeaturesTag = 6
+
+  /**
+   * Whether the classifier can be written in this format.
+   */
+  def supports(classifier: Classifier) = classifier match {
+    case c: LiblinearClassifier => c.fmap match {
+      case _: ExactFeatureMap | _: HashedFeatureMap | _: SortedStringFeatureMap
+         | _: PerfectHashFeatureMap => true
+      case _ => false
+    }
+    case _ => false
+  }
+
+  /**
+   * Whether the file starts with the magic number of this format.
+   */
+  def isClassifierFile(file: File) = {
+    val in = new DataInputStream(new FileInputStream(file))
+    try {
+      file.length >= 4 && in.readInt == Magic
+    } finally {
+      in.close()
+    }
+  }
+
+  /**
+   * Write the classifier to the file.
+   */
+  def write(classifier: LiblinearClassifier, file: File) {
+    val stream = new FileOutputStream(file)
+    val channel = stream.getChannel
+    val out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16))
+
+    // Write a section with a placeholder length, then fill the length in.
+    def section(tag: Int)(body: => Unit) {
+      out.flush()
+      val start = channel.position
+      out.writeInt(tag)
+      out.writeLong(0L)
+      body
+      out.flush()
+      val length = ByteBuffer.allocate(8).putLong(0, channel.position - start - 12)
+      channel.write(length, start + 4)
+    }
+
+    try {
+      val featurizer: Option[Featurizer[_,String]] = classifier match {
+        case c: FeaturizedClassifier[_,_] => Some(c.featurizer)
+        case _ => None
+      }
+
+      out.writeInt(Magic)
+      out.writeInt(Version)
+      out.writeInt(if (featurizer.isDefined) 4 else 3)
+
+      section(LabelsTag) {
+        out.writeInt(classifier.labels.length)
+        classifier.labels.foreach(writeString(out, _))
+      }
+
+      classifier.fmap match {
+        case m: ExactFeatureMap =>
+          section(SortedFeaturesTag)(SortedStringFeatureMap.write(out, m.fmap))
+        case m: SortedStringFeatureMap =>
+          section(SortedFeaturesTag)(writeTable(out, m))
+        case m: PerfectHashFeatureMap =>
+          section(PerfectHashFeaturesTag)(writeTable(out, m))
+        case m: HashedFeatureMap =>
+          section(HashedFeaturesTag)(out.writeInt(m.maxNumberOfFeatures))
+        case m =>
+          throw new IllegalArgumentException("Can't write a " + m.getClass.getName)
+      }
+
+      section(ModelTag)(classifier.model.writeBinary(out))
+
+      for (f <- featurizer) section(FeaturizerTag) {
+        val objects = new ObjectOutputStream(out)
+        objects.writeObject(f)
+        objects.flush()
+      }
+      out.flush()
+    } finally {
+      out.close()
+    }
+  }
+
+  /**
+   * Read a classifier from a memory-mapped file.
+   */
+  def read[C <: Classifier](file: File): C = {
+    val channel = new RandomAccessFile(file, "r").getChannel
+    try {
+      read[C](channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size))
+    } finally {
+      channel.close()
+    }
+  }
+
+  /**
+   * Read a classifier from a buffer holding a whole file.
+   */
+  def read[C <: Classifier](buffer: ByteBuffer): C = {
+    val in = buffer.duplicate
+    if (in.remaining < 12 || in.getInt != Magic)
+      throw new IOException("Not a Nak classifier file.")
+    val version = in.getInt
+    if (version > Version)
+      throw new IOException("Classifier format version " + version + " is newer than this reader's, " + Version)
+
+    var labels: Array[String] = null
+    var fmap: FeatureMap = null
+    var model: LiblinearModel = null
+    var featurizer: Option[Featurizer[Any,String]] = None
+
+    val numSections = in.getInt
+    for (_ <- 0 until numSections) {
+      val tag = in.getInt
+      val length = in.getLong.toInt
+      val end = in.position + length
+      val body = in.duplicate
+      body.limit(end)
+      tag match {
+        case LabelsTag =>
+          labels = Array.fill(body.getInt)(readString(body))
+        case SortedFeaturesTag =>
+          fmap = new SortedStringFeatureMap(body.slice)
+        case PerfectHashFeaturesTag =>
+          fmap = new PerfectHashFeatureMap(body.slice)
+        case HashedFeaturesTag =>
+          fmap = new HashedFeatureMap(body.getInt)
+        case ModelTag =>
+          model = LiblinearModel.readBinary(body)
+        case FeaturizerTag =>
+          val bytes = new Array[Byte](length)
+          body.get(bytes)
+          val objects = new ObjectInputStream(new ByteArrayInputStream(bytes))
+          featurizer = Some(objects.readObject.asInstanceOf[Featurizer[Any,String]])
+        case _ =>
+          // A section added by a later writer; skip it.
+      }
+      in.position(end)
+    }
+
+    if (labels == null || fmap == null || model == null)
+      throw new IOException("Classifier file is missing its labels, features or model.")
+
+    val lmap = labels.zipWithIndex.toMap
+    val classifier = featurizer match {
+      case Some(f) => Classifier(model, lmap, fmap, f)
+      case None => Classifier(model, lmap, fmap)
+    }
+    classifier.asInstanceOf[C]
+  }
+
+  private def writeTable(out: DataOutput, m: TableFeatureMap) {
+    val table = m.tableBuffer
+    val bytes = new Array[Byte](1 << 16)
+    while (table.hasRemaining) {
+      val n = math.min(bytes.length, table.remaining)
+      table.get(bytes, 0, n)
+      out.write(bytes, 0, n)
+    }
+  }
+
+  private def writeString(out: DataOutput, s: String) {
+    val bytes = s.getBytes("UTF-8")
+    out.writeInt(bytes.length)
+    out.write(bytes)
+  }
+
+  private def readString(in: ByteBuffer) = {
+    val bytes = new Array[Byte](in.getInt)
+    in.get(bytes)
+    new String(bytes, "UTF-8")
+  }
+
+}
@@ -120,6 +120,176 @@ class TfidfBatchFeaturizer[L](
   }
 }
 
+/**
+  * The inverse document frequencies fitted by a StreamingTfidfFeaturizer. It
+  * is a Featurizer, so it can be stored with a classifier and applied to new
+  * documents at serving time. Feature values are computed exactly as they are
+  * by TfidfBatchFeaturizer.
+  */
+class TfidfModel(
+  val idfs: Map[String,Double],
+  val numDocuments: Int,
+  stopwords: Set[String] = Set[String](),
+  addDefault: Boolean = false
+) extends Featurizer[String,String] {
+
+  def apply(raw: String) = {
+    val obs = collection.mutable.ArrayBuffer[FeatureObservation[String]]()
+    TfidfModel.termCounts(raw, stopwords).foreach { (word, termFrequency) =>
+      for (idf <- idfs.get(word))
+        obs += FeatureObservation(word, termFrequency/idf)
+    }
+    if (addDefault) obs += FeatureObservation("DEFAULT",1.0)
+    obs
+  }
+
+}
+
+object TfidfModel {
+
+  import nak.util.{CleanStringTokenizer,StringCountTable}
+
+  /**
+    * Tokenize a document the way TfidfBatchFeaturizer does and count its terms.
+    */
+  def termCounts(raw: String, stopwords: Set[String]) = {
+    val counts = new StringCountTable
+    for (word <- CleanStringTokenizer(raw.toLowerCase); if !stopwords(word))
+      counts.increment(word)
+    counts
+  }
+
+}
+
+/**
+  * A tf-idf featurizer that needs only a bounded part of the corpus in memory,
+  * so it can be used on corpora that don't fit. The first pass reads the
+  * examples in batches, counts term and document frequencies over shards of
+  * each batch in parallel, and fits a TfidfModel; the second pass featurizes
+  * the examples lazily with that model. Words are selected as they are by
+  * TfidfBatchFeaturizer.
+  *
+  * The frequency tables are exact by default and grow with the vocabulary.
+  * Giving a sketchWidth greater than zero counts frequencies with count-min
+  * sketches of that width and sketchDepth instead, so that only the words
+  * that pass the count cutoffs are kept. Sketched counts can be a little too
+  * high, so a few words may be selected that would not have been otherwise,
+  * and their idfs may be a little low.
+  */
+class StreamingTfidfFeaturizer[L](
+  minimumUnigramCount: Int = 2,
+  stopwords: Set[String] = Set[String](),
+  addDefault: Boolean = false,
+  batchSize: Int = 10000,
+  sketchWidth: Int = 0,
+  sketchDepth: Int = 5
+) extends BatchFeaturizer[L,String,String] {
+
+  import nak.util.{CountMinSketch,StringCountTable}
+
+  /**
+    * Fit a model to the examples and featurize them. Behaves like
+    * TfidfBatchFeaturizer.
+    */
+  def apply(examples: Seq[Example[L,String]]) =
+    stream(() => examples.iterator).toIndexedSeq
+
+  /**
+    * Fit a model on one pass over the corpus and lazily featurize a second
+    * pass over it.
+    */
+  def stream(corpus: () => Iterator[Example[L,String]])
+      : Iterator[Example[L,Seq[FeatureObservation[String]]]] = {
+    val model = fit(corpus())
+    corpus().map(_.map(model))
+  }
+
+  /**
+    * Compute the document frequencies of the words in the examples and use
+    * them to create a TfidfModel. Only one batch of examples is held in memory
+    * at a time.
+    */
+  def fit(examples: Iterator[Example[L,String]]): TfidfModel = {
+    val frequencies =
+      if (sketchWidth > 0) new SketchedFrequencies
+      else new ExactFrequencies
+
+    var numDocuments = 0
+    for (batch <- examples.grouped(batchSize)) {
+      numDocuments += batch.length
+      val shardSize = math.max(1, batch.length / Runtime.getRuntime.availableProcessors)
+      val (unigramCounts, documentCounts) = batch
+        .grouped(shardSize).toIndexedSeq.par
+        .map(countShard)
+        .reduce((a, b) => (a._1.merge(b._1), a._2.merge(b._2)))
+      frequencies.add(unigramCounts, documentCounts)
+    }
+
+    val idfs = frequencies.selected.map { case (word, docFreq) =>
+      (word, math.log(.001+numDocuments/docFreq.toDouble))
+    }
+    new TfidfModel(idfs.toMap, numDocuments, stopwords, addDefault)
+  }
+
+  private[this] def countShard(shard: Seq[Example[L,String]]) = {
+    val unigramCounts = new StringCountTable
+    val documentCounts = new StringCountTable
+    for (ex <- shard) {
+      TfidfModel.termCounts(ex.features, stopwords).foreach { (word, count) =>
+        unigramCounts.increment(word, count)
+        documentCounts.increment(word)
+      }
+    }
+    (unigramCounts, documentCounts)
+  }
+
+  private[this] def isSelected(unigramFreq: Int, docFreq: Int) =
+    docFreq > 1 && unigramFreq >= minimumUnigramCount
+
+  /**
+    * Accumulates the counts of each batch and gives the words that pass the
+    * cutoffs with their document frequencies.
+    */
+  private[this] trait Frequencies {
+    def add(unigramCounts: StringCountTable, documentCounts: StringCountTable)
+    def selected: Iterator[(String,Int)]
+  }
+
+  private[this] class ExactFrequencies extends Frequencies {
+    private[this] val unigramFrequencies = new StringCountTable
+    private[this] val documentFrequencies = new StringCountTable
+
+    def add(unigramCounts: StringCountTable, documentCounts: StringCountTable) {
+      unigramFrequencies.merge(unigramCounts)
+      documentFrequencies.merge(documentCounts)
+    }
+
+    def selected = documentFrequencies.iterator.filter { case (word, docFreq) =>
+      isSelected(unigramFrequencies(word), docFreq)
+    }
+  }
+
+  private[this] class SketchedFrequencies extends Frequencies {
+    private[this] val unigramFrequencies = new CountMinSketch(sketchDepth, sketchWidth)
+    private[this] val documentFrequencies = new CountMinSketch(sketchDepth, sketchWidth)
+    private[this] val candidates = collection.mutable.HashSet[String]()
+
+    // Estimates only grow, so a word that passes the cutoffs after a batch
+    // it occurs in will still pass them at the end.
+    def add(unigramCounts: StringCountTable, documentCounts: StringCountTable) {
+      documentCounts.foreach { (word, count) =>
+        unigramFrequencies.add(word, unigramCounts(word))
+        documentFrequencies.add(word, count)
+        if (isSelected(unigramFrequencies.estimate(word), documentFrequencies.estimate(word)))
+          candidates += word
+      }
+    }
+
+    def selected = candidates.iterator.map(word => (word, documentFrequencies.estimate(word)))
+  }
+
+}
+
 
 /**
  * A trait for classes that can index features represented as Strings. Non-general
@@ -127,6 +297,13 @@ class TfidfBatchFeaturizer[L](
  */ 
 trait FeatureMap extends Serializable {
   def indexOfFeature(feature: String): Option[Int]
+
+  /**
+   * The index of a feature, or default if it is unknown. Maps that can look
+   * features up without allocating override this.
+   */
+  def indexOfFeatureOrElse(feature: String, default: Int): Int =
+    indexOfFeature(feature).getOrElse(default)
 }
 
 /**
@@ -136,6 +313,141 @@ class ExactFeatureMap(val fmap: Map[String,Int]) extends FeatureMap {
   def indexOfFeature(feature: String) = fmap.get(feature)
 }
 
+/**
+ * A feature map whose lookup structure is one immutable table in a ByteBuffer,
+ * so that it can be a slice of a memory-mapped file shared between processes.
+ * Java serialization copies the table.
+ */
+abstract class TableFeatureMap(@transient protected var table: java.nio.ByteBuffer)
+    extends FeatureMap {
+
+  /** A read-only view of the whole table, e.g. for writing it out. */
+  def tableBuffer = table.duplicate
+
+  private def writeObject(out: java.io.ObjectOutputStream) {
+    out.defaultWriteObject()
+    val bytes = new Array[Byte](table.limit)
+    table.duplicate.get(bytes)
+    out.writeInt(bytes.length)
+    out.write(bytes)
+  }
+
+  private def readObject(in: java.io.ObjectInputStream) {
+    in.defaultReadObject()
+    val bytes = new Array[Byte](in.readInt)
+    in.readFully(bytes)
+    table = java.nio.ByteBuffer.wrap(bytes)
+  }
+
+}
+
+/**
+ * A feature map backed by a table of the UTF-8 bytes of the feature strings,
+ * sorted in byte order and searched by bisection. The table can be a slice of
+ * a memory-mapped file (see nak.core.ClassifierFormat), in which case loading
+ * a classifier neither decodes its feature strings nor puts them on the heap.
+ *
+ * The table holds the number of features n, n+1 offsets of the strings in the
+ * string data, the n feature indices, and then the string data, with all
+ * numbers as big-endian Ints.
+ */
+class SortedStringFeatureMap(buffer: java.nio.ByteBuffer) extends TableFeatureMap(buffer) {
+  import SortedStringFeatureMap._
+
+  /** The number of features. */
+  def size = table.getInt(0)
+
+  def indexOfFeature(feature: String) = {
+    val key = feature.getBytes(UTF8)
+    var low = 0
+    var high = size - 1
+    var found = -1
+    while (found < 0 && low <= high) {
+      val mid = (low + high) >>> 1
+      val cmp = compareAt(mid, key)
+      if (cmp < 0) low = mid + 1
+      else if (cmp > 0) high = mid - 1
+      else found = mid
+    }
+    if (found < 0) None else Some(table.getInt(indicesStart + 4 * found))
+  }
+
+  /** The features and their indices, in byte order of the feature strings. */
+  def iterator: Iterator[(String,Int)] = (0 until size).iterator.map { i =>
+    val bytes = new Array[Byte](offset(i + 1) - offset(i))
+    val view = table.duplicate
+    view.position(stringsStart + offset(i))
+    view.get(bytes)
+    (new String(bytes, UTF8), table.getInt(indicesStart + 4 * i))
+  }
+
+  private[this] def indicesStart = 4 + 4 * (size + 1)
+  private[this] def stringsStart = 4 + 8 * size + 4
+  private[this] def offset(i: Int) = table.getInt(4 + 4 * i)
+
+  // Compare the i-th feature string with key, as unsigned bytes.
+  private[this] def compareAt(i: Int, key: Array[Byte]): Int = {
+    val start = stringsStart + offset(i)
+    val length = offset(i + 1) - offset(i)
+    val common = math.min(length, key.length)
+    var j = 0
+    while (j < common) {
+      val cmp = (table.get(start + j) & 0xff) - (key(j) & 0xff)
+      if (cmp != 0) return cmp
+      j += 1
+    }
+    length - key.length
+  }
+
+}
+
+object SortedStringFeatureMap {
+
+  private val UTF8 = java.nio.charset.Charset.forName("UTF-8")
+
+  /**
+   * Build the table for the given features and write it out.
+   */
+  def write(out: java.io.DataOutput, fmap: Iterable[(String,Int)]) {
+    val entries = fmap.toArray.map { case (f, i) => (f.getBytes(UTF8), i) }
+    java.util.Arrays.sort(entries, new java.util.Comparator[(Array[Byte],Int)] {
+      def compare(a: (Array[Byte],Int), b: (Array[Byte],Int)) = compareBytes(a._1, b._1)
+    })
+    out.writeInt(entries.length)
+    var offset = 0
+    out.writeInt(offset)
+    for ((bytes, _) <- entries) {
+      offset += bytes.length
+      out.writeInt(offset)
+    }
+    for ((_, index) <- entries) out.writeInt(index)
+    for ((bytes, _) <- entries) out.write(bytes)
+  }
+
+  /**
+   * Create a SortedStringFeatureMap on the heap.
+   */
+  def apply(fmap: Iterable[(String,Int)]) = {
+    val bytes = new java.io.ByteArrayOutputStream
+    val out = new java.io.DataOutputStream(bytes)
+    write(out, fmap)
+    out.close()
+    new SortedStringFeatureMap(java.nio.ByteBuffer.wrap(bytes.toByteArray))
+  }
+
+  private def compareBytes(a: Array[Byte], b: Array[Byte]): Int = {
+    val common = math.min(a.length, b.length)
+    var j = 0
+    while (j < common) {
+      val cmp = (a(j) & 0xff) - (b(j) & 0xff)
+      if (cmp != 0) return cmp
+      j += 1
+    }
+    a.length - b.length
+  }
+
+}
+
 
 /**
  * A feature map that uses the MurmurHash3 hash and mods on a prime giving the largest
@@ -147,7 +459,7 @@ class ExactFeatureMap(val fmap: Map[String,Int]) extends FeatureMap {
  * For more details on the hashing trick, see:
  *   http://hunch.net/~jl/projects/hash_reps/index.html
  */ 
-class HashedFeatureMap private(val maxNumberOfFeatures: Int) extends FeatureMap {
+class HashedFeatureMap private[nak] (val maxNumberOfFeatures: Int) extends FeatureMap {
   import scala.util.hashing.MurmurHash3.stringHash
   private[this] def fmap: (String => Int) = featureString => 
     1 + (math.abs(stringHash(featureString)) % maxNumberOfFeatures)
@@ -0,0 +1,243 @@
+/*
+ Copyright 2013 ScalaNLP
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+package nak.data
+
+import java.io.{DataOutput, File, RandomAccessFile}
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * A frozen feature dictionary built on a minimal perfect hash function: each of
+ * the n features hashes to its own slot in 0 until n, where its index and a
+ * 32-bit fingerprint are stored. The feature strings themselves are not stored;
+ * a string that isn't in the dictionary is rejected unless its fingerprint
+ * matches that of the feature in its slot, which happens with probability 2^-32.
+ *
+ * The table takes about 10 bytes per feature (a 4 byte displacement for every
+ * two features, plus the fingerprint and index), and looking up a feature with
+ * indexOfFeatureOrElse allocates nothing. The table is one ByteBuffer, so it can
+ * be written to a file and memory-mapped by many processes at once.
+ *
+ * The hash function is built with the hash-and-displace method: features are
+ * hashed into n/2 buckets, and the buckets, largest first, are given the
+ * smallest displacement that sends all their features to free slots. Buckets
+ * with one feature are put directly into the remaining free slots.
+ *
+ * For more details, see:
+ *   Belazzougui, Botelho and Dietzfelbinger (2009), Hash, displace, and compress.
+ */
+class PerfectHashFeatureMap(buffer: ByteBuffer) extends TableFeatureMap(buffer) {
+  import PerfectHashFeatureMap._
+
+  /** The number of features. */
+  def size = table.getInt(0)
+
+  private[this] def numBuckets = table.getInt(4)
+  private[this] def seed = table.getLong(8)
+  private[this] def fingerprintsStart = HeaderSize + 4 * numBuckets
+  private[this] def indicesStart = fingerprintsStart + 4 * size
+
+  def indexOfFeature(feature: String) = {
+    val index = indexOfFeatureOrElse(feature, -1)
+    if (index < 0) None else Some(index)
+  }
+
+  override def indexOfFeatureOrElse(feature: String, default: Int): Int = {
+    val n = size
+    if (n == 0) return default
+    val h = hash(feature, seed)
+    val displacement = table.getInt(HeaderSize + 4 * bucketOf(h, numBuckets))
+    val slot = if (displacement < 0) -displacement - 1 else slotOf(h, displacement, n)
+    if (table.getInt(fingerprintsStart + 4 * slot) == fingerprintOf(h))
+      table.getInt(indicesStart + 4 * slot)
+    else
+      default
+  }
+
+  /**
+   * Write the table to a file, which can be memory-mapped with
+   * PerfectHashFeatureMap.map.
+   */
+  def save(file: File) {
+    val channel = new RandomAccessFile(file, "rw").getChannel
+    try {
+      channel.truncate(0)
+      channel.write(tableBuffer)
+    } finally {
+      channel.close()
+    }
+  }
+
+}
+
+object PerfectHashFeatureMap {
+
+  private val HeaderSize = 16
+  private val Golden = 0x9E3779B97F4A7C15L
+
+  // Give up on a seed if a bucket needs more displacements than this, which
+  // only happens when two features have the same 64-bit hash.
+  private val MaxDisplacement = 1 << 24
+
+  // Distinct features collide on every one of these seeds with negligible
+  // probability, so running out of seeds means something is badly wrong.
+  private val MaxSeeds = 8
+
+  /**
+   * Build the dictionary for the given features and their indices. Each
+   * feature must appear only once.
+   */
+  def apply(fmap: Iterable[(String,Int)]): PerfectHashFeatureMap = {
+    val entries = fmap.toArray
+    val keys = entries.map(_._1)
+    val indices = entries.map(_._2)
+    // A repeated feature hashes the same way under every seed, so no seed
+    // could ever place it.
+    val seen = new java.util.HashSet[String](keys.length * 2)
+    for (key <- keys)
+      require(seen.add(key), "The feature " + key + " appears more than once.")
+    var seed = 0L
+    var table = build(keys, indices, seed)
+    while (table == None) {
+      seed += 1
+      if (seed == MaxSeeds)
+        throw new IllegalStateException("No perfect hash function found after " + MaxSeeds + " seeds.")
+      table = build(keys, indices, seed)
+    }
+    new PerfectHashFeatureMap(table.get)
+  }
+
+  /**
+   * Memory-map a dictionary written by PerfectHashFeatureMap.save.
+   */
+  def map(file: File) = {
+    val channel = new RandomAccessFile(file, "r").getChannel
+    try {
+      new PerfectHashFeatureMap(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size))
+    } finally {
+      channel.close()
+    }
+  }
+
+  /**
+   * Write the table for the given features to out. It can be read back by
+   * wrapping the bytes written in a ByteBuffer. As with apply, each feature
+   * must appear only once.
+   */
+  def write(out: DataOutput, fmap: Iterable[(String,Int)]) {
+    val table = apply(fmap).tableBuffer
+    val bytes = new Array[Byte](1 << 16)
+    while (table.hasRemaining) {
+      val n = math.min(bytes.length, table.remaining)
+      table.get(bytes, 0, n)
+      out.write(bytes, 0, n)
+    }
+  }
+
+  private def build(keys: Array[String], indices: Array[Int], seed: Long): Option[ByteBuffer] = {
+    val n = keys.length
+    val numBuckets = math.max(1, n / 2)
+    val hashes = keys.map(hash(_, seed))
+
+    // Group the features by bucket with a counting sort.
+    val bucketStarts = new Array[Int](numBuckets + 1)
+    for (h <- hashes) bucketStarts(bucketOf(h, numBuckets) + 1) += 1
+    for (b <- 0 until numBuckets) bucketStarts(b + 1) += bucketStarts(b)
+    val byBucket = new Array[Int](n)
+    val filled = bucketStarts.clone
+    for (i <- 0 until n) {
+      val b = bucketOf(hashes(i), numBuckets)
+      byBucket(filled(b)) = i
+      filled(b) += 1
+    }
+    def bucketSize(b: Int) = bucketStarts(b + 1) - bucketStarts(b)
+    val buckets = (0 until numBuckets).sortBy(b => -bucketSize(b)).toArray
+
+    val displacements = new Array[Int](numBuckets)
+    val slotOwner = Array.fill(n)(-1)
+    val slots = new Array[Int](if (n == 0) 0 else bucketSize(buckets(0)))
+
+    var next = 0
+    while (next < numBuckets && bucketSize(buckets(next)) > 1) {
+      val b = buckets(next)
+      val size = bucketSize(b)
+      var displacement = 0
+      var placed = false
+      while (!placed) {
+        if (displacement == MaxDisplacement) return None
+        var k = 0
+        placed = true
+        while (placed && k < size) {
+          val slot = slotOf(hashes(byBucket(bucketStarts(b) + k)), displacement, n)
+          var j = 0
+          while (j < k) { if (slots(j) == slot) placed = false; j += 1 }
+          if (slotOwner(slot) >= 0) placed = false
+          slots(k) = slot
+          k += 1
+        }
+        if (!placed) displacement += 1
+      }
+      for (k <- 0 until size) slotOwner(slots(k)) = byBucket(bucketStarts(b) + k)
+      displacements(b) = displacement
+      next += 1
+    }
+
+    var free = 0
+    while (next < numBuckets && bucketSize(buckets(next)) == 1) {
+      val b = buckets(next)
+      while (slotOwner(free) >= 0) free += 1
+      slotOwner(free) = byBucket(bucketStarts(b))
+      displacements(b) = -free - 1
+      next += 1
+    }
+
+    val table = ByteBuffer.allocate(HeaderSize + 4 * numBuckets + 8 * n)
+    table.putInt(n).putInt(numBuckets).putLong(seed)
+    displacements.foreach(table.putInt)
+    slotOwner.foreach(i => table.putInt(fingerprintOf(hashes(i))))
+    slotOwner.foreach(i => table.putInt(indices(i)))
+    table.flip()
+    Some(table)
+  }
+
+  // A 64-bit FNV-1a hash of the string's chars, with the MurmurHash3 finalizer.
+  private def hash(s: String, seed: Long): Long = {
+    var h = 0xcbf29ce484222325L ^ (seed * Golden)
+    var i = 0
+    while (i < s.length) {
+      h = (h ^ s.charAt(i)) * 0x100000001b3L
+      i += 1
+    }
+    mix(h)
+  }
+
+  private def mix(x: Long): Long = {
+    var h = x
+    h ^= h >>> 33
+    h *= 0xff51afd7ed558ccdL
+    h ^= h >>> 33
+    h *= 0xc4ceb9fe1a85ec53L
+    h ^ (h >>> 33)
+  }
+
+  private def bucketOf(h: Long, numBuckets: Int) = ((h >>> 33) % numBuckets).toInt
+
+  private def slotOf(h: Long, displacement: Int, n: Int) =
+    ((mix(h + displacement * Golden) >>> 1) % n).toInt
+
+  private def fingerprintOf(h: Long) = h.toInt
+
+}
@@ -5,55 +5,96 @@ import breeze.numerics._
 import breeze.stats.distributions.{Dirichlet, Bernoulli, Gaussian}
 
 /**
- * 
+ * Expectation propagation over the data f, with one approximate site factor
+ * for each datum. The site approximations and their partitions are kept in
+ * arrays that are updated in place, so a pass over n data costs n site
+ * updates and a State is a snapshot taken once per pass.
+ *
  * @author dlwh
  */
 class ExpectationPropagation[F,Q <: AnyRef](project: (Q,F)=>(Q,Double), criterion: Double = 1E-4)(implicit qFactor: Q <:<Factor[Q]) {
+  /**
+   * The approximations after a pass. q is always prior times all the site
+   * approximations f_~, so logPartition doesn't need to multiply them again.
+   */
   case class State(f_~ : IndexedSeq[Q], q: Q, prior: Q, partitions: IndexedSeq[Double]) {
-    lazy val logPartition = f_~.foldLeft(prior)(_*_).logPartition + partitions.sum
+    lazy val logPartition = q.logPartition + partitions.sum
   }
 
-  def inference(prior: Q, f: IndexedSeq[F], initialF_~ : IndexedSeq[Q]):Iterator[State] = {
-    val lastQ: Q = initialF_~.foldLeft(prior)(_ * _)
-
-    val initPartitions = IndexedSeq.fill(f.length)(Double.NegativeInfinity)
-
-    // pass through the data
-    val it:Iterator[State] = new Iterator[State] {
-      var cur = State(initialF_~, lastQ, prior, initPartitions)
-      var consumed = true
-
-      def hasNext = !consumed || {
-        val next =  (0 until f.length).iterator.foldLeft(cur) { (state,i) =>
-          val State(f_~, q, _, partitions) = state
-          val fi = f(i)
-          val fi_~ = f_~(i)
-          val q_\  = q / fi_~
-          val (new_q, new_partition) = project(q_\ , fi)
-          val newF_~ = f_~.updated(i,new_q / q_\)
-          State(newF_~, new_q, prior, partitions.updated(i, new_partition))
+  def inference(prior: Q, f: IndexedSeq[F], initialF_~ : IndexedSeq[Q]):Iterator[State] =
+    new Passes(prior, f, initialF_~)({ (sites, partitions, q) =>
+      var current = q
+      var i = 0
+      while (i < f.length) {
+        val q_\  = current / sites(i)
+        val (new_q, new_partition) = project(q_\ , f(i))
+        sites(i) = new_q / q_\
+        partitions(i) = new_partition
+        current = new_q
+        i += 1
+      }
+      current
+    })
+
+  /**
+   * Expectation propagation that updates every site in parallel from the
+   * approximation of the last pass, so project must be safe to call
+   * concurrently. Each new site approximation keeps the given fraction of the
+   * old one geometrically, which parallel updates usually need to converge.
+   */
+  def parallelInference(prior: Q, f: IndexedSeq[F], initialF_~ : IndexedSeq[Q], damping: Double = 0.5)
+                       (implicit qExp: Q <:< ExpFactor[Q]):Iterator[State] = {
+    require(damping >= 0.0 && damping < 1.0, "Damping must be in [0, 1).")
+    new Passes(prior, f, initialF_~)({ (sites, partitions, q) =>
+      val blocks = 0 until f.length by ExpectationPropagation.BlockSize
+      (if (blocks.length > 1) blocks.par else blocks).foreach { start =>
+        for (i <- start until math.min(f.length, start + ExpectationPropagation.BlockSize)) {
+          val q_\  = q / sites(i)
+          val (new_q, new_partition) = project(q_\ , f(i))
+          val fresh = new_q / q_\
+          sites(i) = if (damping == 0.0) fresh else (sites(i) ** damping) * (fresh ** (1 - damping))
+          partitions(i) = new_partition
         }
-        val hasNext = (cur.q eq lastQ) || !next.q.isConvergedTo(cur.q, criterion)
-        consumed = !hasNext
-        cur = next
-        hasNext
       }
+      sites.foldLeft(prior)(_ * _)
+    })
+  }
 
-      def next() = {
-        if(consumed) hasNext
-        consumed = true
-        cur
-      }
+  // Runs passes until q converges. pass updates the sites and partitions in
+  // place from the current q and returns the new one.
+  private class Passes(prior: Q, f: IndexedSeq[F], initialF_~ : IndexedSeq[Q])
+                      (pass: (Array[Q], Array[Double], Q) => Q) extends Iterator[State] {
+    private val sites = initialF_~.toArray[AnyRef].asInstanceOf[Array[Q]]
+    private val partitions = Array.fill(f.length)(Double.NegativeInfinity)
+    private val lastQ: Q = initialF_~.foldLeft(prior)(_ * _)
+
+    var cur = snapshot(lastQ)
+    var consumed = true
+
+    private def snapshot(q: Q) = State(sites.clone().toIndexedSeq, q, prior, partitions.clone().toIndexedSeq)
+
+    def hasNext = !consumed || {
+      val nextQ = pass(sites, partitions, cur.q)
+      val next = snapshot(nextQ)
+      val hasNext = (cur.q eq lastQ) || !nextQ.isConvergedTo(cur.q, criterion)
+      consumed = !hasNext
+      cur = next
+      hasNext
     }
 
-    it
+    def next() = {
+      if(consumed) hasNext
+      consumed = true
+      cur
+    }
   }
 
-
-
 }
 
 object ExpectationPropagation extends App {
+  /** The number of sites updated by each task in parallel passes. */
+  private final val BlockSize = 1024
+
   val prop = 0.9
   val mean = 2
   val gen = for {
@@ -63,9 +104,11 @@ object ExpectationPropagation extends App {
 
   val data = gen.sample(5000)
 
-  case class ApproxTerm(s: Double = 0.0, b: DenseVector[Double] = DenseVector.zeros(2)) extends Factor[ApproxTerm] { f1 =>
+  case class ApproxTerm(s: Double = 0.0, b: DenseVector[Double] = DenseVector.zeros(2)) extends ExpFactor[ApproxTerm] { f1 =>
     def logPartition = s + breeze.numerics.lbeta(b)
 
+    def **(f: Double) = ApproxTerm(s * f, b * f)
+
     def *(f: Double) = copy(s = s + f)
     def *(f2: ApproxTerm) = {
       ApproxTerm(f1.s + f2.s, f1.b + f2.b)
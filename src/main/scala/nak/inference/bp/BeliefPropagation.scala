@@ -27,6 +27,21 @@ object BeliefPropagation {
                      beliefs: IndexedSeq[DenseVector[Double]],
                      messages: IndexedSeq[IndexedSeq[DenseVector[Double]]],
                      factorLogPartitions: IndexedSeq[Double]) {
+    private var _stats = ConvergenceStats.Unknown
+
+    /** Beliefs from inference that went as described by stats. */
+    def this(model: Model,
+             beliefs: IndexedSeq[DenseVector[Double]],
+             messages: IndexedSeq[IndexedSeq[DenseVector[Double]]],
+             factorLogPartitions: IndexedSeq[Double],
+             stats: ConvergenceStats) = {
+      this(model, beliefs, messages, factorLogPartitions)
+      _stats = stats
+    }
+
+    /** How inference went; ConvergenceStats.Unknown for Beliefs built otherwise, including by copy. */
+    def stats: ConvergenceStats = _stats
+
     def marginalFor[T](v: Variable[T]): Counter[T, Double] = Encoder.fromIndex(v.domain).decode(beliefs(model.variableIndex(v)))
 
 
@@ -86,6 +101,15 @@ object BeliefPropagation {
     val logPartition = factorLogPartitions.sum + messageContribution
   }
 
+  /**
+   * Performs inference on the model by compiling it into flat log-space
+   * tables (see [[nak.inference.bp.CompiledModel]]), which is much faster
+   * than infer for models with many small factors, updating the factors in
+   * the order given by schedule.
+   */
+  def inferCompiled(model: Model, maxIterations: Int = 10, tolerance: Double = 1E-4, schedule: Schedule = Schedule.Sequential) =
+    new CompiledModel(model).infer(maxIterations, tolerance, schedule)
+
   /**
    * Performs inference on the model, giving a Beliefs object with marginals
    * @param model
@@ -94,6 +118,7 @@ object BeliefPropagation {
    * @return
    */
   def infer(model: Model, maxIterations: Int = 10, tolerance: Double = 1E-4) = {
+    val start = System.nanoTime
     val beliefs = model.variables.map{ v =>
       val b = DenseVector.ones[Double](v.domain.size)
       b /= b.size.toDouble
@@ -132,11 +157,13 @@ object BeliefPropagation {
 
     var converged = false
     var iter = 0
+    var maxResidual = Double.PositiveInfinity
 
     val otherFactors = BitSet.empty ++ (0 until model.factors.length) -- oneVariableFactors
 
     while(!converged && iter < maxIterations) {
       converged = true
+      maxResidual = 0.0
       for(f <- 0 until model.factors.length) {
         // localize the old beliefs and divide out the messages
         val divided = for( (v, m_fv) <- model.factorVariablesByIndices(f) zip messages(f)) yield {
@@ -148,7 +175,9 @@ object BeliefPropagation {
         // normalize new beliefs
         // compute new messages, store new beliefs in old beliefs
         for ( (globalV, localV) <- model.factorVariablesByIndices(f).zipWithIndex) {
-          converged &&= (norm(beliefs(globalV) - newBeliefs(localV), inf) < 1E-4)
+          val residual = maxDifference(beliefs(globalV), newBeliefs(localV))
+          maxResidual = math.max(maxResidual, residual)
+          converged &&= residual < tolerance
           if(!converged) {
             beliefs(globalV) := newBeliefs(localV)
             val mfv = messages(f)(localV)
@@ -167,6 +196,17 @@ object BeliefPropagation {
     }
 
 
-    new Beliefs(model, beliefs, messages, partitions)
+    val stats = ConvergenceStats(iter, iter.toLong * model.factors.length, maxResidual, converged, (System.nanoTime - start) / 1E6)
+    new Beliefs(model, beliefs, messages, partitions, stats)
+  }
+
+  private def maxDifference(a: DenseVector[Double], b: DenseVector[Double]) = {
+    var max = 0.0
+    var i = 0
+    while (i < a.length) {
+      max = math.max(max, math.abs(a(i) - b(i)))
+      i += 1
+    }
+    max
   }
 }
@@ -0,0 +1,601 @@
+package nak.inference.bp
+
+import breeze.linalg.DenseVector
+
+/**
+ * A Model compiled for belief propagation. Every factor is tabulated once
+ * into a flat array of log potentials, and inference runs over flat arrays of
+ * log beliefs and log messages with indexed loops, allocating nothing per
+ * factor or per iteration.
+ *
+ * This gives the same beliefs as BeliefPropagation.infer, but factors that
+ * override updateBeliefs are only seen through their potentials, and each
+ * factor's table holds an entry for every joint assignment to its variables.
+ */
+class CompiledModel(val model: Model) {
+
+  val structure = CompiledModel.Structure(model)
+
+  /** The log potentials of all the factors, laid out by structure. */
+  val logPotentials = structure.tabulate(model.factors)
+
+  def infer(maxIterations: Int = 10, tolerance: Double = 1E-4, schedule: Schedule = Schedule.Sequential): BeliefPropagation.Beliefs = {
+    val engine = new CompiledModel.Engine(structure)
+    val stats = engine.run(logPotentials, maxIterations, tolerance, schedule)
+    engine.beliefs(model, stats)
+  }
+
+}
+
+object CompiledModel {
+
+  /** The number of factors or variables updated together in parallel sweeps. */
+  private val BlockSize = 256
+
+  /**
+   * A max-heap of factors by residual, in which the residual of any factor
+   * can be changed.
+   */
+  private class ResidualQueue(size: Int) {
+    private val residuals = new Array[Double](size)
+    private val heap = Array.range(0, size)
+    private val positions = Array.range(0, size)
+
+    def max = heap(0)
+    def maxResidual = residuals(heap(0))
+
+    def update(f: Int, residual: Double) {
+      val old = residuals(f)
+      residuals(f) = residual
+      if (residual > old) siftUp(positions(f)) else siftDown(positions(f))
+    }
+
+    private def siftUp(start: Int) {
+      var i = start
+      while (i > 0 && residuals(heap((i - 1) / 2)) < residuals(heap(i))) {
+        swap(i, (i - 1) / 2)
+        i = (i - 1) / 2
+      }
+    }
+
+    private def siftDown(start: Int) {
+      var i = start
+      var done = false
+      while (!done) {
+        var largest = i
+        val left = 2 * i + 1
+        if (left < size && residuals(heap(left)) > residuals(heap(largest))) largest = left
+        if (left + 1 < size && residuals(heap(left + 1)) > residuals(heap(largest))) largest = left + 1
+        if (largest == i) done = true
+        else {
+          swap(i, largest)
+          i = largest
+        }
+      }
+    }
+
+    private def swap(i: Int, j: Int) {
+      val t = heap(i)
+      heap(i) = heap(j)
+      heap(j) = t
+      positions(heap(i)) = i
+      positions(heap(j)) = j
+    }
+  }
+
+  /**
+   * The shape of a factor graph: the domain size of each variable and the
+   * variables of each factor, by index. An edge joins a factor to one of its
+   * variables, and the edges of factor f are edgeStarts(f) until
+   * edgeStarts(f+1).
+   *
+   * Flat arrays are laid out as follows:
+   *  - Beliefs: variable v's entries start at variableOffsets(v).
+   *  - Messages: edge e's entries start at edgeOffsets(e).
+   *  - Tables: factor f's table starts at tableOffsets(f), listing its joint
+   *    assignments with the last variable changing fastest, so variable i of
+   *    the factor has stride edgeStrides(edgeStarts(f) + i).
+   */
+  @SerialVersionUID(1L)
+  final class Structure(val variableSizes: Array[Int], val factorVariables: Array[Array[Int]]) extends Serializable {
+
+    def numVariables = variableSizes.length
+    def numFactors = factorVariables.length
+
+    val variableOffsets: Array[Int] = variableSizes.scanLeft(0)(_ + _)
+
+    val edgeStarts: Array[Int] = factorVariables.map(_.length).scanLeft(0)(_ + _)
+
+    def numEdges = edgeStarts.last
+
+    val edgeVariables: Array[Int] = factorVariables.flatten
+
+    val edgeOffsets: Array[Int] = edgeVariables.map(variableSizes).scanLeft(0)(_ + _)
+
+    val edgeStrides: Array[Int] = factorVariables.flatMap { vars =>
+      vars.indices.map(i => vars.drop(i + 1).map(variableSizes).product)
+    }
+
+    val edgeFactors: Array[Int] = Array.tabulate(numFactors)(f => Array.fill(factorVariables(f).length)(f)).flatten
+
+    /** The edges of variable v are variableEdges(variableEdgeStarts(v) until variableEdgeStarts(v+1)). */
+    val variableEdgeStarts: Array[Int] = {
+      val degrees = new Array[Int](numVariables)
+      edgeVariables.foreach(v => degrees(v) += 1)
+      degrees.scanLeft(0)(_ + _)
+    }
+
+    val variableEdges: Array[Int] = {
+      val edges = new Array[Int](numEdges)
+      val next = java.util.Arrays.copyOf(variableEdgeStarts, numVariables)
+      for (e <- 0 until numEdges) {
+        edges(next(edgeVariables(e))) = e
+        next(edgeVariables(e)) += 1
+      }
+      edges
+    }
+
+    val tableOffsets: Array[Int] = factorVariables.map(_.map(variableSizes).product).scanLeft(0)(_ + _)
+
+    val maxTableSize = if (numFactors == 0) 0 else (0 until numFactors).map(f => tableOffsets(f + 1) - tableOffsets(f)).max
+
+    /** The index in a factor's table of an assignment to its variables. */
+    def tableIndex(f: Int, assignment: Array[Int]): Int = {
+      var index = 0
+      var i = 0
+      while (i < assignment.length) {
+        index += assignment(i) * edgeStrides(edgeStarts(f) + i)
+        i += 1
+      }
+      index
+    }
+
+    /**
+     * The log potentials of factors with this structure. Assignments that a
+     * factor's foreachAssignment skips get -infinity.
+     */
+    def tabulate(factors: IndexedSeq[Factor]): Array[Double] = {
+      require(factors.length == numFactors, "Expected " + numFactors + " factors, got " + factors.length)
+      val table = Array.fill(tableOffsets.last)(Double.NegativeInfinity)
+      for (f <- 0 until numFactors) {
+        val offset = tableOffsets(f)
+        // BeliefPropagation.infer scores with apply, which some factors override instead of logApply.
+        factors(f).foreachAssignment { ass => table(offset + tableIndex(f, ass)) = math.log(factors(f)(ass)) }
+      }
+      table
+    }
+  }
+
+  object Structure {
+    def apply(model: Model): Structure =
+      new Structure(model.variables.map(_.size).toArray, model.factorVariablesByIndices)
+  }
+
+  /**
+   * Preallocated state for belief propagation over one structure. Beliefs
+   * are normalized log probabilities, and messages are in log space too.
+   */
+  final class Engine(val structure: Structure) {
+    import structure._
+
+    val logBeliefs = new Array[Double](variableOffsets.last)
+    // the same beliefs, not in log space
+    private val probabilities = new Array[Double](variableOffsets.last)
+    val logMessages = new Array[Double](edgeOffsets.last)
+    val logPartitions = new Array[Double](numFactors)
+
+    // The beliefs of each edge's variable with the edge's message divided out.
+    private val divided = new Array[Double](edgeOffsets.last)
+    // The beliefs each edge's variable would get from updating its factor,
+    // not in log space.
+    private val pending = new Array[Double](edgeOffsets.last)
+    private val pendingPartitions = new Array[Double](numFactors)
+    private val scores = new Array[Double](maxTableSize)
+    // scratch space for each block of factors in parallel sweeps
+    private lazy val blockScores = Array.fill((numFactors + BlockSize - 1) / BlockSize)(new Array[Double](maxTableSize))
+
+    /** Uniform beliefs and messages of 1. */
+    def reset() {
+      for (v <- 0 until numVariables) {
+        java.util.Arrays.fill(logBeliefs, variableOffsets(v), variableOffsets(v + 1), -math.log(variableSizes(v)))
+        java.util.Arrays.fill(probabilities, variableOffsets(v), variableOffsets(v + 1), 1.0 / variableSizes(v))
+      }
+      java.util.Arrays.fill(logMessages, 0.0)
+      java.util.Arrays.fill(logPartitions, 0.0)
+    }
+
+    /**
+     * Update factors in the order given by schedule until no belief changes
+     * by tolerance or more, or until maxIterations sweeps' worth of updates.
+     */
+    def run(logPotentials: Array[Double], maxIterations: Int, tolerance: Double, schedule: Schedule = Schedule.Sequential): ConvergenceStats = {
+      val start = System.nanoTime
+      reset()
+      val (iterations, updates, residual) = schedule match {
+        case Schedule.Sequential => runSequential(logPotentials, maxIterations, tolerance)
+        case Schedule.Parallel(damping) => runParallel(logPotentials, maxIterations, tolerance, damping)
+        case Schedule.Residual => runResidual(logPotentials, maxIterations, tolerance)
+      }
+      ConvergenceStats(iterations, updates, residual, residual < tolerance, (System.nanoTime - start) / 1E6)
+    }
+
+    private def runSequential(logPotentials: Array[Double], maxIterations: Int, tolerance: Double) = {
+      var iter = 0
+      var residual = Double.PositiveInfinity
+      while (residual >= tolerance && iter < maxIterations) {
+        residual = 0.0
+        var f = 0
+        while (f < numFactors) {
+          residual = math.max(residual, update(f, logPotentials))
+          f += 1
+        }
+        iter += 1
+      }
+      (iter, iter.toLong * numFactors, residual)
+    }
+
+    // Jacobi updates: every factor is evaluated from the beliefs of the last
+    // sweep, in parallel, and then the beliefs are rebuilt from the messages.
+    private def runParallel(logPotentials: Array[Double], maxIterations: Int, tolerance: Double, damping: Double) = {
+      val blocks = (0 until blockScores.length).par
+      val variableBlocks = (0 until numVariables by BlockSize).par
+      var iter = 0
+      var residual = Double.PositiveInfinity
+      while (residual >= tolerance && iter < maxIterations) {
+        blocks.foreach { block =>
+          var f = block * BlockSize
+          while (f < math.min(numFactors, (block + 1) * BlockSize)) {
+            evaluate(f, logPotentials, blockScores(block))
+            commitMessages(f, damping)
+            f += 1
+          }
+        }
+        residual = variableBlocks.map { start =>
+          var blockResidual = 0.0
+          var v = start
+          while (v < math.min(numVariables, start + BlockSize)) {
+            blockResidual = math.max(blockResidual, rebuildBelief(v))
+            v += 1
+          }
+          blockResidual
+        }.max
+        iter += 1
+      }
+      (iter, iter.toLong * numFactors, residual)
+    }
+
+    // Residual belief propagation: always update the factor whose pending
+    // beliefs differ most from the current ones.
+    private def runResidual(logPotentials: Array[Double], maxIterations: Int, tolerance: Double) = {
+      val queue = new ResidualQueue(numFactors)
+      for (f <- 0 until numFactors) {
+        evaluate(f, logPotentials, scores)
+        queue.update(f, pendingResidual(f))
+      }
+      val maxUpdates = maxIterations.toLong * numFactors
+      var updates = 0L
+      while (numFactors > 0 && updates < maxUpdates && queue.maxResidual >= tolerance) {
+        val f = queue.max
+        commit(f)
+        queue.update(f, 0.0)
+        updates += 1
+        var e = edgeStarts(f)
+        while (e < edgeStarts(f + 1)) {
+          val v = edgeVariables(e)
+          var i = variableEdgeStarts(v)
+          while (i < variableEdgeStarts(v + 1)) {
+            val g = edgeFactors(variableEdges(i))
+            if (g != f) {
+              evaluate(g, logPotentials, scores)
+              queue.update(g, pendingResidual(g))
+            }
+            i += 1
+          }
+          e += 1
+        }
+      }
+      val iterations = if (numFactors == 0) 0 else ((updates + numFactors - 1) / numFactors).toInt
+      (iterations, updates, if (numFactors == 0) 0.0 else queue.maxResidual)
+    }
+
+    /**
+     * Update the beliefs of factor f's variables and its messages, returning
+     * the largest change in any of the beliefs.
+     */
+    def update(f: Int, logPotentials: Array[Double]): Double = {
+      evaluate(f, logPotentials, scores)
+      commit(f)
+    }
+
+    /**
+     * Compute the beliefs the variables of factor f would get from it into
+     * the pending entries of its edges, and its log partition, using the
+     * scratch space scores.
+     */
+    private def evaluate(f: Int, logPotentials: Array[Double], scores: Array[Double]) {
+      val firstEdge = edgeStarts(f)
+      val arity = edgeStarts(f + 1) - firstEdge
+      var e = firstEdge
+      while (e < firstEdge + arity) {
+        val belief = variableOffsets(edgeVariables(e))
+        var a = 0
+        while (a < edgeOffsets(e + 1) - edgeOffsets(e)) {
+          val d = logBeliefs(belief + a) - logMessages(edgeOffsets(e) + a)
+          divided(edgeOffsets(e) + a) = if (d.isNaN) Double.NegativeInfinity else d
+          pending(edgeOffsets(e) + a) = 0.0
+          a += 1
+        }
+        e += 1
+      }
+
+      val table = tableOffsets(f)
+      val size = tableOffsets(f + 1) - table
+      var max = Double.NegativeInfinity
+      var s = 0
+      if (arity == 2) {
+        val in0 = edgeOffsets(firstEdge)
+        val in1 = edgeOffsets(firstEdge + 1)
+        val size1 = edgeStrides(firstEdge)
+        var a0 = 0
+        while (s < size) {
+          val d0 = divided(in0 + a0)
+          var a1 = 0
+          while (a1 < size1) {
+            val score = logPotentials(table + s) + d0 + divided(in1 + a1)
+            scores(s) = score
+            if (score > max) max = score
+            a1 += 1
+            s += 1
+          }
+          a0 += 1
+        }
+      } else {
+        while (s < size) {
+          var score = logPotentials(table + s)
+          if (arity == 1) {
+            score += divided(edgeOffsets(firstEdge) + s)
+          } else {
+            var i = 0
+            while (i < arity) {
+              score += divided(edgeOffsets(firstEdge + i) + assignment(firstEdge + i, s))
+              i += 1
+            }
+          }
+          scores(s) = score
+          if (score > max) max = score
+          s += 1
+        }
+      }
+
+      if (max == Double.NegativeInfinity) {
+        // Nothing is possible, so leave the beliefs as they are.
+        e = firstEdge
+        while (e < firstEdge + arity) {
+          System.arraycopy(probabilities, variableOffsets(edgeVariables(e)), pending, edgeOffsets(e), edgeOffsets(e + 1) - edgeOffsets(e))
+          e += 1
+        }
+        pendingPartitions(f) = Double.NegativeInfinity
+        return
+      }
+
+      var partition = 0.0
+      if (arity == 1) {
+        val out = edgeOffsets(firstEdge)
+        s = 0
+        while (s < size) {
+          val score = math.exp(scores(s) - max)
+          partition += score
+          pending(out + s) += score
+          s += 1
+        }
+      } else if (arity == 2) {
+        val out0 = edgeOffsets(firstEdge)
+        val out1 = edgeOffsets(firstEdge + 1)
+        val size1 = edgeStrides(firstEdge)
+        s = 0
+        var a0 = 0
+        while (s < size) {
+          var rowSum = 0.0
+          var a1 = 0
+          while (a1 < size1) {
+            val score = math.exp(scores(s) - max)
+            rowSum += score
+            pending(out1 + a1) += score
+            a1 += 1
+            s += 1
+          }
+          pending(out0 + a0) += rowSum
+          partition += rowSum
+          a0 += 1
+        }
+      } else {
+        s = 0
+        while (s < size) {
+          val score = math.exp(scores(s) - max)
+          partition += score
+          var i = 0
+          while (i < arity) {
+            pending(edgeOffsets(firstEdge + i) + assignment(firstEdge + i, s)) += score
+            i += 1
+          }
+          s += 1
+        }
+      }
+
+      var i = edgeOffsets(firstEdge)
+      while (i < edgeOffsets(firstEdge + arity)) {
+        pending(i) /= partition
+        i += 1
+      }
+      pendingPartitions(f) = max + math.log(partition)
+    }
+
+    // The value of edge e's variable in entry s of its factor's table.
+    private def assignment(e: Int, s: Int) =
+      (s / edgeStrides(e)) % (edgeOffsets(e + 1) - edgeOffsets(e))
+
+    /**
+     * Replace the beliefs of factor f's variables with its pending ones and
+     * update its messages, returning the largest change in any belief.
+     */
+    private def commit(f: Int): Double = {
+      logPartitions(f) = pendingPartitions(f)
+      var residual = 0.0
+      var e = edgeStarts(f)
+      while (e < edgeStarts(f + 1)) {
+        val belief = variableOffsets(edgeVariables(e))
+        var a = 0
+        while (a < edgeOffsets(e + 1) - edgeOffsets(e)) {
+          val i = edgeOffsets(e) + a
+          residual = math.max(residual, math.abs(pending(i) - probabilities(belief + a)))
+          probabilities(belief + a) = pending(i)
+          logBeliefs(belief + a) = math.log(pending(i))
+          val message = logBeliefs(belief + a) - divided(i)
+          // nans are usually from infinities or division by 0.0, so fall back to a message of 1.
+          logMessages(i) = if (message.isNaN || message.isInfinite) 0.0 else message
+          a += 1
+        }
+        e += 1
+      }
+      residual
+    }
+
+    // The largest difference between the pending and current beliefs of factor f's variables.
+    private def pendingResidual(f: Int): Double = {
+      var residual = 0.0
+      var e = edgeStarts(f)
+      while (e < edgeStarts(f + 1)) {
+        val belief = variableOffsets(edgeVariables(e))
+        var a = 0
+        while (a < edgeOffsets(e + 1) - edgeOffsets(e)) {
+          residual = math.max(residual, math.abs(pending(edgeOffsets(e) + a) - probabilities(belief + a)))
+          a += 1
+        }
+        e += 1
+      }
+      residual
+    }
+
+    // Set factor f's messages from its pending beliefs, keeping damping of
+    // each old message, without touching the beliefs. The beliefs are
+    // rebuilt from the messages alone, so a message of -inf, from a state the
+    // factor rules out, is kept as it is rather than damped, which would give
+    // nan from -inf * 0. A nan comes from a state that was already ruled out,
+    // so it leaves the old message, as does +inf.
+    private def commitMessages(f: Int, damping: Double) {
+      logPartitions(f) = pendingPartitions(f)
+      var i = edgeOffsets(edgeStarts(f))
+      while (i < edgeOffsets(edgeStarts(f + 1))) {
+        val message = math.log(pending(i)) - divided(i)
+        if (message == Double.NegativeInfinity)
+          logMessages(i) = message
+        else if (!message.isNaN && !message.isInfinite)
+          logMessages(i) = if (damping == 0.0) message else (1 - damping) * message + damping * logMessages(i)
+        i += 1
+      }
+    }
+
+    // Set the belief of variable v to the normalized product of its incoming
+    // messages, returning the largest change.
+    private def rebuildBelief(v: Int): Double = {
+      val belief = variableOffsets(v)
+      val size = variableSizes(v)
+      var a = 0
+      while (a < size) {
+        logBeliefs(belief + a) = 0.0
+        a += 1
+      }
+      var i = variableEdgeStarts(v)
+      while (i < variableEdgeStarts(v + 1)) {
+        val offset = edgeOffsets(variableEdges(i))
+        a = 0
+        while (a < size) {
+          logBeliefs(belief + a) += logMessages(offset + a)
+          a += 1
+        }
+        i += 1
+      }
+      var max = Double.NegativeInfinity
+      a = 0
+      while (a < size) {
+        max = math.max(max, logBeliefs(belief + a))
+        a += 1
+      }
+      var sum = 0.0
+      a = 0
+      while (a < size) {
+        sum += math.exp(logBeliefs(belief + a) - max)
+        a += 1
+      }
+      val normalizer = max + math.log(sum)
+      var residual = 0.0
+      a = 0
+      while (a < size) {
+        logBeliefs(belief + a) -= normalizer
+        val probability = math.exp(logBeliefs(belief + a))
+        residual = math.max(residual, math.abs(probability - probabilities(belief + a)))
+        probabilities(belief + a) = probability
+        a += 1
+      }
+      residual
+    }
+
+    /** Copy the current beliefs, not in log space, into out starting at offset. */
+    def copyBeliefs(out: Array[Double], offset: Int) {
+      System.arraycopy(probabilities, 0, out, offset, probabilities.length)
+    }
+
+    /** The Bethe estimate of the log partition, as in Beliefs.logPartition. */
+    def logPartition: Double = {
+      var total = 0.0
+      var f = 0
+      while (f < numFactors) {
+        total += logPartitions(f)
+        f += 1
+      }
+      var v = 0
+      while (v < numVariables) {
+        val size = variableSizes(v)
+        var max = Double.NegativeInfinity
+        var a = 0
+        while (a < size) {
+          max = math.max(max, incomingLogMessages(v, a))
+          a += 1
+        }
+        var sum = 0.0
+        a = 0
+        while (a < size) {
+          sum += math.exp(incomingLogMessages(v, a) - max)
+          a += 1
+        }
+        total += max + math.log(sum)
+        v += 1
+      }
+      total
+    }
+
+    private def incomingLogMessages(v: Int, a: Int) = {
+      var sum = 0.0
+      var i = variableEdgeStarts(v)
+      while (i < variableEdgeStarts(v + 1)) {
+        sum += logMessages(edgeOffsets(variableEdges(i)) + a)
+        i += 1
+      }
+      sum
+    }
+
+    /** The current beliefs as a Beliefs object for model, which must have this structure. */
+    def beliefs(model: Model, stats: ConvergenceStats = ConvergenceStats.Unknown): BeliefPropagation.Beliefs = {
+      val beliefs = (0 until numVariables).map { v =>
+        DenseVector.tabulate(variableSizes(v))(a => probabilities(variableOffsets(v) + a))
+      }
+      val messages = (0 until numFactors).map { f =>
+        (edgeStarts(f) until edgeStarts(f + 1)).map { e =>
+          DenseVector.tabulate(edgeOffsets(e + 1) - edgeOffsets(e))(a => math.exp(logMessages(edgeOffsets(e) + a)))
+        }
+      }
+      new BeliefPropagation.Beliefs(model, beliefs, messages, logPartitions.toIndexedSeq, stats)
+    }
+  }
+
+}
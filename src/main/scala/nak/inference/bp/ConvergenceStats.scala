@@ -0,0 +1,17 @@
+package nak.inference.bp
+
+/**
+ * How a run of belief propagation went.
+ *
+ * @param iterations the number of sweeps, or of updates divided by the number of factors for Residual
+ * @param updates the number of factor updates
+ * @param maxResidual the largest change in a belief in the last sweep, or pending for Residual
+ * @param converged whether maxResidual fell below the tolerance
+ * @param millis the time taken
+ */
+case class ConvergenceStats(iterations: Int, updates: Long, maxResidual: Double, converged: Boolean, millis: Double)
+
+object ConvergenceStats {
+  /** For Beliefs built without running inference. */
+  val Unknown = ConvergenceStats(0, 0L, Double.NaN, false, 0.0)
+}
@@ -0,0 +1,38 @@
+package nak.inference.bp
+
+/**
+ * The order in which compiled belief propagation updates factors.
+ */
+sealed trait Schedule extends Serializable
+
+object Schedule {
+
+  /**
+   * Sweep over the factors in order, each update seeing the updates before
+   * it, as BeliefPropagation.infer does.
+   */
+  case object Sequential extends Schedule
+
+  /**
+   * Jacobi updates: in each sweep every factor computes its messages from
+   * the beliefs of the last sweep, in parallel, and the beliefs are then
+   * rebuilt from the messages. This usually needs more sweeps than
+   * Sequential; damping, the fraction of each old log message kept, helps it
+   * converge on loopy graphs.
+   */
+  case class Parallel(damping: Double = 0.0) extends Schedule {
+    require(damping >= 0.0 && damping < 1.0, "Damping must be in [0, 1).")
+  }
+
+  /**
+   * Residual belief propagation: always update the factor whose new beliefs
+   * would differ most from the current ones, which tends to need far fewer
+   * updates when only parts of the graph are slow to converge.
+   *
+   * For more details, see:
+   *   Elidan, McGraw and Koller (2006), Residual Belief Propagation: Informed
+   *   Scheduling for Asynchronous Message Passing.
+   */
+  case object Residual extends Schedule
+
+}
@@ -0,0 +1,85 @@
+package nak.inference.bp
+
+import java.util.concurrent.ConcurrentLinkedQueue
+
+import breeze.linalg.DenseVector
+
+/**
+ * The shared structure of many factor graphs that differ only in their
+ * potentials, compiled once for belief propagation. Each graph is given by
+ * the flat log potentials that tabulate makes from its factors, and batches
+ * of graphs are inferred in parallel, reusing preallocated engines across
+ * batches.
+ */
+class Template(val structure: CompiledModel.Structure) {
+
+  def this(model: Model) = this(CompiledModel.Structure(model))
+
+  // idle engines, each used by one task at a time
+  private val engines = new ConcurrentLinkedQueue[CompiledModel.Engine]
+
+  /** The log potentials of a graph with this structure, given its factors in order. */
+  def tabulate(factors: IndexedSeq[Factor]): Array[Double] = structure.tabulate(factors)
+
+  /**
+   * Run belief propagation on each graph, given by its log potentials,
+   * spreading blocks of graphs over the cores.
+   */
+  def inferAll(logPotentials: IndexedSeq[Array[Double]],
+               maxIterations: Int = 10,
+               tolerance: Double = 1E-4,
+               schedule: Schedule = Schedule.Sequential): Template.Marginals = {
+    val tableSize = structure.tableOffsets.last
+    for (g <- logPotentials.indices)
+      require(logPotentials(g).length == tableSize,
+        "Graph " + g + " has " + logPotentials(g).length + " log potentials, but the structure needs " + tableSize + ".")
+    val numGraphs = logPotentials.length
+    val numStates = structure.variableOffsets.last
+    val marginals = new Array[Double](numGraphs * numStates)
+    val logPartitions = new Array[Double](numGraphs)
+    val stats = new Array[ConvergenceStats](numGraphs)
+
+    val blocks = (0 until numGraphs by Template.BlockSize)
+    (if (blocks.length > 1) blocks.par else blocks).foreach { start =>
+      val engine = Option(engines.poll()).getOrElse(new CompiledModel.Engine(structure))
+      for (g <- start until math.min(numGraphs, start + Template.BlockSize)) {
+        stats(g) = engine.run(logPotentials(g), maxIterations, tolerance, schedule)
+        engine.copyBeliefs(marginals, g * numStates)
+        logPartitions(g) = engine.logPartition
+      }
+      engines.offer(engine)
+    }
+
+    new Template.Marginals(structure, marginals, logPartitions, stats)
+  }
+
+}
+
+object Template {
+
+  /** The number of graphs inferred by each task. */
+  private val BlockSize = 16
+
+  /**
+   * The variable marginals of a batch of graphs, flat: the probability that
+   * variable v of graph g takes value a is
+   * marginals(g * numStates + structure.variableOffsets(v) + a).
+   */
+  class Marginals(val structure: CompiledModel.Structure,
+                  val marginals: Array[Double],
+                  val logPartitions: Array[Double],
+                  val stats: IndexedSeq[ConvergenceStats]) {
+
+    def numStates = structure.variableOffsets.last
+
+    def numGraphs = logPartitions.length
+
+    def apply(graph: Int, variable: Int, value: Int): Double =
+      marginals(graph * numStates + structure.variableOffsets(variable) + value)
+
+    /** The marginal of a variable of a graph, as a view of marginals. */
+    def marginalFor(graph: Int, variable: Int): DenseVector[Double] =
+      new DenseVector(marginals, graph * numStates + structure.variableOffsets(variable), 1, structure.variableSizes(variable))
+  }
+
+}
@@ -145,7 +145,7 @@ class L2R_LrFunction_Binomial(prob: BinomialProblem, Cp: Double, Cn: Double)
     i = 0
     while (i < l) {
       val (numPosObs, numNegObs) = y(i)
-      val logOnePlusZi = math.log(1+math.exp(z(i)))
+      val logOnePlusZi = LogisticMath.log1pExp(z(i))
       f += (if (numPosObs > 0) numPosObs*(logOnePlusZi - z(i)) else 0.0)
       f += (if (numNegObs > 0) numNegObs*logOnePlusZi else 0.0)
       i += 1
@@ -162,7 +162,7 @@ class L2R_LrFunction_Binomial(prob: BinomialProblem, Cp: Double, Cn: Double)
     while (i < l) {
       val (numPosObs, numNegObs) = y(i)
       val numTrials = numPosObs + numNegObs
-      val zPos = 1 / (1 + math.exp(-z(i)))
+      val zPos = LogisticMath.sigmoid(z(i))
       D(i) = numTrials  * zPos * (1-zPos)
       z(i) = -(numPosObs - numTrials*zPos)
       i += 1
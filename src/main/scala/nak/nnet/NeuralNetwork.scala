@@ -15,6 +15,21 @@ class NeuralNetwork(_parameters: Array[DenseMatrix[Double]]) extends (DenseVecto
     computeActivations(x).last
   }
 
+  /**
+   * The output for an input of any kind. The first layer of a sparse input
+   * only reads the weights of its active entries.
+   */
+  def apply(x: Vector[Double]): DenseVector[Double] = x match {
+    case dense: DenseVector[Double] => apply(dense)
+    case _ =>
+      var activation = NeuralNetwork.multiply(_parameters(0), x)
+      for(i <- 1 until _parameters.length) {
+        activation = sigmoid(activation)
+        activation = _parameters(i) * activation
+      }
+      activation
+  }
+
   def parameters = _parameters
 
   def computeActivations(x: DenseVector[Double]):IndexedSeq[DenseVector[Double]] = {
@@ -33,7 +48,37 @@ class NeuralNetwork(_parameters: Array[DenseMatrix[Double]]) extends (DenseVecto
 
 }
 
-class NNObjective[Output](data: IndexedSeq[(DenseVector[Double],Output)],
+object NeuralNetwork {
+
+  /** w * x, reading only the columns of w for the active entries of x. */
+  def multiply(w: DenseMatrix[Double], x: Vector[Double]): DenseVector[Double] = {
+    val out = DenseVector.zeros[Double](w.rows)
+    x match {
+      case sparse: SparseVector[Double] =>
+        var i = 0
+        while (i < sparse.activeSize) {
+          axpy(sparse.valueAt(i), w(::, sparse.indexAt(i)), out)
+          i += 1
+        }
+      case _ =>
+        for ((j, v) <- x.activeIterator) axpy(v, w(::, j), out)
+    }
+    out
+  }
+
+}
+
+/**
+ * The summed loss of a neural network over the data, with its gradient by
+ * backpropagation. The data are split into shards that are evaluated in
+ * parallel, each with its own gradient, and each shard runs forward and
+ * backward over blocks of data at a time as BLAS matrix-matrix products, with
+ * the data of a block as the columns of the activations. Blocks with sparse
+ * inputs instead run the first layer, and accumulate its gradient, only over
+ * the weights of the inputs' active entries, and never store the inputs
+ * densely.
+ */
+class NNObjective[Output](data: IndexedSeq[(Vector[Double],Output)],
                           errorFun: (DenseVector[Double],Output)=>(Double,DenseVector[Double]),
                           layers: Array[Int]) extends BatchDiffFunction[DenseVector[Double]] {
 
@@ -44,32 +89,139 @@ class NNObjective[Output](data: IndexedSeq[(DenseVector[Double],Output)],
   def fullRange: IndexedSeq[Int] = 0 until data.length
 
   def calculate(x: DenseVector[Double], batch: IndexedSeq[Int]): (Double, DenseVector[Double]) = {
-    val weights = unrollWeights(x)
-    val nn = new NeuralNetwork(weights)
-    val data = batch.map(this.data)
-    val (loss, gradient) = data.aggregate(null:(Double, Array[DenseMatrix[Double]]))({ (_errors: (Double, Array[DenseMatrix[Double]]), datum: (DenseVector[Double], Output)) =>
-      val grad = if(_errors eq null) emptyGradient else _errors._2
-      var loss = if(_errors eq null) 0.0 else _errors._1
+    val weights = if (x.offset == 0 && x.stride == 1) x.data else x.toArray
+    val numShards = math.max(1, math.min(Runtime.getRuntime.availableProcessors, batch.size / NNObjective.MinShardSize))
+    val shardSize = (batch.size + numShards - 1) / numShards
+    val shards = (0 until numShards).map(shard => batch.slice(shard * shardSize, (shard + 1) * shardSize))
+    val results = (if (numShards > 1) shards.par else shards).map { shard =>
+      val gradient = new Array[Double](weightSize)
+      val loss = new Shard(weights, gradient).run(shard)
+      loss -> gradient
+    }.seq
+
+    val gradient = results.head._2
+    for ((_, other) <- results.tail) {
+      var i = 0
+      while (i < gradient.length) {
+        gradient(i) += other(i)
+        i += 1
+      }
+    }
+    results.map(_._1).sum -> new DenseVector(gradient)
+  }
+
+  /**
+   * The buffers for evaluating a shard: the activations and deltas of each
+   * layer for a block of data, column-major with one column per datum.
+   */
+  private class Shard(weights: Array[Double], gradient: Array[Double]) {
+    private val blas = com.github.fommil.netlib.BLAS.getInstance
+    private val blockSize = NNObjective.BlockSize
+    // The inputs and their deltas are only stored for dense blocks.
+    private val activations = Array.tabulate(layers.length)(i => if (i == 0) null else new Array[Double](layers(i) * blockSize))
+    private val deltas = Array.tabulate(layers.length)(i => if (i == 0) null else new Array[Double](layers(i) * blockSize))
+
+    def run(shard: IndexedSeq[Int]): Double = {
+      var loss = 0.0
+      for (block <- shard.grouped(blockSize))
+        loss += runBlock(block)
+      loss
+    }
+
+    private def runBlock(block: IndexedSeq[Int]): Double = {
+      val m = block.length
+      val last = layers.length - 1
+      val dense = block.forall(i => data(i)._1.isInstanceOf[DenseVector[_]])
+
+      if (dense) {
+        if (activations(0) == null) activations(0) = new Array[Double](layers(0) * blockSize)
+        for (b <- 0 until m) {
+          val input = data(block(b))._1
+          val column = activations(0)
+          var j = 0
+          while (j < layers(0)) {
+            column(b * layers(0) + j) = input(j)
+            j += 1
+          }
+        }
+      } else {
+        java.util.Arrays.fill(activations(1), 0, layers(1) * m, 0.0)
+        for (b <- 0 until m)
+          forEachActive(data(block(b))._1) { (j, v) =>
+            blas.daxpy(layers(1), v, weights, weightOffsets(0) + j * layers(1), 1, activations(1), b * layers(1), 1)
+          }
+      }
 
       // forward pass
-      val activations = nn.computeActivations(datum._1)
+      for (layer <- 0 until last) {
+        val in = layers(layer)
+        val out = layers(layer + 1)
+        if (layer > 0 || dense)
+          blas.dgemm("N", "N", out, m, in, 1.0, weights, weightOffsets(layer), out, activations(layer), 0, in, 0.0, activations(layer + 1), 0, out)
+        if (layer + 1 < last) {
+          val a = activations(layer + 1)
+          var j = 0
+          while (j < out * m) {
+            a(j) = sigmoid(a(j))
+            j += 1
+          }
+        }
+      }
+
       // compute task loss and derivatives
-      val (taskLoss, taskDerivs) = errorFun(activations.last, datum._2)
-      loss += taskLoss
+      var loss = 0.0
+      val outputs = layers(last)
+      for (b <- 0 until m) {
+        val (taskLoss, taskDerivs) = errorFun(new DenseVector(activations(last), b * outputs, 1, outputs), data(block(b))._2)
+        loss += taskLoss
+        var j = 0
+        while (j < outputs) {
+          deltas(last)(b * outputs + j) = taskDerivs(j)
+          j += 1
+        }
+      }
 
       // back propagate
-      var deltas = taskDerivs
-      for(layer <- (activations.length-2) to 0 by -1) {
-        grad(layer) += deltas * activations(layer).t
-        deltas = (weights(layer).t * deltas) :* activations(layer).map(a => a * (1-a))
+      for (layer <- (last - 1) to 0 by -1) {
+        val in = layers(layer)
+        val out = layers(layer + 1)
+        if (layer > 0 || dense) {
+          // gradient += deltas * activations^T
+          blas.dgemm("N", "T", out, in, m, 1.0, deltas(layer + 1), 0, out, activations(layer), 0, in, 1.0, gradient, weightOffsets(layer), out)
+        } else {
+          // only the columns of the active inputs
+          for (b <- 0 until m)
+            forEachActive(data(block(b))._1) { (j, v) =>
+              blas.daxpy(out, v, deltas(1), b * out, 1, gradient, weightOffsets(0) + j * out, 1)
+            }
+        }
+        if (layer > 0) {
+          // deltas = (weights^T * deltas) :* a(1-a)
+          blas.dgemm("T", "N", in, m, out, 1.0, weights, weightOffsets(layer), out, deltas(layer + 1), 0, out, 0.0, deltas(layer), 0, in)
+          val a = activations(layer)
+          val d = deltas(layer)
+          var j = 0
+          while (j < in * m) {
+            d(j) *= a(j) * (1 - a(j))
+            j += 1
+          }
+        }
       }
+      loss
+    }
 
-      loss -> grad
-    }, { (a, b) =>
-      (a._1 + b._1, for( (aa,bb) <- a._2 zip b._2) yield aa += bb )
-    })
-
-    loss -> rollWeights(gradient)
+    private def forEachActive(x: Vector[Double])(f: (Int, Double) => Unit) {
+      x match {
+        case sparse: SparseVector[Double] =>
+          var i = 0
+          while (i < sparse.activeSize) {
+            f(sparse.indexAt(i), sparse.valueAt(i))
+            i += 1
+          }
+        case _ =>
+          for ((j, v) <- x.activeIterator) f(j, v)
+      }
+    }
   }
 
   def extract(x: DenseVector[Double]) = new NeuralNetwork(unrollWeights(x))
@@ -114,3 +266,13 @@ class NNObjective[Output](data: IndexedSeq[(DenseVector[Double],Output)],
   }
 }
 
+object NNObjective {
+
+  /** The number of data in each block of activations. */
+  private val BlockSize = 64
+
+  /** The smallest number of data worth a shard of their own. */
+  private val MinShardSize = 256
+
+}
+
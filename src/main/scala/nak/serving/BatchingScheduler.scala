@@ -0,0 +1,202 @@
+package nak.serving
+
+/*
+ Copyright 2013 ScalaNLP
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+
+import nak.core.FeaturizedClassifier
+
+import java.util.concurrent.{LinkedBlockingQueue, TimeUnit}
+import scala.concurrent.{Future, Promise}
+import scala.collection.JavaConverters._
+import scala.collection.mutable.ArrayBuffer
+import com.typesafe.scalalogging.slf4j.LazyLogging
+
+/**
+ * Collects concurrent classification requests into micro-batches and scores
+ * each batch with FeaturizedClassifier.evalRawBatch, which featurizes the
+ * batch in parallel and reads the model's weights once for the whole batch.
+ * This trades up to maxWaitMicros of extra latency per request for much less
+ * per-request overhead under high concurrency.
+ *
+ * A single dispatcher thread takes the first waiting request, gathers more
+ * until the batch has maxBatchSize requests or maxWaitMicros have passed,
+ * and then scores it. Requests that arrive while a batch is being scored are
+ * gathered into the next one, so batches grow with the load.
+ *
+ * @param model gives the classifier to score each batch with, e.g. the current
+ *              model of a ModelServer
+ */
+class BatchingScheduler[I](
+  model: () => FeaturizedClassifier[String, I],
+  maxBatchSize: Int = 64,
+  maxWaitMicros: Long = 1000
+) extends LazyLogging {
+
+  private[this] class Request(
+    val content: I,
+    val complete: (FeaturizedClassifier[String, I], Array[Double]) => Unit,
+    val fail: Throwable => Unit
+  ) {
+    val enqueued = System.nanoTime
+  }
+
+  private[this] val queue = new LinkedBlockingQueue[Request]()
+  @volatile private[this] var running = true
+
+  /** The number of requests in each batch scored. */
+  val batchSizes = new LogHistogram
+
+  /** The time requests waited before their batch was scored, in microseconds. */
+  val queueTimes = new LogHistogram
+
+  /** The time taken to score each batch, in microseconds. */
+  val batchLatencies = new LogHistogram
+
+  private[this] val dispatcher = new Thread("nak-batching-scheduler") {
+    override def run() {
+      val batch = new ArrayBuffer[Request](maxBatchSize)
+      val appender = new BatchAppender(batch)
+      while (running) {
+        val first = queue.poll(100, TimeUnit.MILLISECONDS)
+        if (first != null) {
+          batch += first
+          queue.drainTo(appender, maxBatchSize - batch.length)
+          val deadline = first.enqueued + maxWaitMicros * 1000
+          var waiting = deadline - System.nanoTime
+          while (batch.length < maxBatchSize && waiting > 0) {
+            val next = queue.poll(waiting, TimeUnit.NANOSECONDS)
+            if (next != null) {
+              batch += next
+              queue.drainTo(appender, maxBatchSize - batch.length)
+            }
+            waiting = deadline - System.nanoTime
+          }
+          // Anything score lets through would otherwise end the thread and
+          // leave every later request waiting forever.
+          try {
+            score(batch)
+          } catch {
+            case e: Throwable =>
+              logger.error("Failed to score a batch", e)
+              for (request <- batch)
+                request.fail(e)
+          } finally {
+            batch.clear()
+          }
+        }
+      }
+    }
+  }
+  dispatcher.setDaemon(true)
+  dispatcher.start()
+
+  /**
+   * Score a raw input in the next batch.
+   */
+  def evalRaw(content: I): Future[Array[Double]] = {
+    val result = Promise[Array[Double]]()
+    submit(new Request(content, (classifier, scores) => result.trySuccess(scores), e => result.tryFailure(e)))
+    result.future
+  }
+
+  /**
+   * Predict the label of a raw input in the next batch.
+   */
+  def predict(content: I): Future[String] = {
+    val result = Promise[String]()
+    submit(new Request(
+      content,
+      (classifier, scores) => result.trySuccess(classifier.labelOfIndex(scores.zipWithIndex.maxBy(_._1)._2)),
+      e => result.tryFailure(e)))
+    result.future
+  }
+
+  /**
+   * Stop the dispatcher once the current batch is done. Requests still waiting
+   * are failed.
+   */
+  def shutdown() {
+    // Once running is false under the lock no request can be queued, so the
+    // drain below sees every request the dispatcher didn't take.
+    queue.synchronized { running = false }
+    dispatcher.join()
+    val remaining = new java.util.ArrayList[Request]()
+    queue.drainTo(remaining)
+    for (i <- 0 until remaining.size)
+      remaining.get(i).fail(new IllegalStateException("The scheduler has been shut down."))
+  }
+
+  private[this] def submit(request: Request) {
+    queue.synchronized {
+      if (!running)
+        throw new IllegalStateException("The scheduler has been shut down.")
+      queue.put(request)
+    }
+  }
+
+  private[this] def score(batch: ArrayBuffer[Request]) {
+    val start = System.nanoTime
+    batchSizes.record(batch.length)
+    for (request <- batch)
+      queueTimes.record((start - request.enqueued) / 1000)
+    try {
+      val classifier = model()
+      val scores = classifier.evalRawBatch(batch.map(_.content))
+      // One request failing to complete, e.g. for a classifier without
+      // labels, only fails that request.
+      for (i <- batch.indices) {
+        try {
+          batch(i).complete(classifier, scores(i))
+        } catch {
+          case e: Throwable => batch(i).fail(e)
+        }
+      }
+    } catch {
+      // Requests already completed ignore the failure.
+      case e: Throwable =>
+        for (request <- batch)
+          request.fail(e)
+    }
+    batchLatencies.record((System.nanoTime - start) / 1000)
+  }
+
+  // drainTo needs a java.util.Collection to add to.
+  private[this] class BatchAppender(batch: ArrayBuffer[Request]) extends java.util.AbstractCollection[Request] {
+    override def add(request: Request) = { batch += request; true }
+    def iterator = batch.iterator.asJava
+    def size = batch.length
+  }
+
+  override def toString =
+    "batch size: " + batchSizes + "\nqueue time (us): " + queueTimes + "\nbatch latency (us): " + batchLatencies
+
+}
+
+object BatchingScheduler {
+
+  /**
+   * Schedule requests for a fixed classifier.
+   */
+  def apply[I](classifier: FeaturizedClassifier[String, I], maxBatchSize: Int, maxWaitMicros: Long) =
+    new BatchingScheduler[I](() => classifier, maxBatchSize, maxWaitMicros)
+
+  /**
+   * Schedule requests for whichever model a ModelServer is currently serving.
+   */
+  def apply[I](server: ModelServer[I], maxBatchSize: Int, maxWaitMicros: Long) =
+    new BatchingScheduler[I](() => server.model.get.classifier, maxBatchSize, maxWaitMicros)
+
+}
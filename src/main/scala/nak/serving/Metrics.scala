@@ -0,0 +1,159 @@
+package nak.serving
+
+/*
+ Copyright 2013 ScalaNLP
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+
+import java.util.concurrent.atomic.{AtomicLong, AtomicLongArray}
+
+/**
+ * A histogram of non-negative Long values (e.g. latencies in microseconds)
+ * with buckets that grow exponentially, four per power of two, so any
+ * percentile is reported within 25% of its true value. Recording is lock-free
+ * and can be done from many threads at once.
+ */
+class LogHistogram extends Serializable {
+  import LogHistogram._
+
+  private[this] val buckets = new AtomicLongArray(NumBuckets)
+  private[this] val total = new AtomicLong
+  private[this] val sum = new AtomicLong
+  private[this] val maximum = new AtomicLong
+
+  def record(value: Long) {
+    val v = math.max(value, 0L)
+    buckets.incrementAndGet(bucketOf(v))
+    total.incrementAndGet
+    sum.addAndGet(v)
+    var max = maximum.get
+    while (v > max && !maximum.compareAndSet(max, v))
+      max = maximum.get
+  }
+
+  def count = total.get
+
+  def max = maximum.get
+
+  def mean = if (count == 0) 0.0 else sum.get.toDouble / count
+
+  /**
+   * The upper bound of the bucket holding the value at the given quantile,
+   * e.g. percentile(0.99) for the 99th percentile.
+   */
+  def percentile(quantile: Double): Long = {
+    val n = count
+    if (n == 0) return 0L
+    val rank = math.max(1L, math.ceil(quantile * n).toLong)
+    var seen = 0L
+    var bucket = 0
+    while (bucket < NumBuckets) {
+      seen += buckets.get(bucket)
+      if (seen >= rank) return math.min(upperBound(bucket), max)
+      bucket += 1
+    }
+    max
+  }
+
+  override def toString =
+    "count=%d mean=%.1f p50=%d p90=%d p99=%d max=%d".format(
+      count, mean, percentile(0.5), percentile(0.9), percentile(0.99), max)
+
+}
+
+object LogHistogram {
+
+  private val NumBuckets = 256
+
+  // Values below 4 get their own bucket, and larger values are split into
+  // four buckets between each power of two by their two highest bits after
+  // the leading one.
+  private def bucketOf(value: Long): Int =
+    if (value < 4) value.toInt
+    else {
+      val exponent = 63 - java.lang.Long.numberOfLeadingZeros(value)
+      4 * exponent + ((value >> (exponent - 2)) & 3).toInt
+    }
+
+  private def lowerBound(bucket: Int): Long =
+    if (bucket < 8) bucket.toLong
+    else (4L + bucket % 4) << (bucket / 4 - 2)
+
+  private def upperBound(bucket: Int): Long =
+    if (bucket < 4) bucket.toLong
+    else if (bucket == NumBuckets - 1) Long.MaxValue
+    else lowerBound(bucket + 1) - 1
+
+}
+
+/**
+ * Counts events per second over a sliding window of recent seconds, so that
+ * the recent rate (e.g. queries per second) can be reported. Lock-free; an
+ * event recorded right as its second's slot is recycled may be lost, which is
+ * fine for monitoring.
+ */
+class RateCounter(windowSeconds: Int = 60) extends Serializable {
+
+  private[this] val counts = new AtomicLongArray(windowSeconds + 1)
+  private[this] val seconds = new AtomicLongArray(windowSeconds + 1)
+  private[this] val total = new AtomicLong
+
+  def record(events: Long = 1L) {
+    val now = System.currentTimeMillis / 1000
+    val slot = (now % counts.length).toInt
+    val stamp = seconds.get(slot)
+    if (stamp != now && seconds.compareAndSet(slot, stamp, now))
+      counts.set(slot, 0L)
+    counts.addAndGet(slot, events)
+    total.addAndGet(events)
+  }
+
+  def count = total.get
+
+  /**
+   * The mean number of events per second over the last completed seconds,
+   * up to the size of the window.
+   */
+  def rate(overSeconds: Int = 10): Double = {
+    val window = math.min(math.max(overSeconds, 1), windowSeconds)
+    val now = System.currentTimeMillis / 1000
+    var events = 0L
+    var second = now - window
+    while (second < now) {
+      val slot = (second % counts.length).toInt
+      if (seconds.get(slot) == second) events += counts.get(slot)
+      second += 1
+    }
+    events.toDouble / window
+  }
+
+}
+
+/**
+ * The statistics kept for a served model.
+ */
+class ModelStats extends Serializable {
+
+  /** Latencies of requests, in microseconds. */
+  val latency = new LogHistogram
+
+  val requests = new RateCounter
+
+  val errors = new AtomicLong
+
+  override def toString =
+    "requests=%d qps=%.1f errors=%d latency(us): %s".format(
+      requests.count, requests.rate(), errors.get, latency)
+
+}
@@ -0,0 +1,149 @@
+package nak.serving
+
+/*
+ Copyright 2013 ScalaNLP
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+
+import java.io.File
+import java.net.{InetSocketAddress, URLDecoder}
+import java.util.concurrent.Executors
+import scala.concurrent.Await
+import scala.concurrent.duration._
+import com.sun.net.httpserver.{HttpExchange, HttpHandler, HttpServer}
+
+/**
+ * A small HTTP front end for a ModelServer of raw String inputs, meant for
+ * local testing. It listens on localhost only and supports:
+ *
+ *   POST /predict          the request body is the document; returns its label
+ *   POST /scores           returns "label<TAB>score" lines for the document
+ *   GET  /stats            statistics for the current and previous models
+ *   POST /deploy?version=v&file=f
+ *                          load a classifier saved with NakContext.saveClassifier
+ *                          from modelDir and serve it; responds once the load
+ *                          has finished, with a 500 if it failed
+ *
+ * Loading a classifier deserializes the file, so /deploy only reads files
+ * directly inside modelDir, and is disabled when no modelDir is given.
+ */
+class ModelHttpServer(
+  server: ModelServer[String],
+  port: Int = 8080,
+  threads: Int = 8,
+  modelDir: Option[File] = None,
+  deployTimeout: Duration = 10.minutes) {
+
+  import ModelHttpServer.HttpError
+
+  private[this] val http = HttpServer.create(new InetSocketAddress("localhost", port), 0)
+  private[this] val handlerPool = Executors.newFixedThreadPool(threads)
+  http.setExecutor(handlerPool)
+
+  handle("/predict") { exchange =>
+    server.predict(body(exchange))
+  }
+
+  handle("/scores") { exchange =>
+    server.labeledScores(body(exchange))
+      .map { case (label, score) => label + "\t" + score }
+      .mkString("\n")
+  }
+
+  handle("/stats") { exchange =>
+    "current: " + server.model.getOrElse("none") +
+      "\nprevious: " + server.previousModel.getOrElse("none")
+  }
+
+  handle("/deploy") { exchange =>
+    if (exchange.getRequestMethod != "POST")
+      throw new HttpError(405, "use POST to deploy a model")
+    val dir = modelDir.getOrElse(throw new HttpError(403, "no model directory configured"))
+    val params = query(exchange)
+    val version = params.getOrElse("version", throw new HttpError(400, "missing version"))
+    val name = params.getOrElse("file", throw new HttpError(400, "missing file"))
+    val file = new File(dir, name).getCanonicalFile
+    if (file.getParentFile != dir.getCanonicalFile)
+      throw new HttpError(403, name + " is not in the model directory")
+    if (!file.isFile)
+      throw new HttpError(404, name + " not found")
+    Await.result(server.deployFile(version, file.getPath), deployTimeout)
+    "deployed " + version
+  }
+
+  /** The port being listened on, useful when the server was created with port 0. */
+  def boundPort = http.getAddress.getPort
+
+  def start() = { http.start(); this }
+
+  def stop() {
+    http.stop(0)
+    handlerPool.shutdown()
+  }
+
+  private[this] def handle(path: String)(respond: HttpExchange => String) {
+    http.createContext(path, new HttpHandler {
+      def handle(exchange: HttpExchange) {
+        val (status, response) =
+          try {
+            (200, respond(exchange))
+          } catch {
+            case e: HttpError => (e.status, e.getMessage)
+            case e: Exception => (500, e.toString)
+          }
+        val bytes = (response + "\n").getBytes("UTF-8")
+        exchange.getResponseHeaders.set("Content-Type", "text/plain; charset=utf-8")
+        exchange.sendResponseHeaders(status, bytes.length)
+        val out = exchange.getResponseBody
+        out.write(bytes)
+        out.close()
+      }
+    })
+  }
+
+  private[this] def body(exchange: HttpExchange) = {
+    val source = io.Source.fromInputStream(exchange.getRequestBody)("UTF-8")
+    try source.mkString finally source.close()
+  }
+
+  private[this] def query(exchange: HttpExchange): Map[String, String] =
+    Option(exchange.getRequestURI.getRawQuery).toSeq
+      .flatMap(_.split("&"))
+      .map(_.split("=", 2))
+      .collect { case Array(k, v) => (URLDecoder.decode(k, "UTF-8"), URLDecoder.decode(v, "UTF-8")) }
+      .toMap
+
+}
+
+/**
+ * Serve a classifier saved with NakContext.saveClassifier over HTTP, e.g.
+ *
+ * $ bin/nak run nak.serving.ModelHttpServer classifier.obj 8080
+ *
+ * Other classifiers in the same directory can then be deployed with /deploy.
+ */
+object ModelHttpServer {
+
+  private class HttpError(val status: Int, message: String) extends Exception(message)
+
+  def main(args: Array[String]) {
+    val server = new ModelServer[String]()
+    val file = new File(args(0)).getCanonicalFile
+    server.deployFile("1", file.getPath)
+    val port = if (args.length > 1) args(1).toInt else 8080
+    new ModelHttpServer(server, port, modelDir = Some(file.getParentFile)).start()
+    println("Serving on http://localhost:" + port)
+  }
+
+}
@@ -0,0 +1,173 @@
+package nak.serving
+
+/*
+ Copyright 2013 ScalaNLP
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+*/
+
+import nak.NakContext
+import nak.core.FeaturizedClassifier
+
+import java.util.concurrent.{Executors, ThreadFactory}
+import java.util.concurrent.atomic.AtomicReference
+import scala.concurrent.{ExecutionContext, Future}
+import com.typesafe.scalalogging.slf4j.LazyLogging
+
+/**
+ * A classifier being served, with its version and statistics.
+ */
+class ServedModel[I](
+  val version: String,
+  val classifier: FeaturizedClassifier[String, I],
+  val loadedAt: Long = System.currentTimeMillis
+) {
+  val stats = new ModelStats
+
+  override def toString = "version=" + version + " " + stats
+}
+
+/**
+ * Serves a FeaturizedClassifier that can be replaced while the JVM is running.
+ * The model being served is held in an AtomicReference, and each request reads
+ * it once, so a deployment never pauses or splits a request. New versions are
+ * loaded and warmed up on a background thread, by evaluating the warmup inputs
+ * until the JIT has compiled the scoring path, and are only then swapped in.
+ *
+ * @param warmupInputs raw inputs to evaluate with a new model before serving it
+ * @param warmupCalls how many evaluations to do in total when warming up
+ */
+class ModelServer[I](
+  warmupInputs: Seq[I] = Seq(),
+  warmupCalls: Int = 10000
+) extends LazyLogging {
+
+  private[this] val current = new AtomicReference[ServedModel[I]]()
+  private[this] val previous = new AtomicReference[ServedModel[I]]()
+
+  private[this] val loaderPool = Executors.newSingleThreadExecutor(new ThreadFactory {
+    def newThread(r: Runnable) = {
+      val thread = new Thread(r, "nak-model-loader")
+      thread.setDaemon(true)
+      thread
+    }
+  })
+  private[this] implicit val loaderContext = ExecutionContext.fromExecutorService(loaderPool)
+
+  /** The model currently being served, if any. */
+  def model: Option[ServedModel[I]] = Option(current.get)
+
+  /** The model that was served before the current one, if any. */
+  def previousModel: Option[ServedModel[I]] = Option(previous.get)
+
+  /**
+   * Warm up the given classifier and then start serving it. Runs on the
+   * calling thread.
+   */
+  def deploy(version: String, classifier: FeaturizedClassifier[String, I]): ServedModel[I] = {
+    warmUp(classifier)
+    val served = new ServedModel(version, classifier)
+    previous.set(current.getAndSet(served))
+    logger.info("Serving model version " + version)
+    served
+  }
+
+  /**
+   * Load, warm up and deploy a classifier on the background loader thread.
+   * The current model keeps serving until the new one is ready, and keeps
+   * serving if loading fails.
+   */
+  def deployAsync(version: String)(load: => FeaturizedClassifier[String, I]): Future[ServedModel[I]] =
+    Future {
+      try {
+        deploy(version, load)
+      } catch {
+        case e: Exception =>
+          logger.error("Failed to deploy model version " + version, e)
+          throw e
+      }
+    }
+
+  /**
+   * Load a classifier saved with NakContext.saveClassifier and deploy it in
+   * the background.
+   */
+  def deployFile(version: String, filename: String): Future[ServedModel[I]] =
+    deployAsync(version)(NakContext.loadClassifier[FeaturizedClassifier[String, I]](filename))
+
+  /**
+   * Go back to serving the previous model, if there was one.
+   */
+  def rollback(): Option[ServedModel[I]] = {
+    val restored = previous.getAndSet(null)
+    if (restored != null) {
+      current.set(restored)
+      logger.info("Rolled back to model version " + restored.version)
+    }
+    Option(restored)
+  }
+
+  /**
+   * Score a raw input with the current model.
+   */
+  def evalRaw(content: I): Array[Double] = timed(_.evalRaw(content))
+
+  /**
+   * Score a raw input with the current model, pairing each score with its label.
+   */
+  def labeledScores(content: I): Seq[(String, Double)] = timed { classifier =>
+    val scores = classifier.evalRaw(content)
+    scores.indices.map(i => (classifier.labelOfIndex(i), scores(i)))
+  }
+
+  /**
+   * Predict the label of a raw input with the current model.
+   */
+  def predict(content: I): String = timed(_.predict(content))
+
+  /**
+   * Stop the background loader. Requests can still be served.
+   */
+  def shutdown() {
+    loaderPool.shutdown()
+  }
+
+  private[this] def timed[T](request: FeaturizedClassifier[String, I] => T): T = {
+    val served = current.get
+    if (served == null)
+      throw new IllegalStateException("No model has been deployed.")
+    val start = System.nanoTime
+    try {
+      request(served.classifier)
+    } catch {
+      case e: Exception =>
+        served.stats.errors.incrementAndGet
+        throw e
+    } finally {
+      served.stats.latency.record((System.nanoTime - start) / 1000)
+      served.stats.requests.record()
+    }
+  }
+
+  private[this] def warmUp(classifier: FeaturizedClassifier[String, I]) {
+    if (warmupInputs.nonEmpty) {
+      val inputs = warmupInputs.toIndexedSeq
+      var i = 0
+      while (i < warmupCalls) {
+        classifier.predict(inputs(i % inputs.length))
+        i += 1
+      }
+    }
+  }
+
+}
@@ -75,19 +75,26 @@ object DMImplicits {
 
   object euclidean extends UFunc {
 
-    implicit def euclideanDistanceFromZippedValues[T, U]
-    (implicit zipImpl: zipValues.Impl2[T, U, ZippedValues[Double, Double]]): Impl2[T, U, Double] =
-      new Impl2[T, U, Double] {
-        def apply(v: T, v2: U): Double = {
-          var dist = 0.0
-          zipValues(v, v2).foreach {
-            (a, b) =>
-              val diff = a - b
-              dist += (diff * diff)
-          }
-          sqrt(dist)
+    /**
+     * Named so that classifiers can recognize Euclidean distance and search a
+     * NeighborIndex instead of calling it on every pair.
+     */
+    class EuclideanImpl[T, U](implicit zipImpl: zipValues.Impl2[T, U, ZippedValues[Double, Double]])
+      extends Impl2[T, U, Double] {
+      def apply(v: T, v2: U): Double = {
+        var dist = 0.0
+        zipValues(v, v2).foreach {
+          (a, b) =>
+            val diff = a - b
+            dist += (diff * diff)
         }
+        sqrt(dist)
       }
+    }
+
+    implicit def euclideanDistanceFromZippedValues[T, U]
+    (implicit zipImpl: zipValues.Impl2[T, U, ZippedValues[Double, Double]]): Impl2[T, U, Double] =
+      new EuclideanImpl[T, U]
   }
 
 
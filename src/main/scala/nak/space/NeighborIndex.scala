@@ -0,0 +1,562 @@
+package nak.space
+
+import breeze.linalg.Vector
+import nak.cluster.PointMatrix
+import nak.util.GrowableIntArray
+
+import scala.util.Random
+
+/**
+ * An index over a fixed set of points that finds the k nearest of them to each
+ * of a batch of queries. Queries run in parallel over blocks of the batch and
+ * allocate per block rather than per point, and the results come back in flat
+ * primitive arrays.
+ *
+ * @tparam T the type of the points and queries
+ */
+trait NeighborIndex[-T] extends Serializable {
+
+  /** The number of points indexed. */
+  def size: Int
+
+  /** The k nearest points to each query, nearest first. */
+  def search(queries: IndexedSeq[T], k: Int): Neighbors
+
+  /**
+   * The k nearest points to each indexed point other than itself, nearest
+   * first, for leave-one-out evaluation.
+   */
+  def leaveOneOut(k: Int): Neighbors
+
+}
+
+/**
+ * The result of a search: the neighbours of query q are indices(q * k + r) for
+ * ranks r from 0, nearest first, at the given distances. When fewer than k
+ * points were found the remaining indices are -1 and the distances infinite.
+ */
+final class Neighbors(val k: Int, val indices: Array[Int], val distances: Array[Double]) extends Serializable {
+
+  def numQueries: Int = if (k == 0) 0 else indices.length / k
+
+  /** The index of the neighbour of query q with the given rank. */
+  def apply(q: Int, rank: Int): Int = indices(q * k + rank)
+
+  /** The distance of the neighbour of query q with the given rank. */
+  def distance(q: Int, rank: Int): Double = distances(q * k + rank)
+
+  /** The number of neighbours found for query q. */
+  def count(q: Int): Int = {
+    var rank = 0
+    while (rank < k && indices(q * k + rank) >= 0) rank += 1
+    rank
+  }
+
+}
+
+/**
+ * A bounded max-heap of (index, distance) pairs in primitive arrays that keeps
+ * the capacity pairs with the smallest distances offered to it.
+ */
+final class NeighborHeap(val capacity: Int) {
+  private[this] val ids = new Array[Int](capacity)
+  private[this] val keys = new Array[Double](capacity)
+  private[this] var used = 0
+
+  def size = used
+
+  def clear() {
+    used = 0
+  }
+
+  /** The distance a pair must beat to be kept. */
+  def worst: Double = if (used < capacity) Double.PositiveInfinity else keys(0)
+
+  def offer(id: Int, distance: Double) {
+    if (used < capacity) {
+      var i = used
+      used += 1
+      while (i > 0 && keys((i - 1) / 2) < distance) {
+        ids(i) = ids((i - 1) / 2)
+        keys(i) = keys((i - 1) / 2)
+        i = (i - 1) / 2
+      }
+      ids(i) = id
+      keys(i) = distance
+    } else if (capacity > 0 && distance < keys(0)) {
+      siftDown(id, distance)
+    }
+  }
+
+  /**
+   * Write the pairs to the arrays from offset, nearest first, padding up to
+   * the capacity with -1 and infinity, and empty the heap.
+   */
+  def drainTo(indices: Array[Int], distances: Array[Double], offset: Int) {
+    var r = capacity - 1
+    while (r >= used) {
+      indices(offset + r) = -1
+      distances(offset + r) = Double.PositiveInfinity
+      r -= 1
+    }
+    while (used > 0) {
+      indices(offset + used - 1) = ids(0)
+      distances(offset + used - 1) = keys(0)
+      used -= 1
+      if (used > 0) siftDown(ids(used), keys(used))
+    }
+  }
+
+  // Replace the root with the pair and restore the heap over the first used.
+  private[this] def siftDown(id: Int, distance: Double) {
+    var i = 0
+    var done = false
+    while (!done) {
+      val left = 2 * i + 1
+      if (left >= used) done = true
+      else {
+        val child = if (left + 1 < used && keys(left + 1) > keys(left)) left + 1 else left
+        if (keys(child) > distance) {
+          ids(i) = ids(child)
+          keys(i) = keys(child)
+          i = child
+        } else done = true
+      }
+    }
+    ids(i) = id
+    keys(i) = distance
+  }
+
+}
+
+/**
+ * An index over vectors in Euclidean space, stored contiguously in a
+ * PointMatrix. Distances in the results are squared Euclidean distances.
+ */
+abstract class VectorIndex(val points: PointMatrix) extends NeighborIndex[Vector[Double]] {
+
+  def size = points.numPoints
+
+  def dimension = points.dimension
+
+  def search(queries: IndexedSeq[Vector[Double]], k: Int): Neighbors =
+    search(PointMatrix(queries, dimension), k)
+
+  /** The k nearest points to each row of queries, nearest first. */
+  def search(queries: PointMatrix, k: Int): Neighbors = {
+    require(queries.dimension == dimension, "The queries must have the dimension of the points.")
+    run(queries, k, leaveOneOut = false)
+  }
+
+  def leaveOneOut(k: Int): Neighbors = run(points, k, leaveOneOut = true)
+
+  /**
+   * Search for the queries in [start, end), copied densely into block from
+   * offset 0 with the given squared norms, draining each result into the
+   * arrays at (q - start) * k. When leaveOneOut, query q is point q and must
+   * not be returned.
+   */
+  protected def searchBlock(
+    block: Array[Double],
+    blockNorms: Array[Double],
+    start: Int,
+    end: Int,
+    k: Int,
+    leaveOneOut: Boolean,
+    indices: Array[Int],
+    distances: Array[Double]
+  )
+
+  private[this] def run(queries: PointMatrix, k: Int, leaveOneOut: Boolean): Neighbors = {
+    val n = queries.numPoints
+    val indices = new Array[Int](n * k)
+    val distances = new Array[Double](n * k)
+    // Dense copies of a block of queries take at most about a megabyte.
+    val blockSize = math.max(1, math.min(VectorIndex.QueryBlock, (1 << 17) / math.max(1, dimension)))
+    val starts = 0 until n by blockSize
+    val work = if (starts.length > 1) starts.par else starts
+    work.foreach { start =>
+      val end = math.min(n, start + blockSize)
+      val block = new Array[Double]((end - start) * dimension)
+      for (q <- start until end) queries.addTo(q, block, (q - start) * dimension)
+      val blockNorms = java.util.Arrays.copyOfRange(queries.squaredNorms, start, end)
+      val blockIndices = new Array[Int]((end - start) * k)
+      val blockDistances = new Array[Double]((end - start) * k)
+      searchBlock(block, blockNorms, start, end, k, leaveOneOut, blockIndices, blockDistances)
+      System.arraycopy(blockIndices, 0, indices, start * k, blockIndices.length)
+      System.arraycopy(blockDistances, 0, distances, start * k, blockDistances.length)
+    }
+    new Neighbors(k, indices, distances)
+  }
+
+}
+
+object VectorIndex {
+
+  /** The number of queries compared with each block of points together. */
+  val QueryBlock = 16
+
+  /** The number of points compared with a block of queries together. */
+  val PointBlock = 256
+
+}
+
+/**
+ * Exact search by comparing each query with every point. Queries are compared
+ * with the points a block at a time, so that each block of points is read
+ * once for a block of queries while it is in cache, and the distances use
+ * precomputed squared norms so that each costs one dot product.
+ */
+class ExactIndex(points: PointMatrix) extends VectorIndex(points) {
+
+  protected def searchBlock(
+    block: Array[Double],
+    blockNorms: Array[Double],
+    start: Int,
+    end: Int,
+    k: Int,
+    leaveOneOut: Boolean,
+    indices: Array[Int],
+    distances: Array[Double]
+  ) {
+    val d = dimension
+    val heaps = Array.fill(end - start)(new NeighborHeap(k))
+    var pointStart = 0
+    while (pointStart < size) {
+      val pointEnd = math.min(size, pointStart + VectorIndex.PointBlock)
+      var q = 0
+      while (q < end - start) {
+        val heap = heaps(q)
+        val skip = if (leaveOneOut) start + q else -1
+        var i = pointStart
+        while (i < pointEnd) {
+          if (i != skip) {
+            val distance = points.squaredDistance(i, block, q * d, blockNorms(q))
+            if (distance < heap.worst) heap.offer(i, distance)
+          }
+          i += 1
+        }
+        q += 1
+      }
+      pointStart = pointEnd
+    }
+    for (q <- 0 until end - start) heaps(q).drainTo(indices, distances, q * k)
+  }
+
+}
+
+/**
+ * Approximate search with a forest of random projection trees. Each tree
+ * splits the points recursively by the hyperplane halfway between two of
+ * them chosen at random, down to leaves of at most leafSize points. A query
+ * visits the leaves of all trees in order of its distance from the
+ * hyperplanes it would have to cross to reach them, until it has found
+ * searchSize candidates, and returns the nearest of those. The hyperplanes are
+ * stored as pairs of point indices, so trees over sparse points are small.
+ *
+ * For more details, see:
+ *   Dasgupta and Freund (2008), Random projection trees and low dimensional manifolds.
+ *
+ * @param numTrees the number of trees; more trees give better recall and slower queries
+ * @param leafSize the largest number of points in a leaf
+ * @param searchSize the number of candidates to compare with each query, at
+ *    least numTrees * k; 0 uses numTrees * leafSize
+ */
+class RandomProjectionForest(
+  points: PointMatrix,
+  numTrees: Int = 10,
+  leafSize: Int = 32,
+  searchSize: Int = 0,
+  seed: Long = 13
+) extends VectorIndex(points) {
+  require(numTrees > 0 && leafSize > 0, "A forest needs at least one tree and one point per leaf.")
+
+  private[this] val trees = {
+    val random = new Random(seed)
+    val seeds = Array.fill(numTrees)(random.nextLong)
+    val work = if (numTrees > 1) seeds.toIndexedSeq.par else seeds.toIndexedSeq
+    work.map(treeSeed => RandomProjectionForest.Tree(points, leafSize, new Random(treeSeed))).seq.toArray
+  }
+
+  protected def searchBlock(
+    block: Array[Double],
+    blockNorms: Array[Double],
+    start: Int,
+    end: Int,
+    k: Int,
+    leaveOneOut: Boolean,
+    indices: Array[Int],
+    distances: Array[Double]
+  ) {
+    val d = dimension
+    val wanted = math.max(if (searchSize > 0) searchSize else numTrees * leafSize, numTrees * k)
+    val heap = new NeighborHeap(k)
+    val queue = new RandomProjectionForest.NodeQueue
+    val candidates = new GrowableIntArray(wanted)
+    for (q <- 0 until end - start) {
+      val skip = if (leaveOneOut) start + q else -1
+      candidates.clear()
+      queue.clear()
+      for (t <- 0 until numTrees) queue.push(Double.PositiveInfinity, t, 0)
+      while (candidates.length < wanted && queue.nonEmpty) {
+        val bound = queue.topPriority
+        val t = queue.topTree
+        val tree = trees(t)
+        var node = queue.topNode
+        queue.pop()
+        // Descend to a leaf, queueing the far side of each hyperplane behind
+        // nodes across nearer hyperplanes.
+        while (!tree.isLeaf(node)) {
+          val margin = tree.margin(node, block, q * d, blockNorms(q))
+          if (margin >= 0) {
+            queue.push(math.min(bound, -margin), t, tree.right(node))
+            node = tree.left(node)
+          } else {
+            queue.push(math.min(bound, margin), t, tree.left(node))
+            node = tree.right(node)
+          }
+        }
+        tree.foreachPoint(node) { i => if (i != skip) candidates += i }
+        // The trees overlap, so the same point can be found more than once.
+        if (candidates.length >= wanted) candidates.sortDistinct()
+      }
+      candidates.sortDistinct()
+      var c = 0
+      while (c < candidates.length) {
+        val i = candidates(c)
+        val distance = points.squaredDistance(i, block, q * d, blockNorms(q))
+        if (distance < heap.worst) heap.offer(i, distance)
+        c += 1
+      }
+      heap.drainTo(indices, distances, q * k)
+    }
+  }
+
+}
+
+object RandomProjectionForest {
+
+  /**
+   * One tree, with its nodes in preorder in flat arrays, so that the left
+   * child of an internal node is the next node. An internal node splits by the
+   * hyperplane halfway between the points a(node) and b(node), with the points
+   * nearer a on the left. A leaf has a(node) = -1 and holds the points
+   * order(start(node)) until order(end(node)).
+   */
+  private[space] class Tree(
+    points: PointMatrix,
+    order: Array[Int],
+    a: Array[Int],
+    b: Array[Int],
+    rightChild: Array[Int],
+    start: Array[Int],
+    end: Array[Int],
+    scale: Array[Double]
+  ) extends Serializable {
+
+    def isLeaf(node: Int) = a(node) < 0
+
+    def left(node: Int) = node + 1
+
+    def right(node: Int) = rightChild(node)
+
+    /**
+     * The signed distance of the query from the hyperplane of the node,
+     * positive on the side of a. scale is twice the distance between a and b,
+     * which turns the difference of the squared distances from them into the
+     * distance from the hyperplane.
+     */
+    def margin(node: Int, query: Array[Double], offset: Int, queryNorm: Double) =
+      (points.squaredDistance(b(node), query, offset, queryNorm) -
+        points.squaredDistance(a(node), query, offset, queryNorm)) / scale(node)
+
+    def foreachPoint(node: Int)(f: Int => Unit) {
+      var j = start(node)
+      while (j < end(node)) { f(order(j)); j += 1 }
+    }
+
+  }
+
+  private[space] object Tree {
+
+    def apply(points: PointMatrix, leafSize: Int, random: Random): Tree = {
+      val order = Array.range(0, points.numPoints)
+      val as = new GrowableIntArray
+      val bs = new GrowableIntArray
+      val rights = new GrowableIntArray
+      val starts = new GrowableIntArray
+      val ends = new GrowableIntArray
+      val scales = new scala.collection.mutable.ArrayBuilder.ofDouble
+
+      // Build the subtree over order(from until to).
+      def build(from: Int, to: Int) {
+        val node = as.length
+        starts += from
+        ends += to
+        rights += -1
+        if (to - from <= leafSize) {
+          as += -1
+          bs += -1
+          scales += 1.0
+        } else {
+          val pa = order(from + random.nextInt(to - from))
+          var pb = pa
+          var tries = 0
+          while (tries < 8 && points.squaredDistanceBetween(pa, pb) == 0) {
+            pb = order(from + random.nextInt(to - from))
+            tries += 1
+          }
+          var middle = from
+          var j = from
+          while (j < to) {
+            val i = order(j)
+            if (points.squaredDistanceBetween(i, pa) < points.squaredDistanceBetween(i, pb)) {
+              order(j) = order(middle)
+              order(middle) = i
+              middle += 1
+            }
+            j += 1
+          }
+          if (middle == from || middle == to) {
+            // The points coincide, so halve them arbitrarily with a
+            // hyperplane that every query lies on.
+            middle = (from + to) / 2
+            as += pa
+            bs += pa
+            scales += 1.0
+          } else {
+            as += pa
+            bs += pb
+            scales += 2 * math.sqrt(points.squaredDistanceBetween(pa, pb))
+          }
+          build(from, middle)
+          rights(node) = as.length
+          build(middle, to)
+        }
+      }
+
+      build(0, points.numPoints)
+      new Tree(points, order, as.toArray, bs.toArray, rights.toArray, starts.toArray, ends.toArray, scales.result())
+    }
+
+  }
+
+  /**
+   * A growable max-heap of (priority, tree, node) entries in primitive arrays,
+   * for visiting nodes across the forest in order of their distance from the
+   * query.
+   */
+  private[space] class NodeQueue {
+    private[this] var priorities = new Array[Double](64)
+    private[this] var entries = new Array[Long](64)
+    private[this] var used = 0
+
+    def nonEmpty = used > 0
+
+    def clear() {
+      used = 0
+    }
+
+    def topPriority = priorities(0)
+
+    def topTree = (entries(0) >>> 32).toInt
+
+    def topNode = entries(0).toInt
+
+    def push(priority: Double, tree: Int, node: Int) {
+      if (used == priorities.length) {
+        priorities = java.util.Arrays.copyOf(priorities, 2 * used)
+        entries = java.util.Arrays.copyOf(entries, 2 * used)
+      }
+      val entry = (tree.toLong << 32) | (node & 0xffffffffL)
+      var i = used
+      used += 1
+      while (i > 0 && priorities((i - 1) / 2) < priority) {
+        priorities(i) = priorities((i - 1) / 2)
+        entries(i) = entries((i - 1) / 2)
+        i = (i - 1) / 2
+      }
+      priorities(i) = priority
+      entries(i) = entry
+    }
+
+    def pop() {
+      used -= 1
+      val priority = priorities(used)
+      val entry = entries(used)
+      var i = 0
+      var done = used == 0
+      while (!done) {
+        val left = 2 * i + 1
+        if (left >= used) done = true
+        else {
+          val child = if (left + 1 < used && priorities(left + 1) > priorities(left)) left + 1 else left
+          if (priorities(child) > priority) {
+            priorities(i) = priorities(child)
+            entries(i) = entries(child)
+            i = child
+          } else done = true
+        }
+      }
+      if (used > 0) {
+        priorities(i) = priority
+        entries(i) = entry
+      }
+    }
+
+  }
+
+}
+
+/**
+ * Exact search with any distance between points of any type, by comparing
+ * each query with every point. The distance is called as distance(point,
+ * query), and the results hold its values.
+ */
+class MetricIndex[T](points: IndexedSeq[T], distance: (T, T) => Double) extends NeighborIndex[T] {
+
+  def size = points.length
+
+  def search(queries: IndexedSeq[T], k: Int): Neighbors = run(queries, k, leaveOneOut = false)
+
+  def leaveOneOut(k: Int): Neighbors = run(points, k, leaveOneOut = true)
+
+  private[this] def run(queries: IndexedSeq[T], k: Int, leaveOneOut: Boolean): Neighbors = {
+    val n = queries.length
+    val indices = new Array[Int](n * k)
+    val distances = new Array[Double](n * k)
+    val starts = 0 until n by VectorIndex.QueryBlock
+    val work = if (starts.length > 1) starts.par else starts
+    work.foreach { start =>
+      val heap = new NeighborHeap(k)
+      for (q <- start until math.min(n, start + VectorIndex.QueryBlock)) {
+        val query = queries(q)
+        var i = 0
+        while (i < points.length) {
+          if (!leaveOneOut || i != q) {
+            val d = distance(points(i), query)
+            if (d < heap.worst) heap.offer(i, d)
+          }
+          i += 1
+        }
+        heap.drainTo(indices, distances, q * k)
+      }
+    }
+    new Neighbors(k, indices, distances)
+  }
+
+}
+
+object NeighborIndex {
+
+  /** Builds an index over vectors held in a PointMatrix. */
+  type Builder = PointMatrix => VectorIndex
+
+  /** Exact search. */
+  val exact: Builder = new ExactIndex(_)
+
+  /** Approximate search with a RandomProjectionForest. */
+  def randomProjections(numTrees: Int = 10, leafSize: Int = 32, searchSize: Int = 0, seed: Long = 13): Builder =
+    new RandomProjectionForest(_, numTrees, leafSize, searchSize, seed)
+
+}
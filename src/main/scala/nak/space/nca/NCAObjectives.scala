@@ -7,7 +7,9 @@ import breeze.math._
 import breeze.numerics._
 import breeze.optimize.{BatchDiffFunction, StochasticDiffFunction}
 import breeze.util.Isomorphism
+import nak.cluster.{DensePointMatrix, PointMatrix}
 import nak.data.Example
+import nak.space.{NeighborIndex, VectorIndex}
 
 import scala.reflect.ClassTag
 
@@ -212,6 +214,187 @@ object NCAObjectives {
       override def fullRange: IndexedSeq[Int] = 0 until size
     }
 
+    /**
+     * A stochastic NCA objective for large datasets. Each call samples a
+     * mini-batch of examples and restricts the softmax of each to its
+     * numCandidates nearest other examples in the projected space, found in a
+     * NeighborIndex over all the examples projected by A. The index is rebuilt
+     * every refreshEvery calls, so candidates lag A a little between rebuilds.
+     * The value is minus the mean over the batch of the probability of
+     * classifying each example correctly, and the gradient is accumulated
+     * from (A x_ij) x_ij^T rather than outer product matrices, in buffers
+     * preallocated for each parallel chunk of the batch.
+     *
+     * The examples are stored contiguously, and the value and gradient are
+     * returned for A as a d' x d matrix.
+     */
+    class NCAStochasticObjective[L](data: Iterable[Example[L, DenseVector[Double]]],
+                                    batchSize: Int = 100,
+                                    numCandidates: Int = 50,
+                                    refreshEvery: Int = 10,
+                                    index: NeighborIndex.Builder = NeighborIndex.exact,
+                                    seed: Long = 13) extends StochasticDiffFunction[DenseMatrix[Double]] {
+      private val examples = data.toIndexedSeq
+      val size = examples.size
+      val featureSize = examples.head.features.length
+      private val points = PointMatrix.dense(examples.map(_.features))
+      private val labels = {
+        val labelIndex = breeze.util.Index(examples.map(_.label))
+        examples.map(e => labelIndex(e.label)).toArray
+      }
+      private val random = new scala.util.Random(seed)
+      private val numChunks = math.max(1, Runtime.getRuntime.availableProcessors)
+
+      private var calls = 0
+      private var candidateIndex: VectorIndex = null
+      private var buffers: Array[Array[Double]] = null
+
+      override def calculate(A: DenseMatrix[Double]): (Double, DenseMatrix[Double]) = {
+        val batch =
+          if (batchSize >= size) 0 until size
+          else IndexedSeq.fill(batchSize)(random.nextInt(size))
+        calculate(A, batch)
+      }
+
+      def calculate(A: DenseMatrix[Double], batch: IndexedSeq[Int]): (Double, DenseMatrix[Double]) = synchronized {
+        require(A.cols == featureSize, "A must have a column for each feature.")
+        val rows = A.rows
+        val d = featureSize
+        // A column-major, so that A(r, c) is a(c * rows + r).
+        val a = if (A.isTranspose || A.offset != 0 || A.majorStride != rows) A.copy.data else A.data
+
+        if (candidateIndex == null || candidateIndex.dimension != rows || calls % refreshEvery == 0)
+          candidateIndex = index(project(a, rows, 0 until size))
+        calls += 1
+        val candidates = candidateIndex.search(project(a, rows, batch), numCandidates + 1)
+
+        if (buffers == null || buffers(0).length != rows * d)
+          buffers = Array.fill(numChunks)(new Array[Double](rows * d))
+        val chunkSize = (batch.length + numChunks - 1) / numChunks
+        val work = (0 until numChunks).filter(_ * chunkSize < batch.length)
+        val value = (if (work.length > 1) work.par else work).map { chunk =>
+          val gradient = buffers(chunk)
+          java.util.Arrays.fill(gradient, 0.0)
+          val yi = new Array[Double](rows)
+          val yk = new Array[Double](rows * numCandidates)
+          val ids = new Array[Int](numCandidates)
+          val weights = new Array[Double](numCandidates)
+          val x = points.data
+          var value = 0.0
+          var b = chunk * chunkSize
+          while (b < math.min(batch.length, (chunk + 1) * chunkSize)) {
+            val i = batch(b)
+            projectInto(a, rows, i, yi, 0)
+
+            // Projected squared distances to the candidates other than i.
+            var count = 0
+            var nearest = Double.PositiveInfinity
+            var rank = 0
+            while (rank < candidates.count(b) && count < numCandidates) {
+              val k = candidates(b, rank)
+              if (k != i) {
+                projectInto(a, rows, k, yk, count * rows)
+                var distance = 0.0
+                var r = 0
+                while (r < rows) {
+                  val diff = yi(r) - yk(count * rows + r)
+                  distance += diff * diff
+                  r += 1
+                }
+                ids(count) = k
+                weights(count) = distance
+                nearest = math.min(nearest, distance)
+                count += 1
+              }
+              rank += 1
+            }
+
+            // Softmax over the candidates, shifted by the nearest so that it
+            // can't underflow.
+            var total = 0.0
+            var c = 0
+            while (c < count) {
+              weights(c) = exp(nearest - weights(c))
+              total += weights(c)
+              c += 1
+            }
+            var p_i = 0.0
+            c = 0
+            while (c < count) {
+              weights(c) /= total
+              if (labels(ids(c)) == labels(i)) p_i += weights(c)
+              c += 1
+            }
+            value += p_i
+
+            // d p_i / dA = 2 sum_k (p_i p_ik - [k has i's label] p_ik) (A x_ik) x_ik^T
+            c = 0
+            while (c < count) {
+              val k = ids(c)
+              val w = weights(c) * (p_i - (if (labels(k) == labels(i)) 1.0 else 0.0))
+              if (w != 0.0) {
+                var col = 0
+                while (col < d) {
+                  val dx = w * (x(i * d + col) - x(k * d + col))
+                  if (dx != 0.0) {
+                    var r = 0
+                    while (r < rows) {
+                      gradient(col * rows + r) += dx * (yi(r) - yk(c * rows + r))
+                      r += 1
+                    }
+                  }
+                  col += 1
+                }
+              }
+              c += 1
+            }
+            b += 1
+          }
+          value
+        }.sum
+
+        // Minimize minus the mean probability of classifying correctly.
+        val gradient = new Array[Double](rows * d)
+        for (chunk <- work) {
+          val buffer = buffers(chunk)
+          var j = 0
+          while (j < gradient.length) { gradient(j) += buffer(j); j += 1 }
+        }
+        val scale = -2.0 / batch.length
+        var j = 0
+        while (j < gradient.length) { gradient(j) *= scale; j += 1 }
+        (-value / batch.length, new DenseMatrix(rows, d, gradient))
+      }
+
+      // Project the given examples by A into a dense matrix, in parallel.
+      private def project(a: Array[Double], rows: Int, which: IndexedSeq[Int]): DensePointMatrix = {
+        val projected = new Array[Double](which.length * rows)
+        val starts = 0 until which.length by 256
+        (if (starts.length > 1) starts.par else starts).foreach { start =>
+          for (j <- start until math.min(which.length, start + 256)) projectInto(a, rows, which(j), projected, j * rows)
+        }
+        new DensePointMatrix(projected, which.length, rows)
+      }
+
+      private def projectInto(a: Array[Double], rows: Int, i: Int, out: Array[Double], offset: Int) {
+        java.util.Arrays.fill(out, offset, offset + rows, 0.0)
+        val x = points.data
+        val start = i * featureSize
+        var c = 0
+        while (c < featureSize) {
+          val value = x(start + c)
+          if (value != 0.0) {
+            var r = 0
+            while (r < rows) {
+              out(offset + r) += value * a(c * rows + r)
+              r += 1
+            }
+          }
+          c += 1
+        }
+      }
+    }
+
   }
 
   object SparseObjectives {
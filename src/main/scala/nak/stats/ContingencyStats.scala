@@ -101,10 +101,10 @@ object ContingencyStats {
   def apply[L]():ContingencyStats[L] = new ContingencyStats[L]
 
   /**
-  * Classify every example and compute its statistics
+  * Classify every example, in parallel, and compute its statistics
   */
   def apply[L,T](classifier: Classifier[L,T], dataset: Seq[Example[L,T]]):ContingencyStats[L] = {
-    apply(dataset.map(Example.lift(classifier)) map (_.features),dataset.map(_.label))
+    apply(classifier.classifyAll(dataset.map(_.features).toIndexedSeq),dataset.map(_.label))
   }
 
   def apply[L](guessed: Seq[L], gold: Seq[L]):ContingencyStats[L] = {
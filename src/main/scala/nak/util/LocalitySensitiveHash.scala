@@ -1,78 +1,110 @@
 package nak.util
 
+import java.io.{File, FileOutputStream, IOException, RandomAccessFile}
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import scala.collection.mutable.ArrayBuffer
 import scala.util.Random
 
 /**
   * A Locality Sensitive Hash that hashes the documents into buckets.
   * Only Jaccard Similarity is currently supported.
   *
+  * Shingles are hashed to 64 bits, and each document keeps the sorted hashes
+  * of its shingles to check candidates exactly. Signatures come from one
+  * permutation MinHash: each shingle hash is mixed once and falls into one of
+  * numRows bins, which keep the smallest value, and an empty bin borrows the
+  * value of the first non-empty bin in a sequence chosen by hashing the bin.
+  * This needs one hash per shingle rather than numRows. The rows of each band
+  * are hashed into a 64-bit key, and each band is a primitive hash table from
+  * keys to the documents that have them.
+  *
+  * Documents can be added to the index after it is built, and an index can be
+  * saved to a compact binary file and read back with LocalitySensitiveHash.load.
+  *
+  * For more details, see:
+  *   Li, Owen and Zhang (2012), One Permutation Hashing.
+  *   Shrivastava (2017), Optimal Densification for Fast and Accurate Minwise Hashing.
+  *
   * @constructor : create a new instance
-  * @param shingleLength. Default value  = 3,
-  * @param numBands. The Default value is 10.
+  * @param shingleLength. Default value  = 5,
+  * @param numBands. The Default value is 20.
   * @param documents Iterable of String documents.
   * @param numRows. Default is 100
+  * @param seed. The seed of the hash functions. Default is 0.
   * The parameters numBands, threshold may be may be set so that
   * threshold is approximately equal to  (1/numBands)^(1/rows per band).
  **/
 class LocalitySensitiveHash(
   documents: Iterable[String],
-  shingleLength: Int = 5,
-  numRows: Int = 100,
-  numBands: Int=20) {
+  val shingleLength: Int = 5,
+  val numRows: Int = 100,
+  val numBands: Int=20,
+  val seed: Long = 0L) {
 
   import Similarity.jaccard
-  import scala.util.hashing.MurmurHash3.stringHash
-  
+  import LocalitySensitiveHash._
+
   private[this] val rowsPerBand =
     (numRows.toDouble / numBands).ceil.toInt
 
   val threshold = math.pow(1.0/numBands,1.0/rowsPerBand)
-  
-  private[this] val processedDocuments: IndexedSeq[String] =
-    documents.par.map(StringCleaner.onlyAlpha).toIndexedSeq
 
-  private[this] val randomHashFunctions: Seq[LinearHashFunction] =
-    HashFunction.randomLinearHashFunctions(numRows)
+  private val documentShingles = new ArrayBuffer[Array[Long]]
 
-  private[this] val documentShingles: IndexedSeq[Set[String]] =
-    processedDocuments.par
-      .map(text => text.sliding(shingleLength).toSet)
-      .toIndexedSeq
+  private val mBands: Array[Band] =
+    Array.fill((numRows + rowsPerBand - 1) / rowsPerBand)(new Band)
 
-  private[this] val shingleVocab = documentShingles.flatten.toSet
+  addAll(documents)
 
-  private[this] def getShingleIndex: (String => Int) = { shingle =>
-    math.abs(stringHash(shingle)) % Int.MaxValue
-  }
+  /** The number of documents in the index. */
+  def size = documentShingles.length
 
   /**
-    * Create the bands from the shingles.
-    **/
-  private[this] val mBands: IndexedSeq[Band] = {
-    val minHashSignatures = documentShingles.par.map(getSignature).seq
-    
-    val bands = for {
-      bandData <- minHashSignatures.transpose.grouped(rowsPerBand)
-      subArraysForBand = bandData.toList.transpose.zipWithIndex
-    } yield Band(subArraysForBand)
+    * Add a document to the index and return its index. Documents must not be
+    * added while other threads are querying the index.
+    */
+  def add(document: String): Int = addAll(List(document)).head
 
-    bands.toIndexedSeq
+  /**
+    * Add documents to the index and return their indices, hashing them in
+    * parallel and then filling the bands in parallel.
+    */
+  def addAll(documents: Iterable[String]): Range = synchronized {
+    val texts = documents.toIndexedSeq
+    val first = size
+    val shingles = new Array[Array[Long]](texts.length)
+    val keys = new Array[Long](texts.length * mBands.length)
+    inBlocks(texts.length) { (start, end) =>
+      val mins = new Array[Long](numRows)
+      val signature = new Array[Int](numRows)
+      for (i <- start until end) {
+        shingles(i) = shingleHashes(StringCleaner.onlyAlpha(texts(i)))
+        if (shingles(i).nonEmpty) {
+          computeSignature(shingles(i), mins, signature)
+          bandKeys(signature, keys, i * mBands.length)
+        }
+      }
+    }
+    documentShingles ++= shingles
+    inParallel(mBands.length) { b =>
+      for (i <- texts.indices)
+        mBands(b).add(first + i, keys(i * mBands.length + b), shingles(i).nonEmpty)
+    }
+    first until size
   }
 
   /**
     * Returns documents that have Jaccard Similarity greater than threshold.
     * Assumes that documents have already been hashed.
-    * 
+    *
     * @param : document . The document for which similar documents have to be identified
     **/
-  def findSimilar(document: String) = {
-    val shingles =
-      StringCleaner.onlyAlpha(document).sliding(shingleLength).toSet
-    
-    val similarItems = getCandidates(shingles).par.filter { candidate =>
+  def findSimilar(document: String): Set[Int] = {
+    val shingles = shingleHashes(StringCleaner.onlyAlpha(document))
+    candidates(shingles).toArray.filter { candidate =>
       jaccard(shingles, documentShingles(candidate)) > threshold
-    }
-    similarItems.seq.toSet
+    }.toSet
   }
 
 
@@ -80,42 +112,264 @@ class LocalitySensitiveHash(
     * Return the indices of candidates that collide in some band
     * with the given set of shingles.
     */
-  def getCandidates(shingles: Set[String]) = {
-    val bandsForCandidate =
-      getSignature(shingles).grouped(rowsPerBand).toList
+  def getCandidates(shingles: Set[String]): Set[Int] = {
+    val hashes = shingles.iterator.map(s => shingleHash(s, 0, s.length)).toArray
+    candidates(sortDistinct(hashes)).toArray.toSet
+  }
+
+  /**
+    * Write the index to a file, to be read back with LocalitySensitiveHash.load.
+    */
+  def save(file: File): Unit = synchronized {
+    val stream = new FileOutputStream(file)
+    try {
+      val out = new ChannelWriter(stream.getChannel)
+      out.int(Magic)
+      out.int(Version)
+      out.int(shingleLength)
+      out.int(numRows)
+      out.int(numBands)
+      out.long(seed)
+      out.int(size)
+      for (shingles <- documentShingles) {
+        out.int(shingles.length)
+        shingles.foreach(out.long)
+      }
+      for (band <- mBands; document <- 0 until size)
+        out.long(band.key(document))
+      out.flush()
+    } finally {
+      stream.close()
+    }
+  }
+
+  // The sorted, distinct hashes of the shingles of a cleaned text. A text
+  // shorter than a shingle is one shingle.
+  private def shingleHashes(text: String): Array[Long] =
+    if (text.isEmpty) Array.empty[Long]
+    else {
+      val width = math.min(shingleLength, text.length)
+      sortDistinct(Array.tabulate(text.length - width + 1)(i => shingleHash(text, i, i + width)))
+    }
+
+  private def candidates(shingles: Array[Long]): GrowableIntArray = {
+    val found = new GrowableIntArray
+    if (shingles.nonEmpty) {
+      val keys = new Array[Long](mBands.length)
+      bandKeys(computeSignature(shingles, new Array[Long](numRows), new Array[Int](numRows)), keys, 0)
+      for (b <- 0 until mBands.length) mBands(b).get(keys(b), found)
+      found.sortDistinct()
+    }
+    found
+  }
+
+  /**
+    * Get the hash signature for a shingle set, using mins as scratch space.
+    */
+  private def computeSignature(shingles: Array[Long], mins: Array[Long], signature: Array[Int]): Array[Int] = {
+    java.util.Arrays.fill(mins, Long.MaxValue)
+    var i = 0
+    while (i < shingles.length) {
+      val h = mix(shingles(i) ^ seed)
+      val bin = (((h >>> 32) * numRows) >>> 32).toInt
+      val value = h & 0xffffffffL
+      if (value < mins(bin)) mins(bin) = value
+      i += 1
+    }
 
-    val candidateLists = for {
-      (subArray, index) <- bandsForCandidate.zipWithIndex.par
-      bucket <- mBands(index).get(subArray)
-    } yield bucket
+    var bin = 0
+    while (bin < numRows) {
+      var from = bin
+      var attempt = 1L
+      while (mins(from) == Long.MaxValue) {
+        val h = mix((seed + DensificationSalt) ^ (bin.toLong << 32 | attempt))
+        from = (((h >>> 32) * numRows) >>> 32).toInt
+        attempt += 1
+      }
+      signature(bin) = mins(from).toInt
+      bin += 1
+    }
+    signature
+  }
 
-    candidateLists.flatten.toSet
+  private def bandKeys(signature: Array[Int], keys: Array[Long], offset: Int) {
+    var b = 0
+    while (b < mBands.length) {
+      var key = b.toLong
+      var row = b * rowsPerBand
+      val end = math.min(numRows, row + rowsPerBand)
+      while (row < end) {
+        key = key * 0x9E3779B97F4A7C15L + (signature(row) & 0xffffffffL)
+        row += 1
+      }
+      keys(offset + b) = mix(key)
+      b += 1
+    }
   }
+}
+
+object LocalitySensitiveHash {
+
+  /**
+    * A saved index starts with the magic number "NAKL" and the format
+    * version, then shingleLength, numRows, numBands and seed, and the number
+    * of documents. Each document follows as its number of shingles and their
+    * hashes, and then each band as the keys of all the documents.
+    */
+  val Magic = 0x4E414B4C // "NAKL"
+  val Version = 1
+
+  private val BlockSize = 1024
+
+  // Files are mapped in windows of this many bytes, so they can be larger than 2GB.
+  private val WindowSize = 1 << 30
+
+  private val DensificationSalt = 0x5851F42D4C957F2DL
 
   /**
-    * Get the hash signature for a shingle set.
+    * Read an index written by save. The file is read once, through memory
+    * mapped windows, and the shingles and band tables are rebuilt on the
+    * heap, so the index takes as much memory as the one that was saved;
+    * queries are not served from the mapping. Documents can be added to it
+    * as usual.
     */
-  private[this] def getSignature(shingles: Set[String]) = {
-    val minHash = Array.fill[Double](numRows)(Double.PositiveInfinity)
-    shingles.filter(shingleVocab).map(getShingleIndex).foreach {
-      shingleIndex =>
-      // Using a while loop to be speedier (unfortunately).
-      var hashIndex = 0
-      while (hashIndex < numRows) {
-        val hf = randomHashFunctions(hashIndex)
-        val permutedIndex = hf(shingleIndex) % Int.MaxValue
-        if (minHash(hashIndex) > permutedIndex)
-          minHash(hashIndex) = permutedIndex
-        hashIndex += 1
+  def load(file: File): LocalitySensitiveHash = {
+    val channel = new RandomAccessFile(file, "r").getChannel
+    try {
+      val in = new MappedReader(channel)
+      if (channel.size < 8 || in.int != Magic)
+        throw new IOException("Not a Nak LSH index file.")
+      val version = in.int
+      if (version > Version)
+        throw new IOException("LSH index format version " + version + " is newer than this reader's, " + Version)
+
+      val shingleLength = in.int
+      val numRows = in.int
+      val numBands = in.int
+      val seed = in.long
+      val lsh = new LocalitySensitiveHash(Nil, shingleLength, numRows, numBands, seed)
+
+      val numDocuments = in.int
+      val shingles = Array.fill(numDocuments) {
+        val hashes = new Array[Long](in.int)
+        in.longs(hashes, hashes.length)
+        hashes
+      }
+      lsh.documentShingles ++= shingles
+
+      val keys = new Array[Long](math.min(numDocuments, 1 << 16))
+      for (band <- lsh.mBands) {
+        var start = 0
+        while (start < numDocuments) {
+          val length = math.min(keys.length, numDocuments - start)
+          in.longs(keys, length)
+          for (i <- 0 until length)
+            band.add(start + i, keys(i), shingles(start + i).nonEmpty)
+          start += length
+        }
+      }
+      lsh
+    } finally {
+      channel.close()
+    }
+  }
+
+  /** The 64-bit hash of the characters of text from start until end. */
+  private def shingleHash(text: String, start: Int, end: Int): Long = {
+    var h = 0xCBF29CE484222325L
+    var i = start
+    while (i < end) {
+      h = (h ^ text.charAt(i)) * 0x100000001B3L
+      i += 1
+    }
+    mix(h)
+  }
+
+  // The finalizer of MurmurHash3's 64-bit hash.
+  private def mix(x: Long): Long = {
+    var z = x
+    z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL
+    z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L
+    z ^ (z >>> 33)
+  }
+
+  private def sortDistinct(hashes: Array[Long]): Array[Long] = {
+    java.util.Arrays.sort(hashes)
+    var kept = 0
+    var i = 0
+    while (i < hashes.length) {
+      if (kept == 0 || hashes(i) != hashes(kept - 1)) {
+        hashes(kept) = hashes(i)
+        kept += 1
+      }
+      i += 1
+    }
+    if (kept == hashes.length) hashes else java.util.Arrays.copyOf(hashes, kept)
+  }
+
+  private def inBlocks(n: Int)(f: (Int, Int) => Unit) {
+    if (n < 2 * BlockSize) f(0, n)
+    else (0 until n by BlockSize).par.foreach(start => f(start, math.min(n, start + BlockSize)))
+  }
+
+  private def inParallel(n: Int)(f: Int => Unit) {
+    if (n == 1) f(0) else (0 until n).par.foreach(f)
+  }
+
+  private class ChannelWriter(channel: FileChannel) {
+    private[this] val buffer = ByteBuffer.allocateDirect(1 << 16)
+
+    def int(i: Int) { room(4); buffer.putInt(i) }
+
+    def long(l: Long) { room(8); buffer.putLong(l) }
+
+    def flush() {
+      buffer.flip()
+      while (buffer.hasRemaining) channel.write(buffer)
+      buffer.clear()
+    }
+
+    private[this] def room(bytes: Int) {
+      if (buffer.remaining < bytes) flush()
+    }
+  }
+
+  private class MappedReader(channel: FileChannel) {
+    private[this] var start = 0L
+    private[this] var buffer = ByteBuffer.allocate(0)
+
+    def int = { ensure(4); buffer.getInt }
+
+    def long = { ensure(8); buffer.getLong }
+
+    def longs(into: Array[Long], length: Int) {
+      var i = 0
+      while (i < length) {
+        ensure(8)
+        val n = math.min(length - i, buffer.remaining / 8)
+        buffer.asLongBuffer.get(into, i, n)
+        buffer.position(buffer.position + 8 * n)
+        i += n
+      }
+    }
+
+    // Map the next window if the current one has fewer than bytes left.
+    private[this] def ensure(bytes: Int) {
+      if (buffer.remaining < bytes) {
+        start += buffer.position
+        if (start + bytes > channel.size)
+          throw new IOException("The LSH index file is truncated.")
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, math.min(WindowSize, channel.size - start))
       }
     }
-    minHash.toList
   }
+
 }
 
 /**
   * Simple line function: y = mx+b
-  */ 
+  */
+@deprecated("LocalitySensitiveHash no longer uses linear hash functions.", "1.3")
 class LinearHashFunction(slope: Int, const: Int) {
   def apply(x: Double) = slope*x + const
 }
@@ -123,7 +377,8 @@ class LinearHashFunction(slope: Int, const: Int) {
 
 /**
   * Helper object for hash function functions.
-  */ 
+  */
+@deprecated("LocalitySensitiveHash no longer uses linear hash functions.", "1.3")
 object HashFunction {
 
   /** Get a sequence of random hash functions of the form mx+b. **/
@@ -139,20 +394,102 @@ object HashFunction {
 
 
 /**
-  * One band of the Locality Sensitive Hash.
+  * One band of the Locality Sensitive Hash: an open-addressing table from the
+  * 64-bit keys of the band to the documents with each key. The documents with
+  * a key are chained through an Int per document, so adding one is O(1).
   **/
-class Band(buckets: Map[List[Double], List[Int]]) {
+class Band extends Serializable {
 
-  /** Return the documents that collide to the same bucket. **/
+  // The buckets of a Band built from a Map, as before the keys were hashed.
+  private[this] var legacyBuckets = Map.empty[List[Double], List[Int]]
+
+  @deprecated("Bands now map hashed band keys to documents; use add and get(key, into).", "1.3")
+  def this(buckets: Map[List[Double], List[Int]]) = {
+    this()
+    legacyBuckets = buckets
+  }
+
+  /** Return the documents that collide to the same bucket, for a Band built from a Map. **/
+  @deprecated("Bands now map hashed band keys to documents; use get(key, into).", "1.3")
   def get(subArray: List[Double]): Option[List[Int]] =
-    buckets.get(subArray)
+    legacyBuckets.get(subArray)
+
+  private[this] var keys = new Array[Long](16)
+  private[this] var heads = Array.fill(keys.length)(-1)
+  private[this] var used = 0
+  private[this] val next = new GrowableIntArray
+  private[this] val documentKeys = new GrowableLongArray
+
+  /** The number of documents added, including those that aren't indexed. */
+  def size = next.length
+
+  /** The key of a document. */
+  def key(document: Int): Long = documentKeys(document)
+
+  /**
+    * Add the next document with its key. A document that isn't indexed keeps
+    * its key but is never returned.
+    */
+  def add(document: Int, key: Long, indexed: Boolean = true) {
+    require(document == size, "Documents must be added to a band in order.")
+    documentKeys += key
+    if (!indexed) next += -1
+    else {
+      var slot = find(keys, heads, key)
+      if (heads(slot) < 0) {
+        if ((used + 1) * 2 > keys.length) {
+          grow()
+          slot = find(keys, heads, key)
+        }
+        keys(slot) = key
+        used += 1
+      }
+      next += heads(slot)
+      heads(slot) = document
+    }
+  }
+
+  /** Add the documents that collide to the same bucket to into. **/
+  def get(key: Long, into: GrowableIntArray) {
+    var document = heads(find(keys, heads, key))
+    while (document >= 0) {
+      into += document
+      document = next(document)
+    }
+  }
+
+  private[this] def find(keys: Array[Long], heads: Array[Int], key: Long): Int = {
+    val mask = keys.length - 1
+    var slot = (key ^ (key >>> 32)).toInt & mask
+    while (heads(slot) >= 0 && keys(slot) != key)
+      slot = (slot + 1) & mask
+    slot
+  }
+
+  private[this] def grow() {
+    val oldKeys = keys
+    val oldHeads = heads
+    keys = new Array[Long](oldKeys.length * 2)
+    heads = Array.fill(keys.length)(-1)
+    var i = 0
+    while (i < oldKeys.length) {
+      if (oldHeads(i) >= 0) {
+        val slot = find(keys, heads, oldKeys(i))
+        keys(slot) = oldKeys(i)
+        heads(slot) = oldHeads(i)
+      }
+      i += 1
+    }
+  }
 
 }
 
+
 object Band {
   import CollectionUtil._
-  
+
   /** Hash the sub-arrays into buckets to form a band. **/
+  @deprecated("Bands now map hashed band keys to documents; use add.", "1.3")
   def apply(subArraysForBand: Seq[(List[Double], Int)]) =
     new Band(subArraysForBand.groupByKey.mapValues(_.toList))
 }
@@ -162,4 +499,17 @@ object Similarity {
   /** Compute the Jaccard Similarity of two sets**/
   def jaccard(set1: Set[String], set2: Set[String]): Double =
     (set1 & set2).size.toDouble/(set1 | set2).size
+
+  /** Compute the Jaccard Similarity of two sorted arrays of distinct hashes. **/
+  def jaccard(hashes1: Array[Long], hashes2: Array[Long]): Double = {
+    var shared = 0
+    var i = 0
+    var j = 0
+    while (i < hashes1.length && j < hashes2.length) {
+      if (hashes1(i) < hashes2(j)) i += 1
+      else if (hashes1(i) > hashes2(j)) j += 1
+      else { shared += 1; i += 1; j += 1 }
+    }
+    shared.toDouble/(hashes1.length + hashes2.length - shared)
+  }
 }
@@ -24,3 +24,243 @@ class GrowableIndex[T] extends (T => Int) {
 
   def size = nextIndex
 }
+
+/**
+ * An open-addressing hash table from Strings to Int counts. It avoids the
+ * boxed values and entry objects of a mutable.HashMap[String,Int], and two
+ * tables can be merged, so counts can be collected over shards of the data
+ * in parallel and then combined.
+ */
+class StringCountTable(initialCapacity: Int = 16) extends Serializable {
+
+  private[this] var keys = new Array[String](StringCountTable.tableSizeFor(initialCapacity))
+  private[this] var values = new Array[Int](keys.length)
+  private[this] var used = 0
+
+  /** The number of distinct keys in the table. */
+  def size = used
+
+  /** Get the count of a key, which is zero if it has never been seen. */
+  def apply(key: String): Int = {
+    val slot = find(keys, key)
+    if (keys(slot) == null) 0 else values(slot)
+  }
+
+  def contains(key: String) = keys(find(keys, key)) != null
+
+  /** Add count to the count of key. */
+  def increment(key: String, count: Int = 1) {
+    var slot = find(keys, key)
+    if (keys(slot) == null) {
+      if ((used + 1) * 2 > keys.length) {
+        grow()
+        slot = find(keys, key)
+      }
+      keys(slot) = key
+      used += 1
+    }
+    values(slot) += count
+  }
+
+  /** Add all the counts of another table to this one. */
+  def merge(other: StringCountTable): this.type = {
+    other.foreach(increment)
+    this
+  }
+
+  def foreach(f: (String, Int) => Unit) {
+    var slot = 0
+    while (slot < keys.length) {
+      if (keys(slot) != null) f(keys(slot), values(slot))
+      slot += 1
+    }
+  }
+
+  def iterator: Iterator[(String, Int)] =
+    keys.indices.iterator.filter(keys(_) != null).map(slot => (keys(slot), values(slot)))
+
+  private[this] def find(table: Array[String], key: String): Int = {
+    val mask = table.length - 1
+    var slot = scala.util.hashing.byteswap32(key.hashCode) & mask
+    while (table(slot) != null && table(slot) != key)
+      slot = (slot + 1) & mask
+    slot
+  }
+
+  private[this] def grow() {
+    val oldKeys = keys
+    val oldValues = values
+    keys = new Array[String](oldKeys.length * 2)
+    values = new Array[Int](keys.length)
+    var i = 0
+    while (i < oldKeys.length) {
+      if (oldKeys(i) != null) {
+        val slot = find(keys, oldKeys(i))
+        keys(slot) = oldKeys(i)
+        values(slot) = oldValues(i)
+      }
+      i += 1
+    }
+  }
+
+}
+
+object StringCountTable {
+
+  /** The smallest power of two that is at least twice the requested capacity. */
+  private def tableSizeFor(capacity: Int) =
+    Integer.highestOneBit(math.max(capacity, 4) * 2 - 1) * 2
+
+}
+
+/**
+ * A count-min sketch over Strings: a depth x width array of counters giving
+ * estimates of counts that are never too low and, with probability 1-delta,
+ * too high by at most epsilon times the total count, in memory that does not
+ * depend on the number of distinct keys. Sketches built with the same
+ * dimensions and seed can be merged.
+ *
+ * For more details, see:
+ *   Cormode and Muthukrishnan (2005), An improved data stream summary: the
+ *   count-min sketch and its applications.
+ */
+class CountMinSketch(val depth: Int, val width: Int, val seed: Int = 0) extends Serializable {
+  import scala.util.hashing.MurmurHash3.stringHash
+
+  require(depth > 0 && width > 0, "A count-min sketch needs a positive depth and width.")
+
+  private val counts = new Array[Int](depth * width)
+
+  /** Add count to the count of key. */
+  def add(key: String, count: Int = 1) {
+    val h1 = stringHash(key, seed)
+    val h2 = scala.util.hashing.byteswap32(h1) | 1
+    var row = 0
+    while (row < depth) {
+      counts(row * width + bucket(h1 + row * h2)) += count
+      row += 1
+    }
+  }
+
+  /** An estimate of the count of key that is never lower than the true count. */
+  def estimate(key: String): Int = {
+    val h1 = stringHash(key, seed)
+    val h2 = scala.util.hashing.byteswap32(h1) | 1
+    var min = Int.MaxValue
+    var row = 0
+    while (row < depth) {
+      min = math.min(min, counts(row * width + bucket(h1 + row * h2)))
+      row += 1
+    }
+    min
+  }
+
+  /** Add all the counts of another sketch with the same dimensions and seed to this one. */
+  def merge(other: CountMinSketch): this.type = {
+    require(depth == other.depth && width == other.width && seed == other.seed,
+      "Only sketches with the same dimensions and seed can be merged.")
+    var i = 0
+    while (i < counts.length) {
+      counts(i) += other.counts(i)
+      i += 1
+    }
+    this
+  }
+
+  private[this] def bucket(hash: Int) = (hash & Int.MaxValue) % width
+
+}
+
+object CountMinSketch {
+
+  /**
+   * Create a sketch whose estimates are too high by at most epsilon times the
+   * total count with probability 1-delta.
+   */
+  def apply(epsilon: Double, delta: Double, seed: Int = 0) =
+    new CountMinSketch(
+      math.ceil(math.log(1/delta)).toInt,
+      math.ceil(math.E/epsilon).toInt,
+      seed)
+
+}
+
+/**
+ * A growable array of Ints, for building lists of indices (e.g. the
+ * neighbours of a point) without boxing. clear keeps the storage, so one
+ * instance can be reused across many queries.
+ */
+class GrowableIntArray(initialCapacity: Int = 16) extends Serializable {
+
+  private[this] var elements = new Array[Int](math.max(1, initialCapacity))
+  private[this] var used = 0
+
+  def length = used
+
+  def apply(i: Int): Int = elements(i)
+
+  def update(i: Int, element: Int) {
+    require(i < used, "Index out of range: " + i)
+    elements(i) = element
+  }
+
+  def +=(element: Int): this.type = {
+    if (used == elements.length)
+      elements = java.util.Arrays.copyOf(elements, 2 * elements.length)
+    elements(used) = element
+    used += 1
+    this
+  }
+
+  def ++=(other: GrowableIntArray): this.type = {
+    var i = 0
+    while (i < other.length) { this += other(i); i += 1 }
+    this
+  }
+
+  def clear() {
+    used = 0
+  }
+
+  /** Sort the elements and remove duplicates. */
+  def sortDistinct() {
+    java.util.Arrays.sort(elements, 0, used)
+    var kept = 0
+    var i = 0
+    while (i < used) {
+      if (kept == 0 || elements(i) != elements(kept - 1)) {
+        elements(kept) = elements(i)
+        kept += 1
+      }
+      i += 1
+    }
+    used = kept
+  }
+
+  def toArray: Array[Int] = java.util.Arrays.copyOf(elements, used)
+
+}
+
+/**
+ * A growable array of Longs, like GrowableIntArray.
+ */
+class GrowableLongArray(initialCapacity: Int = 16) extends Serializable {
+
+  private[this] var elements = new Array[Long](math.max(1, initialCapacity))
+  private[this] var used = 0
+
+  def length = used
+
+  def apply(i: Int): Long = elements(i)
+
+  def +=(element: Long): this.type = {
+    if (used == elements.length)
+      elements = java.util.Arrays.copyOf(elements, 2 * elements.length)
+    elements(used) = element
+    used += 1
+    this
+  }
+
+  def toArray: Array[Long] = java.util.Arrays.copyOf(elements, used)
+
+}
@@ -27,6 +27,57 @@ class NakContextSpec extends FunSpec {
     }
   }
 
+  describe("classifier saving and loading") {
+    import nak.core._
+    import nak.core.PrepattachUtil._
+    import nak.liblinear.LiblinearConfig
+
+    val classifier = trainClassifier(LiblinearConfig(cost=.5,eps=.1), simpleFeaturizer,
+      readRaw("/data/ppa/training").take(2000).toList)
+    val devset = readRaw("/data/ppa/devset").take(200).map(_.features).toList
+
+    def roundTrip(classifier: Classifier, save: (Classifier, String) => Unit) = {
+      val file = java.io.File.createTempFile("nak-classifier", ".bin")
+      file.deleteOnExit()
+      save(classifier, file.getPath)
+      loadClassifier[LiblinearClassifier with FeaturizedClassifier[String,String]](file.getPath)
+    }
+
+    it ("should round trip through the binary format") {
+      val file = java.io.File.createTempFile("nak-classifier", ".bin")
+      file.deleteOnExit()
+      saveClassifier(classifier, file.getPath)
+      assert(ClassifierFormat.isClassifierFile(file))
+      val loaded = roundTrip(classifier, saveClassifier)
+      assert(loaded.fmap.isInstanceOf[nak.data.SortedStringFeatureMap])
+      assert(loaded.labels === classifier.labels)
+      for (input <- devset)
+        assert(loaded.evalRaw(input).toSeq === classifier.evalRaw(input).toSeq)
+      val reloaded = roundTrip(loaded, saveClassifier)
+      for (input <- devset)
+        assert(reloaded.predict(input) === classifier.predict(input))
+    }
+
+    it ("should round trip with frozen features") {
+      val frozen = Classifier.freezeFeatures(classifier)
+      assert(frozen.asInstanceOf[LiblinearClassifier].fmap.isInstanceOf[nak.data.PerfectHashFeatureMap])
+      val loaded = roundTrip(frozen, saveClassifier)
+      assert(loaded.fmap.isInstanceOf[nak.data.PerfectHashFeatureMap])
+      for (input <- devset)
+        assert(loaded.evalRaw(input).toSeq === classifier.evalRaw(input).toSeq)
+    }
+
+    it ("should still load Java serialized classifiers") {
+      val loaded = roundTrip(classifier, { (c, filename) =>
+        val stream = new java.io.FileOutputStream(filename)
+        new java.io.ObjectOutputStream(stream).writeObject(c)
+        stream.close
+      })
+      for (input <- devset)
+        assert(loaded.predict(input) === classifier.predict(input))
+    }
+  }
+
 
 
 }
@@ -33,6 +33,22 @@ trait ClassifierTrainerTestHarness extends FunSuite {
     assert(r == testData(0).label)
   }
 
+  test("indexed scores agree with Counter scores") {
+    val classifier = trainer[Int,Int].train(PRMLData.classification)
+    val observations = PRMLData.classification.map(_.features).toIndexedSeq
+    val labels = classifier.indexedLabels.getOrElse(breeze.util.Index(PRMLData.classification.map(_.label)))
+    val all = classifier.scoreAll(observations, labels)
+    for (i <- observations.indices) {
+      val counter = classifier.scores(observations(i))
+      for (l <- 0 until labels.size) {
+        val expected = counter(labels.get(l))
+        val actual = all(i * labels.size + l)
+        assert((expected.isNaN && actual.isNaN) || math.abs(actual - expected) <= 1E-8 * math.max(1.0, math.abs(expected)))
+      }
+    }
+    assert(classifier.classifyAll(observations) == observations.map(classifier.classify))
+  }
+
 }
 
 trait ContinuousTestHarness extends ClassifierTrainerTestHarness {
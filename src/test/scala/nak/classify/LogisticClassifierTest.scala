@@ -2,8 +2,13 @@ package nak.classify
 
 import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
+import breeze.optimize.BatchDiffFunction
 import breeze.optimize.FirstOrderMinimizer.OptParams
 import breeze.linalg._
+import breeze.util.Index
+import nak.data.Example
+
+import scala.util.Random
 
 /**
  * 
@@ -16,4 +21,73 @@ with ContinuousTestHarness {
   def trainer[L,T]:Classifier.Trainer[L,Counter[T,Double]] = 
     new LogisticClassifier.Trainer[L,Counter[T,Double]](
       OptParams(tolerance=1E-2,regularization = 1.0))
+
+  test("sparse features give the same objective as dense ones") {
+    val random = new Random(1)
+    val dense = IndexedSeq.tabulate(300) { i =>
+      val features = DenseVector.tabulate(20)(j => if (j < 3 || random.nextDouble < 0.2) random.nextGaussian else 0.0)
+      Example(argmax(features(0 until 3)), features)
+    }
+    val sparse = dense.map(_.map(f => SparseVector(f.length)(f.activeIterator.filter(_._2 != 0.0).toSeq: _*)))
+    val labelIndex = Index(0 until 3)
+
+    val denseWeights = new LFMatrix[Int, DenseVector[Double]](DenseVector.zeros[Double](20), labelIndex)
+    val sparseWeights = new LFMatrix[Int, SparseVector[Double]](SparseVector.zeros[Double](20), labelIndex)
+    for (label <- 0 until 3; j <- 0 until 20; if random.nextBoolean) {
+      val w = random.nextGaussian
+      denseWeights.data(label)(j) = w
+      sparseWeights.data(label)(j) = w
+    }
+
+    val (denseValue, denseGradient) = new ExposedTrainer[DenseVector[Double]].objectiveOf(dense, labelIndex).calculate(denseWeights)
+    val (sparseValue, sparseGradient) = new ExposedTrainer[SparseVector[Double]].objectiveOf(sparse, labelIndex).calculate(sparseWeights)
+    assert(math.abs(denseValue - sparseValue) < 1E-8)
+    for (label <- 0 until 3; j <- 0 until 20)
+      assert(math.abs(denseGradient.data(label)(j) - sparseGradient.data(label)(j)) < 1E-8)
+
+    val thresholded = new LogisticClassifier.Trainer[Int, SparseVector[Double]](OptParams(tolerance = 1E-2), probabilityThreshold = 1E-3)
+    val classifier = thresholded.train(sparse)
+    assert(sparse.count(ex => classifier.classify(ex.features) == ex.label) > 150)
+  }
+
+  test("contiguous weights score and train like separate rows") {
+    val random = new Random(2)
+    val data = IndexedSeq.tabulate(200) { i =>
+      val features = DenseVector.fill(10)(random.nextGaussian)
+      Example(argmax(features(0 until 4)), features)
+    }
+    val labelIndex = Index(0 until 4)
+    val separate = new LFMatrix[Int, DenseVector[Double]](DenseVector.zeros[Double](10), labelIndex)
+    val contiguous = LFMatrix.zeros[Int, DenseVector[Double]](DenseVector.zeros[Double](10), labelIndex)
+    assert(separate.contiguous.isEmpty)
+    for (label <- 0 until 4; j <- 0 until 10) {
+      val w = random.nextGaussian
+      separate.data(label)(j) = w
+      contiguous.data(label)(j) = w
+    }
+    assert(contiguous.contiguous.isDefined)
+    assert((contiguous * 2.0).contiguous.isDefined)
+
+    for (ex <- data.take(20))
+      assert(norm((separate * ex.features) - (contiguous * ex.features)) < 1E-10)
+    val all = contiguous.scoresAll(data.map(_.features))
+    for (i <- data.indices)
+      assert(norm(all(::, i) - (separate * data(i).features)) < 1E-10)
+
+    val objective = new ExposedTrainer[DenseVector[Double]].objectiveOf(data, labelIndex)
+    val (separateValue, separateGradient) = objective.calculate(separate)
+    val (contiguousValue, contiguousGradient) = objective.calculate(contiguous)
+    assert(math.abs(separateValue - contiguousValue) < 1E-8)
+    for (label <- 0 until 4)
+      assert(norm(separateGradient.data(label) - contiguousGradient.data(label)) < 1E-8)
+
+    val classifier = new LogisticClassifier.Trainer[Int, DenseVector[Double]](OptParams(tolerance = 1E-2)).train(data)
+    assert(data.count(ex => classifier.classify(ex.features) == ex.label) > 180)
+  }
+
+  class ExposedTrainer[TF](implicit arith: breeze.math.MutableVectorField[TF, Double], man: scala.reflect.ClassTag[TF])
+    extends LogisticClassifier.Trainer[Int, TF](debugChecks = true) {
+    def objectiveOf(data: IndexedSeq[Example[Int, TF]], labelIndex: Index[Int]): BatchDiffFunction[LFMatrix[Int, TF]] =
+      objective(data, labelIndex)
+  }
 }
@@ -3,6 +3,9 @@ package nak.classify
 import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
 import breeze.linalg._
+import nak.data.Example
+
+import scala.util.Random
 
 /**
  * 
@@ -12,4 +15,47 @@ import breeze.linalg._
 class NaiveBayesTrainerTest extends ClassifierTrainerTestHarness {
   def trainer[L,T]:Classifier.Trainer[L,Counter[T,Double]] = 
     new NaiveBayes.Trainer[L,T]();
+
+  def documents(n: Int, seed: Int) = {
+    val random = new Random(seed)
+    IndexedSeq.fill(n) {
+      val label = random.nextInt(3)
+      val words = Counter[String,Double]()
+      for (i <- 0 until 5) words("w" + (label * 10 + random.nextInt(15))) += 1.0
+      Example(label.toString, words)
+    }
+  }
+
+  test("compiled scores match the counted probabilities") {
+    val data = documents(200, 1)
+    val classifier = new NaiveBayes.Trainer[String,String](0.05, 0.01).train(data)
+    val vocabSize = data.flatMap(_.features.keysIterator).toSet.size
+    val test = Counter("w3" -> 2.0, "w12" -> 1.0, "unseen" -> 1.0)
+    val scores = classifier.scores(test)
+    for (label <- Seq("0", "1", "2")) {
+      val examples = data.filter(_.label == label)
+      val total = examples.map(e => breeze.linalg.sum(e.features)).sum
+      def count(w: String) = examples.map(_.features(w)).sum
+      val expected = math.log(examples.size + 0.02) +
+        test.activeIterator.map { case (w, v) => v * (math.log(count(w) + 0.05) - math.log(total + vocabSize * 0.05)) }.sum
+      assert(math.abs(scores(label) - expected) < 1E-8)
+    }
+  }
+
+  test("added documents and merged counts give the same model as training") {
+    val data = documents(300, 2)
+    val more = documents(100, 3) :+ Example("3", Counter("new" -> 1.0, "w1" -> 2.0))
+    val trained = new NaiveBayes.Trainer[String,String]().train(data ++ more)
+    val added = new NaiveBayes.Trainer[String,String]().train(data)
+    more.foreach(added.add)
+    val merged = NaiveBayes(NaiveBayes.count(data).merge(NaiveBayes.count(more)))
+    val test = documents(50, 4).map(_.features)
+    for (doc <- test; model <- Seq(added, merged)) {
+      val expected = trained.scores(doc)
+      val actual = model.scores(doc)
+      for (label <- expected.keysIterator)
+        assert(math.abs(expected(label) - actual(label)) < 1E-8)
+    }
+    assert(trained.classifyAll(test) == test.map(added.classify))
+  }
 }
@@ -1,13 +1,18 @@
 
 package nak.classify
 
-import breeze.linalg.DenseVector
+import breeze.linalg.{DenseMatrix, DenseVector}
 import nak.classify.Classifier.Trainer
-import nak.space.DMImplicits
+import nak.space.{DMImplicits, NeighborIndex}
 import DMImplicits.euclidean
+import breeze.optimize.StochasticGradientDescent
+import nak.space.nca.NCAObjectives.Iso_DM_DV
+import nak.space.nca.NCAObjectives.DenseObjectives.NCAStochasticObjective
 import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
 
+import scala.util.Random
+
 /**
  * dialogue
  * 6/19/14
@@ -20,4 +25,49 @@ class kNNClassifierTest
   extends DenseNearestNeighborTestHarness {
   def trainer[L]: Trainer[L, DenseVector[Double]] =
     new kNearestNeighbor.Trainer[L, DenseVector[Double], euclidean](3)
+
+  test("leave-one-out and approximate search") {
+    val iris = IrisData.denseClassification
+    val exact = new kNearestNeighbor[String, DenseVector[Double], euclidean](iris, 3)
+    val approximate = new kNearestNeighbor[String, DenseVector[Double], euclidean](iris, 3, NeighborIndex.randomProjections(leafSize = 8))
+    assert(exact.testLOO() > 0.9)
+    assert(approximate.testLOO() > 0.9)
+    assert(exact.classifyAll(iris.map(_.features).toIndexedSeq) === iris.map(e => exact.classify(e.features)))
+  }
+
+  test("NCA searches its projected examples") {
+    val iris = IrisData.denseClassification
+    val A = DenseMatrix.eye[Double](4) * 2.0
+    val nca = new NCA[String, DenseVector[Double], DenseMatrix[Double]](iris, 3, A)
+    val knn = new kNearestNeighbor[String, DenseVector[Double], euclidean](iris, 3)
+    assert(nca.projectedExamples.get.numPoints === iris.size)
+    assert(nca.testLOO() === knn.testLOO())
+    val query = iris.head.features
+    assert(nca.distances(query).head._2 === 0.0)
+
+    val bytes = new java.io.ByteArrayOutputStream
+    new java.io.ObjectOutputStream(bytes).writeObject(nca)
+    val copy = new java.io.ObjectInputStream(new java.io.ByteArrayInputStream(bytes.toByteArray))
+      .readObject.asInstanceOf[NCA[String, DenseVector[Double], DenseMatrix[Double]]]
+    assert(iris.forall(e => copy.classify(e.features) == nca.classify(e.features)))
+  }
+
+  test("stochastic NCA objective") {
+    val iris = IrisData.denseClassification
+    val df = new NCAStochasticObjective[String](iris, batchSize = 20, numCandidates = 200)
+    val random = new Random(3)
+    val A = DenseMatrix.fill(2, 4)(random.nextGaussian * 0.3)
+    val batch = IndexedSeq.fill(20)(random.nextInt(iris.size))
+    val (value, gradient) = df.calculate(A, batch)
+    for (i <- 0 until 2; j <- 0 until 4) {
+      val shifted = A.copy
+      shifted(i, j) += 1e-6
+      assert(math.abs((df.calculate(shifted, batch)._1 - value) / 1e-6 - gradient(i, j)) < 1e-4)
+    }
+
+    implicit val iso = new Iso_DM_DV(2, 4)
+    val sampled = new NCAStochasticObjective[String](iris, batchSize = 30, numCandidates = 20)
+    val trained = iso.backward(StochasticGradientDescent[DenseVector[Double]](1.0, 200).minimize(sampled.throughLens[DenseVector[Double]], iso.forward(A)))
+    assert(new NCA[String, DenseVector[Double], DenseMatrix[Double]](iris, 3, trained).testLOO() > 0.9)
+  }
 }
@@ -59,4 +59,53 @@ class GDBSCANTest extends FlatSpec with Matchers {
     clusterPoints(0) should contain only (Array(1.0), Array(3.0))
     clusterPoints(1) should contain only (Array(2.0), Array(4.0))
   }
-}
\ No newline at end of file
+
+  it should "follow chains of core points" in {
+    val gdbscan = new GDBSCAN(
+      DBSCAN.getNeighbours(epsilon = 1, distance = Kmeans.euclideanDistance),
+      DBSCAN.isCorePoint(minPoints = 2)
+    )
+    val input = DenseMatrix.tabulate(10, 1)((i, _) => 0.8 * i)
+    val cluster = gdbscan cluster input
+    cluster.size shouldBe 1
+    cluster(0).points.map(_.row) should contain theSameElementsAs (0 until 10)
+  }
+
+  "DBSCAN with a spatial index" should "find the same clusters as GDBSCAN" in {
+    val random = new scala.util.Random(3)
+    def blobs(dimension: Int) = {
+      val centers = Seq.fill(4)(Array.fill(dimension)(random.nextDouble * 20))
+      val rows = centers.flatMap(c => Seq.fill(40)(c.map(_ + random.nextGaussian * 0.5))) ++
+        Seq.fill(20)(Array.fill(dimension)(random.nextDouble * 20))
+      DenseMatrix.tabulate(rows.length, dimension)((i, j) => rows(i)(j))
+    }
+    def rows(clusters: Seq[Cluster[Double]]) = clusters.map(c => (c.id, c.points.map(_.row).toSet))
+
+    for (dimension <- Seq(2, 5)) {
+      val input = blobs(dimension)
+      val expected = rows(new GDBSCAN(
+        DBSCAN.getNeighbours(epsilon = 1.2, distance = Kmeans.euclideanDistance),
+        DBSCAN.isCorePoint(minPoints = 4)
+      ) cluster input)
+      for (index <- Seq(SpatialIndex.bruteForce, SpatialIndex.grid, SpatialIndex.kdTree(4), SpatialIndex.auto))
+        rows(DBSCAN.cluster(input, 1.2, 4, index)) shouldBe expected
+
+      // LSH can miss neighbours, but with many wide buckets it shouldn't here.
+      rows(DBSCAN.cluster(input, 1.2, 4, SpatialIndex.lsh(numTables = 30, bucketWidth = 8))) shouldBe expected
+    }
+  }
+
+  "Parallel DBSCAN" should "find the same clusters as sequential DBSCAN" in {
+    val random = new scala.util.Random(9)
+    val centers = Seq.fill(30)((random.nextDouble * 100, random.nextDouble * 100))
+    val coordinates = centers.flatMap(c => Seq.fill(400)((c._1 + random.nextGaussian * 2, c._2 + random.nextGaussian * 2))) ++
+      Seq.fill(2000)((random.nextDouble * 100, random.nextDouble * 100))
+    val input = DenseMatrix.tabulate(coordinates.length, 2)((i, j) => if (j == 0) coordinates(i)._1 else coordinates(i)._2)
+
+    def rows(clusters: Seq[Cluster[Double]]) = clusters.map(c => (c.id, c.points.map(_.row).toSet))
+    val sequential = DBSCAN.cluster(input, 0.5, 5)
+    val parallel = DBSCAN.clusterParallel(input, 0.5, 5)
+    rows(parallel) shouldBe rows(sequential)
+    parallel.foreach(c => c.points.map(_.row) shouldBe sorted)
+  }
+}
@@ -75,5 +75,69 @@ class KMeansTest extends FunSuite {
     assert((SparseVector(Array(3.6,0.2,8.8))) === c)
   }
 
+  test("Euclidean engine agrees with the generic implementation") {
+    val random = new scala.util.Random(7)
+    val centers = IndexedSeq((0.0, 0.0, 0.0), (10.0, 0.0, 5.0), (0.0, 10.0, -5.0), (10.0, 10.0, 10.0))
+    val points = for (center <- centers; _ <- 1 to 50) yield DenseVector(
+      center._1 + random.nextGaussian, center._2 + random.nextGaussian, center._3 + random.nextGaussian)
+
+    val generic = new Kmeans[DenseVector[Double]](points,
+      distanceFun = (a: DenseVector[Double], b: DenseVector[Double]) => breeze.linalg.norm(a - b, 2),
+      fixedSeedForRandom = true)
+    val fast = new Kmeans[DenseVector[Double]](points, fixedSeedForRandom = true)
+    val (genericDispersion, _) = generic.run(4, 10)
+    val (fastDispersion, centroids) = fast.run(4, 10)
+    assert(closeTo(genericDispersion, fastDispersion, 1e-6))
+    assert(centroids.length === 4)
+
+    val sparse = points.map(p => SparseVector(p.toArray))
+    val (sparseDispersion, _) = new Kmeans[SparseVector[Double]](sparse, fixedSeedForRandom = true).run(4, 10)
+    assert(closeTo(sparseDispersion, fastDispersion, 1e-6))
+  }
+
+  test("Seedings and bounds find the same clusters") {
+    val random = new scala.util.Random(11)
+    val centers = for (x <- 0 until 4; y <- 0 until 4) yield (20.0 * x, 20.0 * y)
+    val points = for (center <- centers; _ <- 1 to 40) yield
+      DenseVector(center._1 + random.nextGaussian, center._2 + random.nextGaussian)
+
+    val (lloyd, _) = new Kmeans[DenseVector[Double]](points, fixedSeedForRandom = true,
+      seeding = PlusPlusSeeding).run(16, 5)
+    for (seeding <- Seq(PlusPlusSeeding, ParallelSeeding()); acceleration <- Seq(HamerlyAcceleration, ElkanAcceleration)) {
+      val kmeans = new Kmeans[DenseVector[Double]](points, fixedSeedForRandom = true,
+        seeding = seeding, acceleration = acceleration)
+      val (dispersion, centroids) = kmeans.run(16, 5)
+      assert(closeTo(dispersion, lloyd, 1e-6), seeding + " " + acceleration)
+      assert(centroids.length === 16)
+      assert(kmeans.prunedFraction > 0.3, seeding + " " + acceleration + " pruned " + kmeans.prunedFraction)
+    }
+  }
+
+  test("Mini-batch k-means finds the clusters of a stream") {
+    val random = new scala.util.Random(5)
+    val centers = IndexedSeq(DenseVector(0.0, 0.0), DenseVector(10.0, 0.0), DenseVector(0.0, 10.0))
+    def points = Iterator.continually {
+      val center = centers(random.nextInt(centers.length))
+      DenseVector(center(0) + random.nextGaussian, center(1) + random.nextGaussian): breeze.linalg.Vector[Double]
+    }
+
+    val kmeans = new MiniBatchKmeans(3, 2, batchSize = 100, fixedSeedForRandom = true)
+    val (_, centroids) = kmeans.run(points, maxBatches = 50)
+    for (center <- centers)
+      assert(centroids.map(c => breeze.linalg.norm(c - center, 2)).min < 0.5)
+    val sample = points.take(300).toIndexedSeq
+    assert(kmeans.dispersion(sample.iterator) / sample.length < 3.0)
+    assert(kmeans.memberships(sample.iterator).toSet.size === 3)
+
+    val file = java.io.File.createTempFile("nak-kmeans", ".ckpt")
+    file.deleteOnExit()
+    kmeans.stream(points.take(1000), file, checkpointEvery = 3)
+    val restored = new MiniBatchKmeans(3, 2, batchSize = 100).restore(file)
+    assert(restored.numBatches === kmeans.numBatches)
+    assert(restored.centroids === kmeans.centroids)
+
+    val ragged = IndexedSeq[breeze.linalg.Vector[Double]](DenseVector(1.0, 2.0), DenseVector(1.0, 2.0, 3.0), DenseVector(0.0, 1.0))
+    intercept[IllegalArgumentException](new MiniBatchKmeans(2, 2).update(ragged))
+  }
 
 }
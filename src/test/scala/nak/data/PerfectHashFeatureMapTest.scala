@@ -0,0 +1,63 @@
+package nak.data
+
+import org.scalatest.FunSuite
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+
+/**
+ * Make sure the perfect hash feature map finds every feature it was built
+ * with, and rejects features it wasn't.
+ */
+@RunWith(classOf[JUnitRunner])
+class PerfectHashFeatureMapTest extends FunSuite {
+
+  val features = (0 until 20000).map(i => ("feature=" + i, 3 * i)).toMap
+
+  test("every feature maps to its index") {
+    val fmap = PerfectHashFeatureMap(features)
+    assert(fmap.size === features.size)
+    for ((feature, index) <- features)
+      assert(fmap.indexOfFeature(feature) === Some(index))
+  }
+
+  test("unknown features are rejected") {
+    val fmap = PerfectHashFeatureMap(features)
+    val unknown = (0 until 20000).map("other=" + _)
+    assert(unknown.count(fmap.indexOfFeatureOrElse(_, -1) >= 0) <= 1)
+  }
+
+  test("small and empty maps") {
+    assert(PerfectHashFeatureMap(Map[String,Int]()).indexOfFeature("a") === None)
+    val one = PerfectHashFeatureMap(Map("a" -> 7))
+    assert(one.indexOfFeature("a") === Some(7))
+    assert(one.indexOfFeature("b") === None)
+  }
+
+  test("repeated features are rejected") {
+    val repeated = Seq("a" -> 1, "b" -> 2, "a" -> 3)
+    intercept[IllegalArgumentException](PerfectHashFeatureMap(repeated))
+    val out = new java.io.DataOutputStream(new java.io.ByteArrayOutputStream)
+    intercept[IllegalArgumentException](PerfectHashFeatureMap.write(out, repeated))
+  }
+
+  test("memory-mapped and serialized copies") {
+    val fmap = PerfectHashFeatureMap(features)
+    val file = java.io.File.createTempFile("nak-features", ".mph")
+    file.deleteOnExit()
+    fmap.save(file)
+    val mapped = PerfectHashFeatureMap.map(file)
+
+    val bytes = new java.io.ByteArrayOutputStream
+    val out = new java.io.ObjectOutputStream(bytes)
+    out.writeObject(fmap)
+    out.close()
+    val copy = new java.io.ObjectInputStream(new java.io.ByteArrayInputStream(bytes.toByteArray))
+      .readObject.asInstanceOf[FeatureMap]
+
+    for ((feature, index) <- features.take(1000)) {
+      assert(mapped.indexOfFeature(feature) === Some(index))
+      assert(copy.indexOfFeature(feature) === Some(index))
+    }
+  }
+
+}
@@ -0,0 +1,46 @@
+package nak.data
+
+import org.scalatest.FunSuite
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+
+/**
+ * Make sure the streaming tf-idf featurizer agrees with the batch one.
+ */
+@RunWith(classOf[JUnitRunner])
+class TfidfFeaturizerTest extends FunSuite {
+
+  val examples = Seq(
+    Example("sports", "The team won the game in the last minute."),
+    Example("sports", "A late goal won the game for the home team."),
+    Example("politics", "The senate passed the bill after a long debate."),
+    Example("politics", "The bill was debated in the senate for a week."),
+    Example("sports", "The home team lost the game and the coach was angry."),
+    Example("politics", "After the debate the senate voted on the bill.")
+  )
+
+  def asMaps(featurized: Seq[Example[String,Seq[FeatureObservation[String]]]]) =
+    featurized.map(ex => (ex.label, ex.features.map(_.tuple).toMap))
+
+  test("streaming featurizer matches batch featurizer") {
+    val batch = new TfidfBatchFeaturizer[String](stopwords = Set("the"))(examples)
+    val streaming = new StreamingTfidfFeaturizer[String](stopwords = Set("the"), batchSize = 4)
+    assert(asMaps(streaming(examples)) === asMaps(batch))
+  }
+
+  test("sketched frequencies select the same words on a small corpus") {
+    val exact = new StreamingTfidfFeaturizer[String](batchSize = 2).fit(examples.iterator)
+    val sketched = new StreamingTfidfFeaturizer[String](batchSize = 2, sketchWidth = 1024)
+      .fit(examples.iterator)
+    assert(sketched.idfs.keySet === exact.idfs.keySet)
+    for ((word, idf) <- exact.idfs)
+      assert(sketched.idfs(word) <= idf)
+  }
+
+  test("fitted model featurizes new documents") {
+    val model = new StreamingTfidfFeaturizer[String](addDefault = true).fit(examples.iterator)
+    val features = model("The senate won the bill debate!").map(_.feature).toSet
+    assert(features === Set("the", "senate", "won", "bill", "debate", "DEFAULT"))
+  }
+
+}
@@ -0,0 +1,54 @@
+package nak.inference
+
+import org.junit.runner.RunWith
+import org.scalatest._
+import breeze.numerics.closeTo
+import org.scalatest.junit.JUnitRunner
+
+@RunWith(classOf[JUnitRunner])
+class ExpectationPropagationTest extends FunSuite {
+
+  // A Gaussian over the mean of some observations with unit noise, in natural
+  // parameters, so EP is exact.
+  case class Gaussian(precision: Double, shift: Double) extends ExpFactor[Gaussian] {
+    def *(f: Gaussian) = Gaussian(precision + f.precision, shift + f.shift)
+    def /(f: Gaussian) = Gaussian(precision - f.precision, shift - f.shift)
+    def **(p: Double) = Gaussian(precision * p, shift * p)
+    def logPartition = 0.5 * shift * shift / precision - 0.5 * math.log(precision / (2 * math.Pi))
+    def isConvergedTo(f: Gaussian, diff: Double) =
+      math.abs(precision - f.precision) <= diff && math.abs(shift - f.shift) <= diff
+  }
+
+  val observations = IndexedSeq.tabulate(2000)(i => math.sin(i) + 1.5)
+
+  def project(q: Gaussian, x: Double) = {
+    val variance = 1 / q.precision + 1
+    val mean = q.shift / q.precision
+    val logZ = -0.5 * (x - mean) * (x - mean) / variance - 0.5 * math.log(2 * math.Pi * variance)
+    (q * Gaussian(1, x), logZ)
+  }
+
+  val ep = new ExpectationPropagation(project _)
+  val prior = Gaussian(1, 0)
+  val initial = IndexedSeq.fill(observations.length)(Gaussian(0, 0))
+
+  // The posterior of the mean in closed form.
+  val posterior = Gaussian(1 + observations.length, observations.sum)
+
+  def refolded(state: ep.State) =
+    state.f_~.foldLeft(state.prior)(_ * _).logPartition + state.partitions.sum
+
+  test("sequential EP finds the exact posterior") {
+    val state = ep.inference(prior, observations, initial).toIndexedSeq.last
+    assert(posterior.isConvergedTo(state.q, 1E-6), state.q.toString)
+    assert(closeTo(state.logPartition, refolded(state), 1E-6), state.logPartition + " " + refolded(state))
+    assert(state.f_~.length === observations.length)
+  }
+
+  test("damped parallel EP converges to the same posterior") {
+    val state = ep.parallelInference(prior, observations, initial, damping = 0.3).toIndexedSeq.last
+    assert(posterior.isConvergedTo(state.q, 1E-3), state.q.toString)
+    assert(closeTo(state.logPartition, refolded(state), 1E-6), state.logPartition + " " + refolded(state))
+  }
+
+}
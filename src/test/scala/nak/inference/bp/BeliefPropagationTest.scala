@@ -35,6 +35,104 @@ class BeliefPropagationTest extends FunSuite {
 
   }
 
+  test("Compiled inference matches the exact marginals") {
+    import SimpleProblem._
+    val compiled = BeliefPropagation.inferCompiled(model)
+    for (v <- 0 until 4)
+      assert(closeTo(compiled.beliefs(v)(0), marginals(v), 4E-3), compiled.beliefs(v).toString + " " + marginals.mkString("{",", ", "}"))
+    assert(closeTo(math.log(part), compiled.logPartition, 1E-3), math.log(part) + " " + compiled.logPartition)
+  }
+
+  test("Compiled inference matches infer with higher-arity factors") {
+    val a, b, c = Variable(0 to 2)
+    val d = Variable(0 to 1)
+    val factors = IndexedSeq(
+      Factor.fromLogFn(a, b)((i, j) => 0.3 * i * j - 0.2 * I(i == j)),
+      new Factor {
+        val variables = IndexedSeq(a, c, d)
+        def logApply(ass: Array[Int]) = 0.1 * ass(0) - 0.4 * ass(1) * ass(2) + 0.2 * I(ass(0) == ass(1))
+      },
+      Factor.fromLogFn(d)(i => 0.7 * i)
+    )
+    val model = Model(IndexedSeq(a, b, c, d), factors)
+    val plain = BeliefPropagation.infer(model, maxIterations = 50, tolerance = 1E-8)
+    val compiled = BeliefPropagation.inferCompiled(model, maxIterations = 50, tolerance = 1E-8)
+    for (v <- 0 until 4; i <- 0 until plain.beliefs(v).length)
+      assert(closeTo(plain.beliefs(v)(i), compiled.beliefs(v)(i), 1E-6), plain.beliefs(v).toString + " " + compiled.beliefs(v))
+    assert(closeTo(plain.logPartition, compiled.logPartition, 1E-6))
+  }
+
+  test("Parallel and residual schedules converge to the same beliefs") {
+    val random = new scala.util.Random(5)
+    val grid = IndexedSeq.fill(16)(Variable(0 to 2))
+    val factors =
+      (for (i <- 0 until 4; j <- 0 until 4; (di, dj) <- Seq((0, 1), (1, 0)) if i + di < 4 && j + dj < 4) yield {
+        val w = Array.fill(9)(0.5 * random.nextGaussian)
+        Factor.fromLogFn(grid(i * 4 + j), grid((i + di) * 4 + j + dj))((a, b) => w(a * 3 + b))
+      }) ++ grid.map { v =>
+        val w = Array.fill(3)(random.nextGaussian)
+        Factor.fromLogFn(v)(a => w(a))
+      }
+    val model = Model(grid, factors)
+    val sequential = BeliefPropagation.inferCompiled(model, maxIterations = 200, tolerance = 1E-9)
+    assert(sequential.stats.converged, sequential.stats)
+    for (schedule <- Seq(Schedule.Parallel(0.3), Schedule.Residual)) {
+      val other = BeliefPropagation.inferCompiled(model, maxIterations = 200, tolerance = 1E-9, schedule = schedule)
+      assert(other.stats.converged, schedule + " " + other.stats)
+      assert(other.stats.maxResidual < 1E-9)
+      for (v <- 0 until 16; a <- 0 until 3)
+        assert(closeTo(sequential.beliefs(v)(a), other.beliefs(v)(a), 1E-6), schedule + " " + v)
+      assert(closeTo(sequential.logPartition, other.logPartition, 1E-6), schedule.toString)
+    }
+
+    val loose = BeliefPropagation.infer(model, maxIterations = 200, tolerance = 1E-2)
+    val tight = BeliefPropagation.infer(model, maxIterations = 200, tolerance = 1E-9)
+    assert(loose.stats.converged && tight.stats.converged)
+    assert(loose.stats.iterations < tight.stats.iterations)
+  }
+
+  test("Parallel and residual schedules keep impossible states impossible") {
+    val a, b = Variable(0 to 2)
+    val factors = IndexedSeq(
+      Factor.fromLogFn(a)(i => if (i == 0) Double.NegativeInfinity else 0.3 * i),
+      Factor.fromLogFn(a, b)((i, j) => if (i == j) 0.5 else 0.0),
+      Factor.fromLogFn(b)(j => if (j == 2) Double.NegativeInfinity else 0.0))
+    val model = Model(IndexedSeq(a, b), factors)
+    val sequential = BeliefPropagation.inferCompiled(model, maxIterations = 50, tolerance = 1E-9)
+    for (schedule <- Seq(Schedule.Parallel(), Schedule.Parallel(0.5), Schedule.Residual)) {
+      val beliefs = BeliefPropagation.inferCompiled(model, maxIterations = 200, tolerance = 1E-9, schedule = schedule)
+      assert(beliefs.stats.converged, schedule + " " + beliefs.stats)
+      assert(beliefs.beliefs(0)(0) === 0.0, schedule.toString)
+      assert(beliefs.beliefs(1)(2) === 0.0, schedule.toString)
+      for (v <- 0 until 2; i <- 0 until 3)
+        assert(closeTo(sequential.beliefs(v)(i), beliefs.beliefs(v)(i), 1E-6), schedule + " " + v)
+    }
+  }
+
+  test("Template inference over many potentials matches each model") {
+    val v1, v2, v3 = Variable(0 to 2)
+    def factorsFor(seed: Int) = {
+      val random = new scala.util.Random(seed)
+      val w = Array.fill(21)(random.nextGaussian)
+      IndexedSeq(
+        Factor.fromLogFn(v1, v2)((i, j) => w(i * 3 + j)),
+        Factor.fromLogFn(v2, v3)((i, j) => w(9 + i * 3 + j)),
+        Factor.fromLogFn(v3)(i => w(18 + i)))
+    }
+    val factorSets = (0 until 40).map(factorsFor)
+    val template = new Template(Model(IndexedSeq(v1, v2, v3), factorSets.head))
+    val marginals = template.inferAll(factorSets.map(template.tabulate), maxIterations = 20, tolerance = 1E-8)
+    for (g <- 0 until 40) {
+      val expected = BeliefPropagation.inferCompiled(Model(IndexedSeq(v1, v2, v3), factorSets(g)), maxIterations = 20, tolerance = 1E-8)
+      for (v <- 0 until 3; a <- 0 until 3)
+        assert(closeTo(marginals(g, v, a), expected.beliefs(v)(a), 1E-10))
+      assert(closeTo(marginals.logPartitions(g), expected.logPartition, 1E-8))
+      assert(marginals.stats(g).converged)
+    }
+    assert(closeTo(breeze.linalg.sum(marginals.marginalFor(3, 1)), 1.0, 1E-10))
+    intercept[IllegalArgumentException](template.inferAll(IndexedSeq(template.tabulate(factorSets(0)).drop(1))))
+  }
+
   object SimpleProblem {
     val v1, v2, v3, v4 = Variable(0 to 1)
 
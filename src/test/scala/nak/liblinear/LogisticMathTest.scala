@@ -0,0 +1,49 @@
+package nak.liblinear
+
+import org.scalatest.FunSuite
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+
+/**
+ * Check the fast logistic functions against java.lang.Math.
+ */
+@RunWith(classOf[JUnitRunner])
+class LogisticMathTest extends FunSuite {
+
+  def relativeError(value: Double, reference: Double) =
+    if (value == reference) 0.0 else math.abs(value - reference) / math.abs(reference)
+
+  val random = new util.Random(0)
+  val points = Seq.fill(100000)((random.nextDouble - 0.5) * 1400) ++ Seq.fill(100000)((random.nextDouble - 0.5) * 2)
+
+  test("exp is accurate over its whole range") {
+    for (x <- points)
+      assert(relativeError(LogisticMath.exp(x), math.exp(x)) < 1e-15, "exp(" + x + ")")
+    assert(LogisticMath.exp(800) === Double.PositiveInfinity)
+    assert(LogisticMath.exp(-800) === 0.0)
+    assert(LogisticMath.exp(-740) === math.exp(-740))
+    assert(LogisticMath.exp(0) === 1.0)
+    assert(LogisticMath.exp(Double.NaN).isNaN)
+  }
+
+  test("log1pExp is accurate and doesn't overflow") {
+    for (x <- points) {
+      val reference = if (x > 0) x + math.log1p(math.exp(-x)) else math.log1p(math.exp(x))
+      assert(relativeError(LogisticMath.log1pExp(x), reference) < 1e-15, "log1pExp(" + x + ")")
+    }
+    assert(LogisticMath.log1pExp(1000) === 1000.0)
+    assert(LogisticMath.log1pExp(-1000) === 0.0)
+  }
+
+  test("array versions match scalar versions") {
+    val x = points.take(1000).toArray
+    val out = new Array[Double](x.length)
+    LogisticMath.sigmoid(x, out, x.length)
+    for (i <- x.indices)
+      assert(out(i) === 1 / (1 + LogisticMath.exp(-x(i))))
+    LogisticMath.log1pExp(x, x, x.length)
+    for (i <- x.indices)
+      assert(x(i) === LogisticMath.log1pExp(points(i)))
+  }
+
+}
@@ -2,7 +2,7 @@ package nak.nnet
 
 import org.scalatest.FunSuite
 import org.scalatest.prop.Checkers
-import breeze.linalg.DenseVector
+import breeze.linalg.{DenseVector, SparseVector}
 import breeze.optimize._
 
 /**
@@ -27,4 +27,45 @@ class NeuralNetworkTest extends FunSuite with Checkers {
     assert(mse < 1E-4, "loss was " + mse + " which is too high!")
   }
 
+  test("Gradient over several blocks matches finite differences") {
+    val random = new scala.util.Random(3)
+    val inputs = IndexedSeq.fill(150)(DenseVector.fill(6)(random.nextGaussian))
+    val outputs = inputs.map(x => DenseVector(x(0) * x(1), x(2)))
+    def loss(x: DenseVector[Double], y: DenseVector[Double]) = {
+      val diff = x - y
+      (diff dot diff, diff * 2.0)
+    }
+    val nnObj = new NNObjective[DenseVector[Double]](inputs zip outputs, loss, Array(6, 4, 3, 2))
+    val x = nnObj.initialWeightVector
+    val (value, gradient) = nnObj.calculate(x)
+    val nn = nnObj.extract(x)
+    assert(math.abs(value - (inputs zip outputs).map { case (in, out) => loss(nn(in), out)._1 }.sum) < 1E-8 * value)
+    val h = 1E-6
+    for (i <- 0 until x.length) {
+      val shifted = x.copy
+      shifted(i) += h
+      val numeric = (nnObj.valueAt(shifted) - value) / h
+      assert(math.abs(numeric - gradient(i)) < 1E-3 * math.max(1.0, math.abs(numeric)), i + " " + numeric + " " + gradient(i))
+    }
+  }
+
+  test("Sparse inputs give the same objective as dense ones") {
+    val random = new scala.util.Random(4)
+    val dense = IndexedSeq.fill(100)(DenseVector.tabulate(50)(j => if (random.nextDouble < 0.1) random.nextGaussian else 0.0))
+    val sparse = dense.map(x => SparseVector(x.length)(x.activeIterator.filter(_._2 != 0.0).toSeq: _*))
+    val outputs = dense.map(x => x(0) + x(1))
+    def loss(x: DenseVector[Double], y: Double) = ((x(0)-y)*(x(0)-y), DenseVector(2 * (x(0)-y)))
+
+    val denseObj = new NNObjective[Double](dense zip outputs, loss, Array(50, 8, 1))
+    val sparseObj = new NNObjective[Double](sparse zip outputs, loss, Array(50, 8, 1))
+    val x = denseObj.initialWeightVector
+    val (denseValue, denseGradient) = denseObj.calculate(x)
+    val (sparseValue, sparseGradient) = sparseObj.calculate(x)
+    assert(math.abs(denseValue - sparseValue) < 1E-8 * denseValue)
+    for (i <- 0 until x.length) assert(math.abs(denseGradient(i) - sparseGradient(i)) < 1E-8)
+
+    val nn = denseObj.extract(x)
+    for ((d, s) <- dense zip sparse) assert(math.abs(nn(d)(0) - nn(s: breeze.linalg.Vector[Double])(0)) < 1E-10)
+  }
+
 }
@@ -0,0 +1,119 @@
+package nak.serving
+
+import org.scalatest.FunSuite
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+
+import scala.concurrent.Await
+import scala.concurrent.duration._
+
+/**
+ * Make sure models can be swapped while serving and that statistics are kept.
+ */
+@RunWith(classOf[JUnitRunner])
+class ModelServerTest extends FunSuite {
+
+  import nak.NakContext._
+  import nak.data._
+  import nak.liblinear.LiblinearConfig
+
+  val featurizer = new BowFeaturizer
+
+  def train(positive: String, negative: String) = trainClassifier(
+    LiblinearConfig(),
+    featurizer,
+    Seq.fill(5)(Seq(Example("pos", positive), Example("neg", negative))).flatten)
+
+  test("hot swap changes predictions without a restart") {
+    val server = new ModelServer[String](Seq("good", "bad"), warmupCalls = 100)
+    intercept[IllegalStateException](server.predict("good"))
+
+    server.deploy("1", train("good", "bad"))
+    assert(server.predict("good") === "pos")
+
+    val deployment = server.deployAsync("2")(train("bad", "good"))
+    assert(Await.result(deployment, 30.seconds).version === "2")
+    assert(server.predict("good") === "neg")
+    assert(server.model.get.stats.requests.count === 1)
+    assert(server.previousModel.get.stats.requests.count === 1)
+
+    server.rollback()
+    assert(server.model.get.version === "1")
+    assert(server.predict("good") === "pos")
+    server.shutdown()
+  }
+
+  test("http deploys only load files in the model directory") {
+    val dir = java.nio.file.Files.createTempDirectory("models").toFile
+    saveClassifier(train("bad", "good"), new java.io.File(dir, "2.obj").getPath)
+    val server = new ModelServer[String]()
+    server.deploy("1", train("good", "bad"))
+    val http = new ModelHttpServer(server, port = 0, threads = 1, modelDir = Some(dir)).start()
+
+    def status(method: String, query: String) = {
+      val url = new java.net.URL("http://localhost:" + http.boundPort + "/deploy?" + query)
+      val connection = url.openConnection().asInstanceOf[java.net.HttpURLConnection]
+      connection.setRequestMethod(method)
+      try connection.getResponseCode finally connection.disconnect()
+    }
+
+    try {
+      assert(status("GET", "version=2&file=2.obj") === 405)
+      assert(status("POST", "version=2&file=..%2F2.obj") === 403)
+      assert(status("POST", "version=2&file=missing.obj") === 404)
+      assert(server.model.get.version === "1")
+      assert(status("POST", "version=2&file=2.obj") === 200)
+      assert(server.predict("good") === "neg")
+    } finally {
+      http.stop()
+      server.shutdown()
+    }
+  }
+
+  test("batched requests get the same scores as single ones") {
+    val classifier = train("good", "bad")
+    // Hold the first batch until every request is queued, so the rest must
+    // be scored in full batches.
+    val queued = new java.util.concurrent.CountDownLatch(1)
+    val scheduler = new BatchingScheduler[String](
+      () => { queued.await(); classifier }, maxBatchSize = 16, maxWaitMicros = 2000)
+    val inputs = (1 to 100).map(i => if (i % 3 == 0) "good" else "bad bad")
+    val predictions = inputs.map(scheduler.predict)
+    val scores = inputs.map(scheduler.evalRaw)
+    queued.countDown()
+    for ((input, prediction) <- inputs.zip(predictions))
+      assert(Await.result(prediction, 30.seconds) === classifier.predict(input))
+    for ((input, score) <- inputs.zip(scores))
+      assert(Await.result(score, 30.seconds).toSeq === classifier.evalRaw(input).toSeq)
+    assert(scheduler.batchSizes.count <= 1 + (200 - 1 + 15) / 16)
+    assert(scheduler.batchSizes.max <= 16)
+    scheduler.shutdown()
+    intercept[IllegalStateException](scheduler.predict("good"))
+  }
+
+  test("a failing batch doesn't stop the scheduler") {
+    val classifier = train("good", "bad")
+    val failures = new java.util.concurrent.atomic.AtomicInteger(1)
+    val scheduler = new BatchingScheduler[String](
+      () => if (failures.getAndDecrement > 0) throw new AssertionError("broken model") else classifier,
+      maxBatchSize = 16, maxWaitMicros = 2000)
+    // Promises box Errors in an ExecutionException.
+    val failure = intercept[java.util.concurrent.ExecutionException](Await.result(scheduler.predict("good"), 30.seconds))
+    assert(failure.getCause.getMessage === "broken model")
+    assert(Await.result(scheduler.predict("good"), 30.seconds) === classifier.predict("good"))
+    scheduler.shutdown()
+  }
+
+  test("histogram percentiles are within a bucket of the truth") {
+    val histogram = new LogHistogram
+    for (v <- 1 to 1000) histogram.record(v)
+    assert(histogram.count === 1000)
+    assert(histogram.max === 1000)
+    assert(histogram.mean === 500.5)
+    val p50 = histogram.percentile(0.5)
+    assert(p50 >= 500 && p50 <= 500 * 1.25, p50)
+    val p99 = histogram.percentile(0.99)
+    assert(p99 >= 990 && p99 <= 1000, p99)
+  }
+
+}
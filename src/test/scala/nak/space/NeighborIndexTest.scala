@@ -0,0 +1,58 @@
+package nak.space
+
+import breeze.linalg.{DenseVector, SparseVector, Vector}
+import nak.cluster.PointMatrix
+import org.junit.runner.RunWith
+import org.scalatest.FunSuite
+import org.scalatest.junit.JUnitRunner
+
+import scala.util.Random
+
+@RunWith(classOf[JUnitRunner])
+class NeighborIndexTest extends FunSuite {
+
+  val random = new Random(7)
+  val points = IndexedSeq.fill(1500)(DenseVector.fill(8)(random.nextGaussian))
+  val queries = IndexedSeq.fill(40)(DenseVector.fill(8)(random.nextGaussian))
+
+  def bruteForce(query: Vector[Double], k: Int, skip: Int = -1): Seq[Int] =
+    points.indices.filter(_ != skip).sortBy(i => breeze.linalg.squaredDistance(points(i), query)).take(k)
+
+  test("exact search matches sorting every distance") {
+    val neighbors = new ExactIndex(PointMatrix.dense(points)).search(queries, 5)
+    for (q <- queries.indices) {
+      assert((0 until 5).map(neighbors(q, _)) === bruteForce(queries(q), 5))
+      assert(neighbors.distance(q, 0) <= neighbors.distance(q, 4))
+    }
+  }
+
+  test("sparse points and leave-one-out") {
+    val sparse = points.map(p => SparseVector(p.data))
+    val index = new ExactIndex(PointMatrix.sparse(sparse))
+    val neighbors = index.leaveOneOut(3)
+    for (i <- 0 until 50)
+      assert((0 until 3).map(neighbors(i, _)) === bruteForce(points(i), 3, skip = i))
+  }
+
+  test("fewer points than k are padded") {
+    val neighbors = new ExactIndex(PointMatrix.dense(points.take(2))).search(queries.take(1), 4)
+    assert(neighbors.count(0) === 2)
+    assert(neighbors(0, 3) === -1)
+  }
+
+  test("metric index with any distance") {
+    val index = new MetricIndex[DenseVector[Double]](points, (a, b) => breeze.linalg.squaredDistance(a, b))
+    val neighbors = index.search(queries, 4)
+    for (q <- queries.indices) assert((0 until 4).map(neighbors(q, _)) === bruteForce(queries(q), 4))
+  }
+
+  test("random projection forest finds most true neighbours") {
+    val forest = new RandomProjectionForest(PointMatrix.dense(points), numTrees = 8, leafSize = 16, searchSize = 300)
+    val neighbors = forest.search(queries, 10)
+    val found = queries.indices.map(q => (0 until 10).map(neighbors(q, _)).intersect(bruteForce(queries(q), 10)).size).sum
+    assert(found >= 0.8 * 10 * queries.length, found)
+    val duplicate = new RandomProjectionForest(PointMatrix.dense(IndexedSeq.fill(100)(DenseVector.zeros[Double](3))), leafSize = 4)
+    assert(duplicate.search(IndexedSeq(DenseVector.zeros[Double](3)), 5).count(0) === 5)
+  }
+
+}
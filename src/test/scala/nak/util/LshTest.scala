@@ -27,6 +27,38 @@ class LocalitySensitiveHashSpec extends FunSpec {
 
       assert(matchingIds === List(34,193,851))
     }
+
+    it ("should find the same matches when documents are added one at a time") {
+      val lines = io.Source.fromInputStream(
+        this.getClass.getResourceAsStream("/data/twitter/example_tweets.txt")).getLines.toIndexedSeq
+      val batch = new LocalitySensitiveHash(lines, shingleLength=4)
+      val incremental = new LocalitySensitiveHash(lines.take(100), shingleLength=4)
+      for ((line, i) <- lines.zipWithIndex.drop(100))
+        assert(incremental.add(line) === i)
+
+      assert(incremental.size === lines.size)
+      for (line <- lines.take(50))
+        assert(incremental.findSimilar(line) === batch.findSimilar(line))
+    }
+
+    it ("should save and load an index") {
+      val lines = io.Source.fromInputStream(
+        this.getClass.getResourceAsStream("/data/twitter/example_tweets.txt")).getLines.toIndexedSeq
+      val lsh = new LocalitySensitiveHash(lines, shingleLength=4)
+      val file = java.io.File.createTempFile("lsh", ".bin")
+      try {
+        lsh.save(file)
+        val loaded = LocalitySensitiveHash.load(file)
+        assert(loaded.size === lsh.size)
+        for (line <- lines.take(50))
+          assert(loaded.findSimilar(line) === lsh.findSimilar(line))
+
+        val added = loaded.add(lines(0))
+        assert(loaded.findSimilar(lines(0)) === lsh.findSimilar(lines(0)) + added)
+      } finally {
+        file.delete()
+      }
+    }
   }
 
 }